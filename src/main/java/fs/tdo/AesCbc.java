@@ -0,0 +1,128 @@
+package fs.tdo;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.IllegalBlockSizeException;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * AES in cipher block chaining mode with PKCS#7 padding. Encryption is sequential, but decryption is not: plaintext
+ * block {@code i} is the decryption of ciphertext block {@code i} XOR ciphertext block {@code i - 1}. Large inputs are
+ * therefore split into segments that are decrypted concurrently, each by a cipher whose IV is the last ciphertext
+ * block before the segment.
+ */
+final class AesCbc {
+    /**
+     * Inputs smaller than this are decrypted on the calling thread.
+     */
+    static final int PARALLEL_THRESHOLD = 1 << 20;
+    static final int BLOCK_SIZE = 16;
+    private static final int MIN_SEGMENT_SIZE = 1 << 16;
+    /* Padding is removed here, after all segments are done, so the cipher itself does not pad. */
+    private static final ThreadLocal<Cipher> CIPHERS = Ciphers.cache("AES/CBC/NoPadding");
+
+    private AesCbc() {
+    }
+
+    /**
+     * Decrypts the remaining bytes of {@code src}, a whole number of blocks, into {@code dst}, which must have as many
+     * bytes remaining, and checks the padding. The positions of both buffers are not moved.
+     *
+     * @return the number of plaintext bytes without the padding
+     */
+    static int decrypt(final Key key, final byte[] iv, final ByteBuffer src, final ByteBuffer dst,
+        final ForkJoinPool pool) throws GeneralSecurityException {
+        final int segmentSize = src.remaining() < PARALLEL_THRESHOLD
+            ? Math.max(BLOCK_SIZE, src.remaining())
+            : Math.max(MIN_SEGMENT_SIZE, src.remaining() / (pool.getParallelism() * 4) + 1);
+        return decrypt(key, iv, src, dst, pool, segmentSize);
+    }
+
+    /**
+     * Decrypts segments of {@code segmentSize} bytes, rounded up to whole blocks, concurrently.
+     */
+    static int decrypt(final Key key, final byte[] iv, final ByteBuffer src, final ByteBuffer dst,
+        final ForkJoinPool pool, final int segmentSize) throws GeneralSecurityException {
+        final int length = src.remaining();
+        if (length == 0 || length % BLOCK_SIZE != 0) {
+            throw new IllegalBlockSizeException("Not a whole number of blocks: " + length + " bytes");
+        }
+        if (dst.remaining() < length) {
+            throw new IllegalArgumentException("Output too small: " + dst.remaining() + " < " + length);
+        }
+        final int size = (segmentSize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+        Ciphers.decrypt(src, dst, size, pool, from -> cipher(key, from == 0 ? iv : block(src, from - BLOCK_SIZE)));
+        final int padding = padding(dst, dst.position() + length);
+        if (padding < 0) {
+            throw new BadPaddingException("Invalid PKCS#7 padding");
+        }
+        return length - padding;
+    }
+
+    /**
+     * Whether the remaining bytes of {@code src} look like CBC with PKCS#7 padding: a whole number of blocks whose
+     * last block decrypts to valid padding. Only the last two blocks are decrypted.
+     */
+    static boolean isPadded(final Key key, final byte[] iv, final ByteBuffer src) throws GeneralSecurityException {
+        final int length = src.remaining();
+        if (length == 0 || length % BLOCK_SIZE != 0) {
+            return false;
+        }
+        final int last = src.position() + length - BLOCK_SIZE;
+        final Cipher cipher = cipher(key, length == BLOCK_SIZE ? iv : block(src, last - src.position() - BLOCK_SIZE));
+        try {
+            return padding(ByteBuffer.wrap(cipher.doFinal(block(src, last - src.position()))), BLOCK_SIZE) > 0;
+        } finally {
+            Ciphers.clear(cipher);
+        }
+    }
+
+    /**
+     * A cipher decrypting from {@code iv} on. It is the calling thread's cached cipher, so it is only valid until the
+     * thread calls this again, and must be {@link Ciphers#clear cleared} when done with.
+     */
+    static Cipher cipher(final Key key, final byte[] iv) throws GeneralSecurityException {
+        final Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    /**
+     * A cipher that decrypts a stream and removes the padding in {@code doFinal}.
+     */
+    static Cipher paddingCipher(final Key key, final byte[] iv) throws GeneralSecurityException {
+        // PKCS5Padding of the JDK is PKCS#7 for 16-byte blocks
+        final Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher;
+    }
+
+    /**
+     * The padding length of the plaintext that ends at {@code end}, or -1 if the padding is invalid.
+     */
+    private static int padding(final ByteBuffer plain, final int end) {
+        final int padding = plain.get(end - 1) & 0xff;
+        if (padding == 0 || padding > BLOCK_SIZE) {
+            return -1;
+        }
+        for (int i = end - padding; i < end - 1; i++) {
+            if (plain.get(i) != padding) {
+                return -1;
+            }
+        }
+        return padding;
+    }
+
+    /**
+     * The block at {@code offset} relative to the position of {@code src}.
+     */
+    private static byte[] block(final ByteBuffer src, final int offset) {
+        final byte[] block = new byte[BLOCK_SIZE];
+        src.duplicate().position(src.position() + offset).get(block);
+        return block;
+    }
+}
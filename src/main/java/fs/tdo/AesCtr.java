@@ -0,0 +1,74 @@
+package fs.tdo;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * AES in counter mode, which is seekable: block {@code n} of the key stream is the encryption of the IV plus
+ * {@code n}, taken as a 128-bit big-endian number. Large inputs are therefore split into segments that are decrypted
+ * concurrently, each by a cipher whose counter starts at the segment's first block.
+ */
+final class AesCtr {
+    /**
+     * Inputs smaller than this are decrypted on the calling thread.
+     */
+    static final int PARALLEL_THRESHOLD = 1 << 20;
+    static final int BLOCK_SIZE = 16;
+    private static final int MIN_SEGMENT_SIZE = 1 << 16;
+    private static final ThreadLocal<Cipher> CIPHERS = Ciphers.cache("AES/CTR/NoPadding");
+
+    private AesCtr() {
+    }
+
+    /**
+     * Decrypts (or encrypts) the remaining bytes of {@code src} into {@code dst}, which must have as many bytes
+     * remaining. The positions of both buffers are not moved.
+     */
+    static void decrypt(final Key key, final byte[] iv, final ByteBuffer src, final ByteBuffer dst,
+        final ForkJoinPool pool) throws GeneralSecurityException {
+        final int segmentSize = src.remaining() < PARALLEL_THRESHOLD
+            ? Math.max(BLOCK_SIZE, src.remaining())
+            : Math.max(MIN_SEGMENT_SIZE, src.remaining() / (pool.getParallelism() * 4) + 1);
+        decrypt(key, iv, src, dst, pool, segmentSize);
+    }
+
+    /**
+     * Decrypts segments of {@code segmentSize} bytes, rounded up to whole blocks, concurrently.
+     */
+    static void decrypt(final Key key, final byte[] iv, final ByteBuffer src, final ByteBuffer dst,
+        final ForkJoinPool pool, final int segmentSize) throws GeneralSecurityException {
+        if (dst.remaining() < src.remaining()) {
+            throw new IllegalArgumentException("Output too small: " + dst.remaining() + " < " + src.remaining());
+        }
+        final int size = (segmentSize + BLOCK_SIZE - 1) / BLOCK_SIZE * BLOCK_SIZE;
+        Ciphers.decrypt(src, dst, size, pool, from -> cipher(key, iv, from / BLOCK_SIZE));
+    }
+
+    /**
+     * A cipher positioned at block {@code block} of the key stream. It is the calling thread's cached cipher, so it is
+     * only valid until the thread calls this again, and must be {@link Ciphers#clear cleared} when done with.
+     */
+    static Cipher cipher(final Key key, final byte[] iv, final long block) throws GeneralSecurityException {
+        final Cipher cipher = CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(counter(iv, block)));
+        return cipher;
+    }
+
+    /**
+     * {@code iv + blocks} as 128-bit big-endian numbers, wrapping around like the counter itself.
+     */
+    static byte[] counter(final byte[] iv, final long blocks) {
+        final byte[] counter = iv.clone();
+        long carry = blocks;
+        for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+            final long sum = (counter[i] & 0xff) + (carry & 0xff);
+            counter[i] = (byte) sum;
+            carry = (carry >>> 8) + (sum >>> 8);
+        }
+        return counter;
+    }
+}
@@ -1,65 +1,397 @@
 package fs.tdo;
 
-import java.io.ByteArrayOutputStream;
-import java.text.CharacterIterator;
-import java.text.StringCharacterIterator;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 public class Base85 {
+    /*
+     * Lookup table entries: 0..84 is the digit value, negative values are the character classes below.
+     */
+    static final byte IGNORE = -1;
+    static final byte END = -2;
+    static final byte Z = -3;
+    static final byte Y = -4;
+    static final byte X = -5;
+    static final byte[] TABLE = new byte[256];
+    /*
+     * Words produced by the shortcut characters, indexed by {@code -3 - TABLE[ch]}.
+     */
+    static final int[] SHORTCUTS = {0, 0x20202020, -1};
+    /**
+     * Encoded payloads smaller than this are decoded on the calling thread.
+     */
+    public static final int PARALLEL_THRESHOLD = 1 << 20;
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+    /*
+     * Decoded bytes collected before a transform is applied to them, few enough to still be in the cache.
+     */
+    private static final int TRANSFORM_BATCH = 1 << 13;
+
+    static {
+        Arrays.fill(TABLE, IGNORE);
+        for (int ch = '!'; ch <= 'u'; ch++) {
+            TABLE[ch] = (byte) (ch - '!');
+        }
+        TABLE['~'] = END;
+        TABLE['z'] = Z;
+        TABLE['y'] = Y;
+        TABLE['x'] = X;
+    }
 
     private Base85() {
     }
 
     public static byte[] decode(String s) {
-        s = s.trim();
-        if (s.startsWith("<~") && s.endsWith("~>")) {
-            s = s.substring(2, s.length() - 2).trim();
-        }
-        final CharacterIterator it = new StringCharacterIterator(s);
-        final ByteArrayOutputStream out = new ByteArrayOutputStream();
-        long i = 0;
-        int j = 0;
-        for (char ch = it.first(); ch != CharacterIterator.DONE && ch != '~'; ch = it.next()) {
-            if (ch == 'z' && j == 0) {
-                writeMultiple(0, out, 4);
-            } else if (ch == 'y' && j == 0) {
-                writeMultiple(' ', out, 4);
-            } else if (ch == 'x' && j == 0) {
-                writeMultiple(-1, out, 4);
-            } else if (ch >= '!' && ch <= 'u') {
-                i = i * 85L + ch - '!';
-                j++;
-                if (j >= 5) {
-                    out.write((int) (i >> 24L));
-                    out.write((int) (i >> 16L));
-                    out.write((int) (i >> 8L));
-                    out.write((int) i);
-                    i = 0;
-                    j = 0;
+        return decode(ByteBuffer.wrap(s.getBytes(StandardCharsets.US_ASCII)));
+    }
+
+    /**
+     * Decodes the remaining bytes of {@code src} into a new array of exactly the decoded size.
+     */
+    public static byte[] decode(ByteBuffer src) {
+        return decode(src, (WordTransform) null);
+    }
+
+    /**
+     * Decodes the remaining bytes of {@code src} into a new array of exactly the decoded size, applying
+     * {@code transform} to every group as it is decoded.
+     */
+    public static byte[] decode(ByteBuffer src, WordTransform transform) {
+        final byte[] result = new byte[decodedLength(src)];
+        decode(src, ByteBuffer.wrap(result), transform);
+        return result;
+    }
+
+    /**
+     * Decodes the first {@code length} bytes of {@code src}, or fewer if the payload is shorter. The position of
+     * {@code src} is not changed.
+     */
+    public static byte[] decodePrefix(ByteBuffer src, int length) {
+        final ByteBuffer out = ByteBuffer.allocate((length + 3) & ~3);
+        final Base85Decoder decoder = new Base85Decoder();
+        if (decoder.decode(src.duplicate(), out) || out.hasRemaining()) {
+            decoder.finish(out);
+        }
+        return Arrays.copyOf(out.array(), Math.min(length, out.position()));
+    }
+
+    /**
+     * Computes the exact number of bytes {@link #decode(ByteBuffer, ByteBuffer)} will produce for the remaining bytes
+     * of {@code src}, without changing its position.
+     */
+    public static int decodedLength(ByteBuffer src) {
+        final int end = src.limit();
+        long length = 0;
+        int count = 0;
+        for (int p = dataStart(src); p < end; p++) {
+            final int t = TABLE[src.get(p) & 0xff];
+            if (t >= 0) {
+                if (++count == 5) {
+                    length += 4;
+                    count = 0;
+                }
+            } else if (t == END) {
+                break;
+            } else if (t != IGNORE && count == 0) {
+                length += 4;
+            }
+        }
+        if (count > 1) {
+            length += count - 1;
+        }
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Decoded payload too large: " + length + " bytes");
+        }
+        return (int) length;
+    }
+
+    /**
+     * Decodes the remaining bytes of {@code src} into {@code dst}. A leading {@code <~} is skipped and decoding stops
+     * after the closing {@code ~>}. Both buffers' positions are advanced; {@code dst} needs
+     * {@link #decodedLength(ByteBuffer)} bytes of room.
+     *
+     * @throws java.nio.BufferOverflowException if {@code dst} is too small
+     */
+    public static void decode(ByteBuffer src, ByteBuffer dst) {
+        decode(src, dst, null);
+    }
+
+    /**
+     * Like {@link #decode(ByteBuffer, ByteBuffer)}, applying {@code transform} to every group as it is decoded. The
+     * offsets passed to the transform count from the initial position of {@code dst}.
+     */
+    public static void decode(ByteBuffer src, ByteBuffer dst, WordTransform transform) {
+        final int end = src.limit();
+        src.position(decodeRange(src, dataStart(src), end, end, 0, dst, transform, -dst.position()));
+    }
+
+    /**
+     * Like {@link #decode(ByteBuffer)}, but payloads of at least {@link #PARALLEL_THRESHOLD} bytes are decoded on the
+     * common {@link ForkJoinPool}.
+     */
+    public static byte[] decodeParallel(ByteBuffer src) {
+        return decodeParallel(src, ForkJoinPool.commonPool(), null);
+    }
+
+    /**
+     * Like {@link #decodeParallel(ByteBuffer)}, applying {@code transform} to every group as it is decoded.
+     */
+    public static byte[] decodeParallel(ByteBuffer src, WordTransform transform) {
+        return decodeParallel(src, ForkJoinPool.commonPool(), transform);
+    }
+
+    /**
+     * Like {@link #decode(ByteBuffer)}, but payloads of at least {@link #PARALLEL_THRESHOLD} bytes are split into
+     * ranges that are decoded on {@code pool} directly into the result array.
+     */
+    public static byte[] decodeParallel(ByteBuffer src, ForkJoinPool pool) {
+        return decodeParallel(src, pool, null);
+    }
+
+    /**
+     * Like {@link #decodeParallel(ByteBuffer, ForkJoinPool)}, applying {@code transform} to every group as it is
+     * decoded. The transform is called concurrently.
+     */
+    public static byte[] decodeParallel(ByteBuffer src, ForkJoinPool pool, WordTransform transform) {
+        if (src.remaining() < PARALLEL_THRESHOLD) {
+            return decode(src, transform);
+        }
+        final int chunkSize = Math.max(MIN_CHUNK_SIZE, src.remaining() / (pool.getParallelism() * 4) + 1);
+        return decodeParallel(src, pool, chunkSize, transform);
+    }
+
+    /*
+     * Phase 1 scans all chunks concurrently, counting digits and shortcut characters per chunk. A sequential prefix
+     * sum over the chunks then yields each chunk's group phase and output offset, and phase 2 decodes the chunks
+     * concurrently. A chunk owns the groups whose first digit lies inside it, so it skips the digits completing the
+     * previous chunk's last group and reads past its own end to complete its last group.
+     */
+    static byte[] decodeParallel(ByteBuffer src, ForkJoinPool pool, int chunkSize, WordTransform transform) {
+        final int start = dataStart(src);
+        final int limit = src.limit();
+        final int chunkCount = (int) (((long) limit - start + chunkSize - 1) / chunkSize);
+        final Chunk[] chunks = new Chunk[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            final int from = start + i * chunkSize;
+            chunks[i] = new Chunk(from, (int) Math.min((long) from + chunkSize, limit));
+        }
+        Parallel.forEach(pool, chunks, chunkCount, c -> c.scan(src));
+
+        long digits = 0;
+        long words = 0;
+        int used = chunkCount;
+        int end = limit;
+        for (int i = 0; i < chunkCount; i++) {
+            final Chunk chunk = chunks[i];
+            chunk.skip = (int) ((5 - digits % 5) % 5);
+            chunk.offset = 4 * ((digits + chunk.skip) / 5 + words);
+            words += chunk.shortcuts[chunk.skip];
+            digits += chunk.digits;
+            if (chunk.endAt >= 0) {
+                used = i + 1;
+                end = chunk.endAt;
+                break;
+            }
+        }
+        final long length = 4 * (digits / 5 + words) + Math.max(0, digits % 5 - 1);
+        if (length > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Decoded payload too large: " + length + " bytes");
+        }
+
+        final byte[] result = new byte[(int) length];
+        final int stop = end;
+        Parallel.forEach(pool, chunks, used, c -> {
+            if (!c.ownsGroups()) {
+                return;
+            }
+            final ByteBuffer dst = ByteBuffer.wrap(result);
+            dst.position((int) c.offset);
+            decodeRange(src, c.from, Math.min(c.to, stop), stop, c.skip, dst, transform, 0);
+        });
+
+        int p = end;
+        if (p < limit) {
+            p++;
+            if (p < limit && src.get(p) == '>') {
+                p++;
+            }
+        }
+        src.position(p);
+        return result;
+    }
+
+    /**
+     * Decodes the groups starting in {@code [p, chunkEnd)}, completing the last one with characters up to
+     * {@code end}. The first {@code skip} digits belong to a group started before {@code p} and are ignored. If
+     * {@code transform} is not null it is applied to each group, at offset {@code origin} plus the position in
+     * {@code dst}. Whole groups decoded into an array are transformed in batches of {@link #TRANSFORM_BATCH} bytes.
+     *
+     * @return the position after the last character consumed
+     */
+    private static int decodeRange(ByteBuffer src, int p, int chunkEnd, int end, int skip, ByteBuffer dst,
+                                   WordTransform transform, long origin) {
+        final boolean swap = dst.order() != ByteOrder.BIG_ENDIAN;
+        final boolean batch = transform != null && dst.hasArray();
+        final WordTransform wordTransform = batch ? null : transform;
+        int batchStart = dst.position();
+        int word = 0;
+        int count = 0;
+        while (p < end && (count != 0 || p < chunkEnd)) {
+            final int t = TABLE[src.get(p++) & 0xff];
+            if (t >= 0) {
+                if (skip > 0) {
+                    skip--;
+                    continue;
+                }
+                // int arithmetic wraps exactly like the low 32 bits of the long accumulation
+                word = word * 85 + t;
+                if (++count == 5) {
+                    if (wordTransform != null) {
+                        word = wordTransform.apply(word, origin + dst.position());
+                    }
+                    dst.putInt(swap ? Integer.reverseBytes(word) : word);
+                    word = 0;
+                    count = 0;
+                    if (batch && dst.position() - batchStart >= TRANSFORM_BATCH) {
+                        transformBatch(dst, batchStart, transform, origin);
+                        batchStart = dst.position();
+                    }
+                }
+            } else if (t == END) {
+                if (p < end && src.get(p) == '>') {
+                    p++;
                 }
+                break;
+            } else if (t != IGNORE && count == 0 && skip == 0) {
+                final int shortcut = SHORTCUTS[-3 - t];
+                if (wordTransform == null) {
+                    dst.putInt(shortcut);
+                } else {
+                    final int transformed = wordTransform.apply(shortcut, origin + dst.position());
+                    dst.putInt(swap ? Integer.reverseBytes(transformed) : transformed);
+                }
+            }
+        }
+        if (batch) {
+            transformBatch(dst, batchStart, transform, origin);
+        }
+        if (count > 1) {
+            final int bytes = count - 1;
+            for (; count < 5; count++) {
+                word = word * 85 + 84;
+            }
+            if (transform != null) {
+                word = transform.apply(word, origin + dst.position());
+            }
+            for (int k = 0; k < bytes; k++) {
+                dst.put((byte) (word >>> 24 - 8 * k));
+            }
+        }
+        return p;
+    }
+
+    /**
+     * Applies {@code transform} to the bytes of {@code dst} from {@code from} to its position.
+     */
+    private static void transformBatch(ByteBuffer dst, int from, WordTransform transform, long origin) {
+        final int to = dst.position();
+        if (to > from) {
+            transform.apply(dst.array(), dst.arrayOffset() + from, dst.arrayOffset() + to, origin + from);
+        }
+    }
+
+    /**
+     * Decodes everything readable from {@code src} and writes it to {@code dst}, one chunk at a time.
+     *
+     * @return the number of decoded bytes written
+     */
+    public static long decode(ReadableByteChannel src, WritableByteChannel dst) throws IOException {
+        final Base85Decoder decoder = new Base85Decoder();
+        final ByteBuffer in = ByteBuffer.allocate(Base85InputStream.DEFAULT_CHUNK_SIZE);
+        final ByteBuffer out = ByteBuffer.allocate(Base85InputStream.DEFAULT_CHUNK_SIZE);
+        long written = 0;
+        boolean eof = false;
+        while (!decoder.isFinished()) {
+            if (!eof && src.read(in) < 0) {
+                eof = true;
+            }
+            in.flip();
+            final boolean end = decoder.decode(in, out) || eof && !in.hasRemaining();
+            if (end && out.remaining() >= 4) {
+                decoder.finish(out);
             }
+            in.compact();
+            out.flip();
+            while (out.hasRemaining()) {
+                written += dst.write(out);
+            }
+            out.clear();
+        }
+        return written;
+    }
+
+    /**
+     * Index of the first data character: leading whitespace and a {@code <~} delimiter are skipped.
+     */
+    static int dataStart(ByteBuffer src) {
+        final int end = src.limit();
+        int p = src.position();
+        while (p < end && isWhitespace(src.get(p))) {
+            p++;
+        }
+        if (p + 1 < end && src.get(p) == '<' && src.get(p + 1) == '~') {
+            return p + 2;
         }
-        if (j == 4) {
-            i = i * 85L + 84L;
-            out.write((int) (i >> 24L));
-            out.write((int) (i >> 16L));
-            out.write((int) (i >> 8L));
-        } else if (j == 3) {
-            i = i * 85L + 84L;
-            i = i * 85L + 84L;
-            out.write((int) (i >> 24L));
-            out.write((int) (i >> 16L));
-        } else if (j == 2) {
-            i = i * 85L + 84L;
-            i = i * 85L + 84L;
-            i = i * 85L + 84L;
-            out.write((int) (i >> 24L));
-        }
-        return out.toByteArray();
-    }
-
-    private static void writeMultiple(int value, ByteArrayOutputStream out, int times) {
-        for (int i = 0; i < times; i++) {
-            out.write(value);
+        return src.position();
+    }
+
+    static boolean isWhitespace(final int ch) {
+        return ch == ' ' || ch == '\n' || ch == '\r' || ch == '\t' || ch == '\f';
+    }
+
+    private static final class Chunk {
+        final int from;
+        final int to;
+        /* Number of valid shortcut characters, indexed by the number of preceding digits in the chunk modulo 5. */
+        final long[] shortcuts = new long[5];
+        long digits;
+        int endAt = -1;
+        int skip;
+        long offset;
+
+        Chunk(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        /*
+         * A chunk whose digits all complete an earlier group has nothing to decode, and its offset may lie past the
+         * end of the output.
+         */
+        boolean ownsGroups() {
+            return digits > skip || shortcuts[skip] > 0;
+        }
+
+        void scan(ByteBuffer src) {
+            int phase = 0;
+            for (int p = from; p < to; p++) {
+                final int t = TABLE[src.get(p) & 0xff];
+                if (t >= 0) {
+                    digits++;
+                    phase = phase == 4 ? 0 : phase + 1;
+                } else if (t == END) {
+                    endAt = p;
+                    return;
+                } else if (t != IGNORE) {
+                    shortcuts[phase]++;
+                }
+            }
         }
     }
 }
@@ -0,0 +1,97 @@
+package fs.tdo;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental Base85 (Ascii85) decoder. Input is fed in arbitrary chunks of ASCII bytes, decoded bytes are written
+ * to the supplied output buffer, and the decoder state (partial group, envelope delimiters) is carried over between
+ * calls. Used by {@link Base85InputStream} and the channel variant of {@link Base85}.
+ *
+ * <p>A leading {@code <~} is skipped, decoding stops at the first {@code ~}. Whitespace and characters outside the
+ * Base85 alphabet are ignored, {@code z}, {@code y} and {@code x} are only recognised at group boundaries.
+ */
+final class Base85Decoder {
+    private static final int START = 0;
+    private static final int START_LT = 1;
+    private static final int DATA = 2;
+    private static final int END = 3;
+
+    private int state = START;
+    private long group;
+    private int count;
+
+    /**
+     * Decodes as much of {@code in} as possible into {@code out}. Returns when the input is exhausted, the output has
+     * less than 4 bytes of room left, or the end delimiter was reached.
+     *
+     * @return {@code true} if the end delimiter was reached
+     */
+    boolean decode(final ByteBuffer in, final ByteBuffer out) {
+        while (state != END && in.hasRemaining() && out.remaining() >= 4) {
+            final int ch = in.get(in.position()) & 0xff;
+            if (state == START) {
+                in.get();
+                if (ch == '<') {
+                    state = START_LT;
+                } else if (!Base85.isWhitespace(ch)) {
+                    state = DATA;
+                    accept(ch, out);
+                }
+            } else if (state == START_LT) {
+                state = DATA;
+                if (ch == '~') {
+                    in.get();
+                } else {
+                    // the '<' was data after all, the current character is handled in the next iteration
+                    accept('<', out);
+                }
+            } else {
+                in.get();
+                accept(ch, out);
+            }
+        }
+        return state == END;
+    }
+
+    /**
+     * Flushes a trailing partial group, padding it with {@code u} as required by the encoding. Needs at most 3 bytes of
+     * room in {@code out}.
+     */
+    void finish(final ByteBuffer out) {
+        if (state == START_LT) {
+            accept('<', out);
+        }
+        state = END;
+        if (count > 1) {
+            final int bytes = count - 1;
+            for (; count < 5; count++) {
+                group = group * 85L + 84L;
+            }
+            for (int k = 0; k < bytes; k++) {
+                out.put((byte) (group >> 24 - 8 * k));
+            }
+        }
+        group = 0;
+        count = 0;
+    }
+
+    boolean isFinished() {
+        return state == END;
+    }
+
+    private void accept(final int ch, final ByteBuffer out) {
+        final int t = Base85.TABLE[ch];
+        if (t >= 0) {
+            group = group * 85L + t;
+            if (++count == 5) {
+                out.putInt((int) group);
+                group = 0;
+                count = 0;
+            }
+        } else if (t == Base85.END) {
+            state = END;
+        } else if (t != Base85.IGNORE && count == 0) {
+            out.putInt(Base85.SHORTCUTS[-3 - t]);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package fs.tdo;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes a Base85 encoded stream on the fly. Only one chunk of encoded and one chunk of decoded data is held in
+ * memory at any time, regardless of the size of the payload.
+ */
+public class Base85InputStream extends FilterInputStream {
+    static final int DEFAULT_CHUNK_SIZE = 8192;
+
+    private final Base85Decoder decoder = new Base85Decoder();
+    private final ByteBuffer encoded;
+    private final ByteBuffer decoded;
+
+    public Base85InputStream(final InputStream in) {
+        this(in, DEFAULT_CHUNK_SIZE);
+    }
+
+    public Base85InputStream(final InputStream in, final int chunkSize) {
+        super(in);
+        if (chunkSize < 5) {
+            throw new IllegalArgumentException("Chunk size must be at least 5, was " + chunkSize);
+        }
+        encoded = ByteBuffer.allocate(chunkSize).flip();
+        decoded = ByteBuffer.allocate(chunkSize).flip();
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!fill()) {
+            return -1;
+        }
+        return decoded.get() & 0xff;
+    }
+
+    @Override
+    public int read(final byte[] b, final int off, final int len) throws IOException {
+        if (len == 0) {
+            return 0;
+        }
+        if (!fill()) {
+            return -1;
+        }
+        final int n = Math.min(len, decoded.remaining());
+        decoded.get(b, off, n);
+        return n;
+    }
+
+    @Override
+    public long skip(final long n) throws IOException {
+        long skipped = 0;
+        while (skipped < n && fill()) {
+            final int step = (int) Math.min(n - skipped, decoded.remaining());
+            decoded.position(decoded.position() + step);
+            skipped += step;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() {
+        return decoded.remaining();
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public synchronized void mark(final int readlimit) {
+    }
+
+    @Override
+    public synchronized void reset() throws IOException {
+        throw new IOException("mark/reset not supported");
+    }
+
+    /**
+     * Makes sure there is decoded data available.
+     *
+     * @return {@code false} at the end of the decoded stream
+     */
+    private boolean fill() throws IOException {
+        if (decoded.hasRemaining()) {
+            return true;
+        }
+        decoded.clear();
+        while (decoded.position() == 0 && !decoder.isFinished()) {
+            if (!encoded.hasRemaining()) {
+                encoded.clear();
+                final int n = in.read(encoded.array(), 0, encoded.capacity());
+                if (n < 0) {
+                    encoded.limit(0);
+                    decoder.finish(decoded);
+                    break;
+                }
+                encoded.limit(n);
+            }
+            if (decoder.decode(encoded, decoded)) {
+                decoder.finish(decoded);
+            }
+        }
+        decoded.flip();
+        return decoded.hasRemaining();
+    }
+}
@@ -0,0 +1,146 @@
+package fs.tdo;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+
+/**
+ * Per-byte transformations of the layers. They run on the {@code jdk.incubator.vector} API when the JVM was started
+ * with {@code --add-modules jdk.incubator.vector} and the vector backend was built (it needs a JDK 17 build, see the
+ * {@code vector} profile), else eight bytes per step in a {@code long} (SWAR).
+ */
+final class ByteKernels {
+    /**
+     * Set to {@code true} to use the SWAR kernels even if the vector API is available.
+     */
+    static final String SCALAR_PROPERTY = "fs.tdo.scalar";
+    /**
+     * Bytes an {@link #expandKey expanded key} reaches past the key: one step of the widest kernel, a 512-bit vector.
+     */
+    static final int KEY_PADDING = 64;
+    static final Backend BACKEND = backend();
+
+    private ByteKernels() {
+    }
+
+    /**
+     * Layer1: flips every second bit and rotates each byte one position to the right, in place.
+     */
+    static void flipAndRotate(final byte[] data, final int from, final int to) {
+        BACKEND.flipAndRotate(data, from, to);
+    }
+
+    /**
+     * Layer3: XORs {@code data[from..to)} in place with a cycling key of {@code keyLength} bytes, where
+     * {@code data[from]} is at position {@code keyOffset} of the key stream.
+     *
+     * @param expandedKey the key as returned by {@link #expandKey}
+     */
+    static void xor(final byte[] data, final int from, final int to, final byte[] expandedKey, final int keyLength,
+        final long keyOffset) {
+        BACKEND.xor(data, from, to, expandedKey, keyLength, keyOffset);
+    }
+
+    /**
+     * Layer2: counts the bytes with an even number of '1' bits, which are the bytes with a correct parity bit.
+     */
+    static int countEvenParity(final byte[] data, final int from, final int to) {
+        return BACKEND.countEvenParity(data, from, to);
+    }
+
+    /**
+     * The key for {@link #xor}, built once per key: the key repeated to {@link #KEY_PADDING} bytes past its end, so
+     * that any {@code KEY_PADDING} consecutive key stream bytes can be read in one step.
+     */
+    static byte[] expandKey(final byte[] key) {
+        final byte[] expanded = new byte[key.length + KEY_PADDING];
+        for (int k = 0; k < expanded.length; k++) {
+            expanded[k] = key[k % key.length];
+        }
+        return expanded;
+    }
+
+    /*
+     * The vector backend is compiled separately for Java 17 and only loaded if its module is there, so a JVM without
+     * it never sees its class file.
+     */
+    private static Backend backend() {
+        if (!Boolean.getBoolean(SCALAR_PROPERTY)
+            && ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            try {
+                return (Backend) Class.forName("fs.tdo.VectorKernels").getDeclaredConstructor().newInstance();
+            } catch (ReflectiveOperationException | LinkageError | UnsupportedOperationException e) {
+                // not built, or no vector shape worth using
+            }
+        }
+        return new Swar();
+    }
+
+    /**
+     * An implementation of the kernels, see the methods of {@link ByteKernels}.
+     */
+    interface Backend {
+        void flipAndRotate(byte[] data, int from, int to);
+
+        void xor(byte[] data, int from, int to, byte[] expandedKey, int keyLength, long keyOffset);
+
+        int countEvenParity(byte[] data, int from, int to);
+    }
+
+    /**
+     * The loads and stores go through a byte array view {@link VarHandle}, which the JIT compiles to plain unaligned
+     * 64-bit memory accesses.
+     */
+    static final class Swar implements Backend {
+        private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class,
+            ByteOrder.BIG_ENDIAN);
+        private static final long ONES = 0x0101010101010101L;
+
+        @Override
+        public void flipAndRotate(final byte[] data, final int from, final int to) {
+            int i = from;
+            for (; i + 8 <= to; i += 8) {
+                final long flipped = (long) LONGS.get(data, i) ^ 0x5555555555555555L;
+                LONGS.set(data, i, flipped >>> 1 & 0x7f7f7f7f7f7f7f7fL | flipped << 7 & 0x8080808080808080L);
+            }
+            for (; i < to; i++) {
+                final int flipped = data[i] & 0xff ^ 0x55;
+                data[i] = (byte) (flipped >>> 1 | flipped << 7);
+            }
+        }
+
+        @Override
+        public void xor(final byte[] data, final int from, final int to, final byte[] expanded, final int keyLength,
+            final long keyOffset) {
+            int k = (int) (keyOffset % keyLength);
+            int i = from;
+            for (; i + 8 <= to; i += 8) {
+                LONGS.set(data, i, (long) LONGS.get(data, i) ^ (long) LONGS.get(expanded, k));
+                k += 8;
+                while (k >= keyLength) {
+                    k -= keyLength;
+                }
+            }
+            for (; i < to; i++) {
+                data[i] ^= expanded[k++];
+            }
+        }
+
+        @Override
+        public int countEvenParity(final byte[] data, final int from, final int to) {
+            int count = 0;
+            int i = from;
+            for (; i + 8 <= to; i += 8) {
+                long x = (long) LONGS.get(data, i);
+                x ^= x >>> 4;
+                x ^= x >>> 2;
+                x ^= x >>> 1;
+                count += 8 - Long.bitCount(x & ONES);
+            }
+            for (; i < to; i++) {
+                count += ~Integer.bitCount(data[i] & 0xff) & 1;
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package fs.tdo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Connects two {@link Stage}s running on different threads. The writing side collects bytes into chunks and hands
+ * them over through a bounded queue, so a fast producer blocks once {@code capacity} chunks are waiting.
+ */
+final class ChunkPipe {
+    private static final byte[] EOF = new byte[0];
+
+    private final BlockingQueue<byte[]> queue;
+    private final int chunkSize;
+    final OutputStream out;
+    final InputStream in;
+
+    ChunkPipe(int chunkSize, int capacity) {
+        this.chunkSize = chunkSize;
+        this.queue = new ArrayBlockingQueue<>(capacity);
+        this.out = new Sink();
+        this.in = new Source();
+    }
+
+    private void put(byte[] chunk) throws IOException {
+        try {
+            queue.put(chunk);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Pipeline interrupted");
+        }
+    }
+
+    private byte[] take() throws IOException {
+        try {
+            return queue.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Pipeline interrupted");
+        }
+    }
+
+    private final class Sink extends OutputStream {
+        private byte[] buffer = new byte[chunkSize];
+        private int count;
+        private boolean closed;
+
+        @Override
+        public void write(int b) throws IOException {
+            if (count == buffer.length) {
+                flushChunk();
+            }
+            buffer[count++] = (byte) b;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                if (count == buffer.length) {
+                    flushChunk();
+                }
+                final int n = Math.min(len, buffer.length - count);
+                System.arraycopy(b, off, buffer, count, n);
+                count += n;
+                off += n;
+                len -= n;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (!closed) {
+                closed = true;
+                if (count > 0) {
+                    flushChunk();
+                }
+                put(EOF);
+            }
+        }
+
+        private void flushChunk() throws IOException {
+            final byte[] chunk = count == buffer.length ? buffer : Arrays.copyOf(buffer, count);
+            put(chunk);
+            buffer = new byte[chunkSize];
+            count = 0;
+        }
+    }
+
+    private final class Source extends InputStream {
+        private byte[] chunk;
+        private int pos;
+
+        @Override
+        public int read() throws IOException {
+            if (!fill()) {
+                return -1;
+            }
+            return chunk[pos++] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int n = Math.min(len, chunk.length - pos);
+            System.arraycopy(chunk, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            return chunk == null ? 0 : chunk.length - pos;
+        }
+
+        private boolean fill() throws IOException {
+            if (chunk == EOF) {
+                return false;
+            }
+            if (chunk == null || pos == chunk.length) {
+                chunk = take();
+                pos = 0;
+            }
+            return chunk != EOF;
+        }
+    }
+}
@@ -0,0 +1,101 @@
+package fs.tdo;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Per-thread {@link Cipher}s: {@code Cipher.getInstance} looks the transformation up in every provider, so each thread
+ * keeps one cipher per transformation. A cached cipher lives as long as its thread, so it is {@link #clear cleared}
+ * after every use, else it would keep the thread's last key reachable.
+ *
+ * <p>The segmented decryption of {@link AesCtr} and {@link AesCbc} is here as well: both modes can start decrypting
+ * at any block, given the right cipher for it.
+ */
+final class Ciphers {
+    private static final Key ZERO_KEY = new SecretKeySpec(new byte[16], "AES");
+
+    private Ciphers() {
+    }
+
+    static ThreadLocal<Cipher> cache(final String transformation) {
+        return ThreadLocal.withInitial(() -> {
+            try {
+                return Cipher.getInstance(transformation);
+            } catch (GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+    }
+
+    /**
+     * Replaces the key of an AES {@code cipher}, and its IV if it has one, with zeros.
+     */
+    static void clear(final Cipher cipher) {
+        try {
+            if (cipher.getIV() == null) {
+                cipher.init(Cipher.ENCRYPT_MODE, ZERO_KEY);
+            } else {
+                cipher.init(Cipher.ENCRYPT_MODE, ZERO_KEY, new IvParameterSpec(new byte[cipher.getBlockSize()]));
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The cipher for the segment that starts {@code offset} bytes into the input, set up to decrypt from there.
+     */
+    @FunctionalInterface
+    interface SegmentCipher {
+        Cipher at(int offset) throws GeneralSecurityException;
+    }
+
+    /**
+     * Decrypts the remaining bytes of {@code src} into {@code dst} in segments of {@code size} bytes, concurrently on
+     * {@code pool} if there is more than one segment, else on the calling thread. The ciphers are cleared after their
+     * segment. The positions of both buffers are not moved.
+     */
+    static void decrypt(final ByteBuffer src, final ByteBuffer dst, final int size, final ForkJoinPool pool,
+        final SegmentCipher ciphers) throws GeneralSecurityException {
+        final int length = src.remaining();
+        final int count = (length + size - 1) / size;
+        if (count <= 1) {
+            decrypt(src, dst, 0, length, ciphers);
+            return;
+        }
+        try {
+            Parallel.forEach(pool, count, segment -> {
+                try {
+                    final int from = segment * size;
+                    decrypt(src, dst, from, from + Math.min(size, length - from), ciphers);
+                } catch (GeneralSecurityException e) {
+                    throw new IllegalStateException(e);
+                }
+            });
+        } catch (IllegalStateException e) {
+            if (e.getCause() instanceof GeneralSecurityException) {
+                throw (GeneralSecurityException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    private static void decrypt(final ByteBuffer src, final ByteBuffer dst, final int from, final int to,
+        final SegmentCipher ciphers) throws GeneralSecurityException {
+        final ByteBuffer in = src.duplicate();
+        in.position(src.position() + from).limit(src.position() + to);
+        final ByteBuffer out = dst.duplicate();
+        out.position(dst.position() + from);
+        final Cipher cipher = ciphers.at(from);
+        try {
+            cipher.doFinal(in, out);
+        } finally {
+            clear(cipher);
+        }
+    }
+}
@@ -0,0 +1,223 @@
+package fs.tdo;
+
+import fs.tdo.layer4.DropReason;
+import fs.tdo.layer4.Flow;
+import fs.tdo.layer4.FlowTable;
+import fs.tdo.layer4.FragmentReassembler;
+import fs.tdo.layer4.PacketFilter;
+import fs.tdo.layer4.PacketStatistics;
+import fs.tdo.layer4.PacketView;
+import fs.tdo.layer4.PcapReader;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Splits layer 4 packets into flows by 5-tuple and writes the UDP payloads of every flow to a sink of its own, so one
+ * pass over the packets extracts every stream. Packets are checked like in {@link Layer4}, with a filter that decides
+ * which flows are of interest.
+ */
+final class FlowDemux {
+    /* In packets. */
+    private static final int MIN_CHUNK_SIZE = 256;
+
+    private FlowDemux() {
+    }
+
+    /**
+     * Opens the output of a flow. Called once per flow, the stream is closed when the flow has been written.
+     */
+    @FunctionalInterface
+    interface Sinks {
+        OutputStream open(Flow flow) throws IOException;
+    }
+
+    /**
+     * What was written for a flow.
+     */
+    static final class Result {
+        final Flow flow;
+        long packets;
+        long bytes;
+
+        Result(Flow flow) {
+            this.flow = flow;
+        }
+    }
+
+    /**
+     * Checks the packets concurrently like
+     * {@link Layer4#solve(byte[], PacketFilter, PacketStatistics, ForkJoinPool, int)}, assigns the accepted datagrams
+     * to flows in packet order, then writes the flows concurrently, one task per flow.
+     *
+     * @return the flows in the order of their first packet
+     */
+    static List<Result> demux(final byte[] input, final PacketFilter filter, final PacketStatistics statistics,
+        final Sinks sinks, final ForkJoinPool pool) throws IOException {
+        final long start = System.nanoTime();
+        final int[] offsets = Layer4.boundaries(input, statistics);
+        final int count = offsets.length;
+        final int chunkSize = Math.max(MIN_CHUNK_SIZE, count / (pool.getParallelism() * 4) + 1);
+        final int chunkCount = (count + chunkSize - 1) / chunkSize;
+        // -1 for fragments, -2 for rejected packets, else accepted
+        final int[] lengths = new int[count];
+        Parallel.forEach(pool, chunkCount, chunk -> {
+            final PacketView packet = new PacketView(ByteBuffer.wrap(input));
+            for (int k = chunk * chunkSize; k < Math.min(count, (chunk + 1) * chunkSize); k++) {
+                packet.moveTo(offsets[k]);
+                lengths[k] = packet.isFragment() ? -1
+                    : Layer4.accept(packet, filter, statistics) ? packet.payloadLength() : -2;
+            }
+        });
+
+        final FlowTable table = new FlowTable();
+        final List<Payloads> flows = new ArrayList<>();
+        final PacketView packet = new PacketView(ByteBuffer.wrap(input));
+        final FragmentReassembler reassembler = new FragmentReassembler();
+        // payloads of reassembled datagrams, which do not exist in the input
+        byte[] spill = new byte[0];
+        int spillLength = 0;
+        for (int k = 0; k < count; k++) {
+            if (lengths[k] == -2) {
+                continue;
+            }
+            final PacketView datagram = lengths[k] >= 0
+                ? packet.moveTo(offsets[k])
+                : Layer4.datagram(packet.moveTo(offsets[k]), reassembler, k, statistics);
+            if (datagram == null || lengths[k] == -1 && !Layer4.accept(datagram, filter, statistics)) {
+                continue;
+            }
+            final int id = table.flowOf(datagram);
+            if (id == flows.size()) {
+                flows.add(new Payloads(table.flow(id)));
+            }
+            if (lengths[k] >= 0) {
+                flows.get(id).add(datagram.payloadOffset(), datagram.payloadLength());
+            } else {
+                final int length = datagram.payloadLength();
+                if (spillLength + length > spill.length) {
+                    spill = Arrays.copyOf(spill, Math.max(spill.length * 2, spillLength + length));
+                }
+                datagram.copyPayload(spill, spillLength);
+                flows.get(id).add(-1 - spillLength, length);
+                spillLength += length;
+            }
+        }
+        Layer4.finish(reassembler, input.length, start, statistics);
+
+        final byte[] reassembled = spill;
+        final Payloads[] work = flows.toArray(new Payloads[0]);
+        try {
+            Parallel.forEach(pool, work, work.length, flow -> {
+                try {
+                    flow.write(input, reassembled, sinks);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        final List<Result> results = new ArrayList<>(work.length);
+        for (Payloads flow : work) {
+            results.add(flow.result);
+        }
+        return results;
+    }
+
+    /**
+     * Demultiplexes a capture in a single sequential pass, writing each payload as soon as its packet is read.
+     *
+     * @return the flows in the order of their first packet
+     */
+    static List<Result> demux(final PcapReader in, final PacketFilter filter, final PacketStatistics statistics,
+        final Sinks sinks) throws IOException {
+        final byte[] payload = new byte[65535];
+        final FlowTable table = new FlowTable();
+        final List<Result> results = new ArrayList<>();
+        final List<OutputStream> outputs = new ArrayList<>();
+        final FragmentReassembler reassembler = new FragmentReassembler();
+        final long start = System.nanoTime();
+        long processed = 0;
+        try {
+            for (long index = 0; in.next(); index++) {
+                processed += in.capturedLength();
+                if (!in.isComplete()) {
+                    statistics.drop(DropReason.TRUNCATED, in.capturedLength());
+                    continue;
+                }
+                final PacketView datagram = Layer4.datagram(in.view(), reassembler, index, statistics);
+                if (datagram == null || !Layer4.accept(datagram, filter, statistics)) {
+                    continue;
+                }
+                final int id = table.flowOf(datagram);
+                if (id == results.size()) {
+                    results.add(new Result(table.flow(id)));
+                    outputs.add(sinks.open(table.flow(id)));
+                }
+                final Result result = results.get(id);
+                datagram.copyPayload(payload, 0);
+                outputs.get(id).write(payload, 0, datagram.payloadLength());
+                result.packets++;
+                result.bytes += datagram.payloadLength();
+            }
+            Layer4.finish(reassembler, processed, start, statistics);
+        } finally {
+            IOException failure = null;
+            for (OutputStream out : outputs) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    failure = failure == null ? e : failure;
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+        return results;
+    }
+
+    /**
+     * The payloads of one flow: where they start in the input, or in the spill buffer for negative starts, and how
+     * long they are.
+     */
+    private static final class Payloads {
+        final Result result;
+        int[] starts = new int[8];
+        int[] lengths = new int[8];
+
+        Payloads(Flow flow) {
+            this.result = new Result(flow);
+        }
+
+        void add(final int start, final int length) {
+            final int i = (int) result.packets;
+            if (i == starts.length) {
+                starts = Arrays.copyOf(starts, i * 2);
+                lengths = Arrays.copyOf(lengths, i * 2);
+            }
+            starts[i] = start;
+            lengths[i] = length;
+            result.packets++;
+            result.bytes += length;
+        }
+
+        void write(final byte[] input, final byte[] spill, final Sinks sinks) throws IOException {
+            try (OutputStream out = sinks.open(result.flow)) {
+                for (int i = 0; i < result.packets; i++) {
+                    if (starts[i] >= 0) {
+                        out.write(input, starts[i], lengths[i]);
+                    } else {
+                        out.write(spill, -1 - starts[i], lengths[i]);
+                    }
+                }
+            }
+        }
+    }
+}
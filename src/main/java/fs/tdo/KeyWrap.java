@@ -0,0 +1,113 @@
+package fs.tdo;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.security.Key;
+import java.security.MessageDigest;
+import java.security.Provider;
+import java.util.Arrays;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+
+/**
+ * AES key unwrap as specified in RFC 3394. By default it is computed here on top of the JDK's own AES, which the JIT
+ * replaces with the AES instructions of the CPU. BouncyCastle, whose provider takes a while to load and initialise,
+ * is only loaded when {@link Implementation#BOUNCY_CASTLE} is selected.
+ */
+final class KeyWrap {
+    /**
+     * Who unwraps keys.
+     */
+    enum Implementation {
+        JDK, BOUNCY_CASTLE;
+
+        /**
+         * {@code jdk} or {@code bc}.
+         */
+        static Implementation of(final String name) {
+            switch (name) {
+                case "jdk":
+                    return JDK;
+                case "bc":
+                    return BOUNCY_CASTLE;
+                default:
+                    throw new IllegalArgumentException("Unknown crypto implementation: " + name);
+            }
+        }
+    }
+
+    private static final int SEMIBLOCK = 8;
+    /* AES/ECB/NoPadding is the plain block cipher, of which getInstance is not cheap. */
+    private static final ThreadLocal<Cipher> BLOCK_CIPHERS = Ciphers.cache("AES/ECB/NoPadding");
+
+    private KeyWrap() {
+    }
+
+    /**
+     * Unwraps an AES key with {@code implementation}.
+     */
+    static Key unwrap(final Implementation implementation, final byte[] wrappedKey, final byte[] kek, final byte[] iv)
+        throws GeneralSecurityException {
+        return implementation == Implementation.BOUNCY_CASTLE
+            ? unwrapBouncyCastle(wrappedKey, kek, iv)
+            : unwrapJdk(wrappedKey, kek, iv);
+    }
+
+    /**
+     * The index based unwrapping of RFC 3394, section 2.2.2: six rounds over the semiblocks, each one block
+     * decryption, and finally the integrity check of the recovered IV.
+     */
+    static Key unwrapJdk(final byte[] wrappedKey, final byte[] kek, final byte[] iv) throws GeneralSecurityException {
+        if (wrappedKey.length % SEMIBLOCK != 0 || wrappedKey.length < 3 * SEMIBLOCK) {
+            throw new InvalidKeyException("Wrapped key has " + wrappedKey.length + " bytes");
+        }
+        if (iv.length != SEMIBLOCK) {
+            throw new InvalidKeyException("IV has " + iv.length + " bytes");
+        }
+        final int n = wrappedKey.length / SEMIBLOCK - 1;
+        final Cipher cipher = BLOCK_CIPHERS.get();
+        cipher.init(Cipher.DECRYPT_MODE, new SecretKeySpec(kek, "AES"));
+        // A in the first semiblock, R[1..n] after it
+        final byte[] r = wrappedKey.clone();
+        final byte[] block = new byte[2 * SEMIBLOCK];
+        try {
+            for (int j = 5; j >= 0; j--) {
+                for (int i = n; i >= 1; i--) {
+                    long t = (long) n * j + i;
+                    System.arraycopy(r, 0, block, 0, SEMIBLOCK);
+                    for (int k = SEMIBLOCK - 1; k >= 0; k--, t >>>= 8) {
+                        block[k] ^= (byte) t;
+                    }
+                    System.arraycopy(r, i * SEMIBLOCK, block, SEMIBLOCK, SEMIBLOCK);
+                    cipher.doFinal(block, 0, block.length, block, 0);
+                    System.arraycopy(block, 0, r, 0, SEMIBLOCK);
+                    System.arraycopy(block, SEMIBLOCK, r, i * SEMIBLOCK, SEMIBLOCK);
+                }
+            }
+        } finally {
+            Ciphers.clear(cipher);
+            // the last block holds half of the unwrapped key
+            Arrays.fill(block, (byte) 0);
+        }
+        if (!MessageDigest.isEqual(iv, Arrays.copyOf(r, SEMIBLOCK))) {
+            throw new InvalidKeyException("Integrity check of the wrapped key failed");
+        }
+        return new SecretKeySpec(r, SEMIBLOCK, n * SEMIBLOCK, "AES");
+    }
+
+    static Key unwrapBouncyCastle(final byte[] wrappedKey, final byte[] kek, final byte[] iv)
+        throws GeneralSecurityException {
+        final Cipher cipher = Cipher.getInstance("AESWrap", BouncyCastle.PROVIDER);
+        cipher.init(Cipher.UNWRAP_MODE, new SecretKeySpec(kek, "AES"), new IvParameterSpec(iv));
+        return cipher.unwrap(wrappedKey, "AES", Cipher.SECRET_KEY);
+    }
+
+    /**
+     * Holds the provider, so that BouncyCastle is only loaded when it is used.
+     */
+    private static final class BouncyCastle {
+        static final Provider PROVIDER = new BouncyCastleProvider();
+    }
+}
@@ -1,5 +1,7 @@
 package fs.tdo;
 
+import java.nio.ByteBuffer;
+
 /**
  * Decode Base85.
  */
@@ -9,8 +11,12 @@ public class Layer0 extends Solver {
         super(payload);
     }
 
+    Layer0(ByteBuffer payload) {
+        super(payload);
+    }
+
     @Override
     byte[] solve() {
         return payload;
     }
-}
\ No newline at end of file
+}
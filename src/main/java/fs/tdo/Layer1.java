@@ -1,5 +1,9 @@
 package fs.tdo;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
 /**
  * Apply the following operations to each byte:
  *
@@ -8,27 +12,45 @@ package fs.tdo;
  */
 public class Layer1 extends Solver {
     protected Layer1(byte[] payload) {
-        super(payload);
+        super(payload, envelope -> new Transform());
     }
 
+    /**
+     * The operations are applied by the Base85 decoder, see {@link Transform}.
+     */
     @Override
     byte[] solve() {
-        final byte[] result = new byte[payload.length];
-        for (int i = 0; i < payload.length; i++) {
-            final int unsigned = Byte.toUnsignedInt(payload[i]);
-            result[i] = (byte) rotateRight(flipEverySecondBit(unsigned));
-        }
-        return result;
+        return payload;
+    }
+
+    /**
+     * Applies both operations to the four bytes of {@code word} at once.
+     */
+    static int transformWord(final int word) {
+        final int flipped = word ^ 0x55555555;
+        return flipped >>> 1 & 0x7f7f7f7f | flipped << 7 & 0x80808080;
     }
 
-    private int flipEverySecondBit(final int b) {
-        return b ^ Integer.parseInt("01010101", 2);
+    /**
+     * Both operations as the Base85 decoder applies them, with {@link ByteKernels} for batches of decoded bytes.
+     */
+    static final class Transform implements WordTransform {
+        @Override
+        public int apply(final int word, final long offset) {
+            return transformWord(word);
+        }
+
+        @Override
+        public void apply(final byte[] data, final int from, final int to, final long offset) {
+            ByteKernels.flipAndRotate(data, from, to);
+        }
     }
 
-    private int rotateRight(final int b) {
-        int lastBit = b & 1;
-        lastBit = lastBit << 7;
-        int result = b >> 1;
-        return result | lastBit;
+    static void stream(final InputStream in, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[8192];
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            ByteKernels.flipAndRotate(buffer, 0, n);
+            out.write(buffer, 0, n);
+        }
     }
 }
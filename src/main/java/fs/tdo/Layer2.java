@@ -1,6 +1,9 @@
 package fs.tdo;
 
-import java.util.BitSet;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * For each byte of the payload, the seven most significant bits carry data, and the least significant bit is the
@@ -11,37 +14,179 @@ import java.util.BitSet;
  * count is odd, the parity bit should be '1'. If the count is even, the parity bit should be '0'.
  */
 public class Layer2 extends Solver {
+    /**
+     * Payloads smaller than this are packed on the calling thread.
+     */
+    public static final int PARALLEL_THRESHOLD = 1 << 20;
+    private static final int MIN_CHUNK_SIZE = 1 << 16;
+    /*
+     * The seven data bits of every byte with a correct parity bit, -1 for bytes with an incorrect one.
+     */
+    private static final byte[] DATA = new byte[256];
+
+    static {
+        for (int val = 0; val < 256; val++) {
+            final int data = val >> 1;
+            DATA[val] = Integer.bitCount(data) % 2 == (val & 1) ? (byte) data : -1;
+        }
+    }
+
     protected Layer2(byte[] payload) {
         super(payload);
     }
 
     @Override
     byte[] solve() {
-        final StringBuilder bits = new StringBuilder();
-        for (final byte element : payload) {
-            final int val = Byte.toUnsignedInt(element);
-            final int parity = val & 1;
-            if (isValid(val >> 1, parity)) {
-                int checkBit = 0b10000000;
-                for (int k = 0; k < 7; k++) {
-                    final boolean bitVal = (val & checkBit) != 0;
-                    bits.append(bitVal ? 1 : 0);
-                    checkBit = checkBit >> 1;
-                }
-            }
+        return solve(payload, ForkJoinPool.commonPool());
+    }
+
+    static byte[] solve(final byte[] input, final ForkJoinPool pool) {
+        if (input.length < PARALLEL_THRESHOLD) {
+            final Chunk chunk = new Chunk(0, input.length);
+            chunk.countValid(input);
+            final byte[] result = new byte[(int) (chunk.valid * 7 / 8)];
+            chunk.pack(input, result);
+            return result;
         }
-        final byte[] result = new byte[bits.length() / 8];
-        int resultIndex = -1;
+        final int chunkSize = Math.max(MIN_CHUNK_SIZE, input.length / (pool.getParallelism() * 4) + 1);
+        return solve(input, pool, chunkSize);
+    }
 
-        for (int i = 0; i < bits.length(); i = i + 8) {
-            result[++resultIndex] = (byte) Integer.parseInt(bits.substring(i, i + 8), 2);
+    /*
+     * Counts the valid bytes of each chunk concurrently, turns the counts into bit offsets with a prefix sum and packs
+     * the chunks concurrently. Output bytes that straddle two chunks are not written by either chunk; their parts are
+     * combined afterwards.
+     */
+    static byte[] solve(final byte[] input, final ForkJoinPool pool, final int chunkSize) {
+        final int chunkCount = (int) (((long) input.length + chunkSize - 1) / chunkSize);
+        final Chunk[] chunks = new Chunk[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            final int from = i * chunkSize;
+            chunks[i] = new Chunk(from, (int) Math.min((long) from + chunkSize, input.length));
+        }
+        Parallel.forEach(pool, chunks, chunkCount, c -> c.countValid(input));
+
+        long bits = 0;
+        for (Chunk chunk : chunks) {
+            chunk.startBit = bits;
+            bits += chunk.valid * 7;
+        }
+        final byte[] result = new byte[(int) (bits / 8)];
+        Parallel.forEach(pool, chunks, chunkCount, c -> c.pack(input, result));
+        for (Chunk chunk : chunks) {
+            chunk.mergeEdges(result);
         }
         return result;
     }
 
-    private boolean isValid(final int data, final int parity) {
-        final BitSet bits = BitSet.valueOf(new byte[] {(byte) data});
-        final boolean even = bits.cardinality() % 2 == 0;
-        return even && parity == 0 || !even && parity == 1;
+    static void stream(final InputStream in, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[8192];
+        final byte[] packed = new byte[buffer.length];
+        int bits = 0;
+        int bitCount = 0;
+        for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+            int count = 0;
+            for (int i = 0; i < n; i++) {
+                final int data = DATA[buffer[i] & 0xff];
+                if (data >= 0) {
+                    bits = bits << 7 | data;
+                    bitCount += 7;
+                    if (bitCount >= 8) {
+                        bitCount -= 8;
+                        packed[count++] = (byte) (bits >> bitCount);
+                        bits &= (1 << bitCount) - 1;
+                    }
+                }
+            }
+            out.write(packed, 0, count);
+        }
+    }
+
+    private static final class Chunk {
+        final int from;
+        final int to;
+        long valid;
+        long startBit;
+        /* Output bytes shared with the neighbouring chunks: index (or -1) and this chunk's bits of it. */
+        int headIndex = -1;
+        int head;
+        int tailIndex = -1;
+        int tail;
+
+        Chunk(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        void countValid(final byte[] input) {
+            valid = ByteKernels.countEvenParity(input, from, to);
+        }
+
+        /**
+         * Collects the data bits of up to eight bytes in a 64-bit accumulator and emits them as 7 output bytes at
+         * once.
+         */
+        void pack(final byte[] input, final byte[] out) {
+            int cursor = (int) (startBit >>> 3);
+            int accBits = (int) (startBit & 7);
+            long acc = 0;
+            int i = from;
+            if (accBits != 0) {
+                // the first output byte starts in the previous chunk
+                while (i < to && accBits < 8) {
+                    final int data = DATA[input[i++] & 0xff];
+                    if (data >= 0) {
+                        acc = acc << 7 | data;
+                        accBits += 7;
+                    }
+                }
+                if (accBits < 8) {
+                    tailIndex = cursor;
+                    tail = (int) (acc << 8 - accBits);
+                    return;
+                }
+                accBits -= 8;
+                headIndex = cursor++;
+                head = (int) (acc >>> accBits) & 0xff;
+                acc &= (1L << accBits) - 1;
+            }
+            while (i < to) {
+                final int data = DATA[input[i++] & 0xff];
+                if (data >= 0) {
+                    acc = acc << 7 | data;
+                    accBits += 7;
+                    if (accBits >= 56) {
+                        accBits -= 56;
+                        final long word = acc >>> accBits;
+                        out[cursor] = (byte) (word >>> 48);
+                        out[cursor + 1] = (byte) (word >>> 40);
+                        out[cursor + 2] = (byte) (word >>> 32);
+                        out[cursor + 3] = (byte) (word >>> 24);
+                        out[cursor + 4] = (byte) (word >>> 16);
+                        out[cursor + 5] = (byte) (word >>> 8);
+                        out[cursor + 6] = (byte) word;
+                        cursor += 7;
+                        acc &= (1L << accBits) - 1;
+                    }
+                }
+            }
+            while (accBits >= 8) {
+                accBits -= 8;
+                out[cursor++] = (byte) (acc >>> accBits);
+            }
+            if (accBits > 0) {
+                tailIndex = cursor;
+                tail = (int) (acc << 8 - accBits);
+            }
+        }
+
+        void mergeEdges(final byte[] out) {
+            if (headIndex >= 0) {
+                out[headIndex] |= (byte) head;
+            }
+            if (tailIndex >= 0 && tailIndex < out.length) {
+                out[tailIndex] |= (byte) tail;
+            }
+        }
     }
 }
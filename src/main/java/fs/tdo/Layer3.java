@@ -1,41 +1,101 @@
 package fs.tdo;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+
 /**
  * The payload has been encrypted by XOR'ing each byte with a secret, cycling key. The key is 32 bytes of random data,
  * which I'm not going to give you. You will need to use your hacker skills to discover what the key is, in order to
  * decrypt the payload.
  */
 public class Layer3 extends Solver {
-    private static final int keyLength = 32;
+    /**
+     * Number of bytes from the start of the payload used to recover the key.
+     */
+    static final int SAMPLE_SIZE = 1 << 20;
 
     protected Layer3(byte[] payload) {
-        super(payload);
+        super(payload, envelope -> {
+            final byte[] sample = Base85.decodePrefix(envelope, SAMPLE_SIZE);
+            return xorTransform(findKey(sample, sample.length));
+        });
     }
 
+    /**
+     * The key is recovered from the start of the payload before decoding, and the decoder decrypts while decoding.
+     */
     @Override
     byte[] solve() {
-        final byte[] key = findKey(payload);
-        return decrypt(payload, key);
+        return payload;
     }
 
-    private byte[] findKey(final byte[] input) {
-        final byte[] key = new byte[keyLength];
-        String decrypted = "==[ Layer 4/6: Network Traffic ]";
-        final byte[] knownStartBytes = decrypted.getBytes();
-        for (int i = 0; i < decrypted.length(); i++) {
-            final int a = Byte.toUnsignedInt(input[i]);
-            final int b = Byte.toUnsignedInt(knownStartBytes[i]);
-            key[i] = (byte) (a ^ b);
+    static void stream(final InputStream in, final OutputStream out) throws IOException {
+        final byte[] buffer = new byte[SAMPLE_SIZE];
+        int n = in.readNBytes(buffer, 0, buffer.length);
+        final byte[] key = findKey(buffer, n);
+        final byte[] expandedKey = ByteKernels.expandKey(key);
+        long offset = 0;
+        while (n >= 0) {
+            ByteKernels.xor(buffer, 0, n, expandedKey, key.length, offset);
+            out.write(buffer, 0, n);
+            offset += n;
+            n = in.read(buffer);
         }
-        return key;
     }
 
-    private byte[] decrypt(final byte[] input, final byte[] key) {
-        final byte[] result = new byte[input.length];
-        for (int i = 0; i < input.length; i++) {
-            final int b = Byte.toUnsignedInt(input[i]);
-            result[i] = (byte) (b ^ key[i % key.length]);
+    /**
+     * Neither the key nor any of the plaintext is known, so the key is recovered statistically, assuming the plaintext
+     * is ASCII text.
+     */
+    private static byte[] findKey(final byte[] input, final int length) {
+        return XorKeyRecovery.recoverKey(input, length, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * XORs each decoded group with the key bytes at its offset.
+     */
+    static WordTransform xorTransform(final byte[] key) {
+        return new XorTransform(key);
+    }
+
+    /**
+     * The XOR as the Base85 decoder applies it, with {@link ByteKernels} for batches of decoded bytes.
+     */
+    private static final class XorTransform implements WordTransform {
+        private final byte[] key;
+        private final byte[] expandedKey;
+        /* The key as words, if it is whole words: groups start at offsets divisible by 4, so each lines up with one. */
+        private final int[] keyWords;
+
+        XorTransform(final byte[] key) {
+            this.key = key;
+            this.expandedKey = ByteKernels.expandKey(key);
+            if (key.length % 4 == 0) {
+                keyWords = new int[key.length / 4];
+                ByteBuffer.wrap(key).asIntBuffer().get(keyWords);
+            } else {
+                keyWords = null;
+            }
+        }
+
+        @Override
+        public int apply(final int word, final long offset) {
+            if (keyWords != null) {
+                return word ^ keyWords[(int) ((offset >>> 2) % keyWords.length)];
+            }
+            int mask = 0;
+            for (int k = 0; k < 4; k++) {
+                mask = mask << 8 | key[(int) ((offset + k) % key.length)] & 0xff;
+            }
+            return word ^ mask;
+        }
+
+        @Override
+        public void apply(final byte[] data, final int from, final int to, final long offset) {
+            ByteKernels.xor(data, from, to, expandedKey, key.length, offset);
         }
-        return result;
     }
 }
@@ -1,8 +1,18 @@
 package fs.tdo;
 
-import fs.tdo.layer4.Packet;
-import java.io.ByteArrayOutputStream;
+import fs.tdo.layer4.DropReason;
+import fs.tdo.layer4.FragmentReassembler;
+import fs.tdo.layer4.PacketFilter;
+import fs.tdo.layer4.PacketStatistics;
+import fs.tdo.layer4.PacketView;
+import fs.tdo.layer4.PcapReader;
+import fs.tdo.layer4.PcapWriter;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * The payload for this layer is encoded as a stream of raw network data, as if the solution was being received over the
@@ -33,30 +43,305 @@ import java.io.IOException;
  * impossible to detect. Trust me.
  *
  * <p>The packets appear in the correct order. No reordering is necessary.
+ *
+ * <p>Fragmented datagrams are reassembled before they are checked, see {@link FragmentReassembler}. The addresses,
+ * port and protocol above are {@link PacketFilter#ONION}, other filters extract other UDP traffic. Every packet is
+ * counted in the {@link PacketStatistics} given to the solver, with the reason if it is dropped.
  */
 public class Layer4 extends Solver {
+    /**
+     * Payloads smaller than this are checked on the calling thread.
+     */
+    public static final int PARALLEL_THRESHOLD = 1 << 20;
+    /* In packets. */
+    private static final int MIN_CHUNK_SIZE = 256;
+
+    private final PacketFilter filter;
+    private final PacketStatistics statistics;
+
     protected Layer4(byte[] payload) {
+        this(payload, PacketFilter.ONION);
+    }
+
+    protected Layer4(byte[] payload, PacketFilter filter) {
+        this(payload, filter, new PacketStatistics());
+    }
+
+    protected Layer4(byte[] payload, PacketFilter filter, PacketStatistics statistics) {
         super(payload);
+        this.filter = filter;
+        this.statistics = statistics;
     }
 
     @Override
     byte[] solve() {
-        try (ByteArrayOutputStream outputStream = new ByteArrayOutputStream()) {
-            int i = 0;
-            while (i < payload.length) {
-                final Packet packet = new Packet(payload, i);
-                i += packet.getLength();
-                if (packet.isValid()) {
-                    outputStream.write(packet.udpPacket.getPayload());
+        return solve(payload, filter, statistics, ForkJoinPool.commonPool());
+    }
+
+    static byte[] solve(final byte[] input, final PacketFilter filter, final PacketStatistics statistics,
+        final ForkJoinPool pool) {
+        final long start = System.nanoTime();
+        if (input.length >= PARALLEL_THRESHOLD) {
+            final int[] offsets = boundaries(input, statistics);
+            final int chunkSize = Math.max(MIN_CHUNK_SIZE, offsets.length / (pool.getParallelism() * 4) + 1);
+            return solve(input, offsets, filter, statistics, pool, chunkSize, start);
+        }
+        final PacketView packet = new PacketView(ByteBuffer.wrap(input));
+        final FragmentReassembler reassembler = new FragmentReassembler();
+        // the accepted payloads together can never be longer than the input, reassembled or not
+        final byte[] result = new byte[input.length];
+        int length = 0;
+        int i = 0;
+        for (long index = 0; i < input.length; index++) {
+            final int totalLength = wholeLength(input, i);
+            if (totalLength < 0) {
+                statistics.drop(DropReason.TRUNCATED, input.length - i);
+                break;
+            }
+            packet.moveTo(i);
+            i += totalLength;
+            final PacketView datagram = datagram(packet, reassembler, index, statistics);
+            if (datagram != null && accept(datagram, filter, statistics)) {
+                datagram.copyPayload(result, length);
+                length += datagram.payloadLength();
+            }
+        }
+        finish(reassembler, input.length, start, statistics);
+        return Arrays.copyOf(result, length);
+    }
+
+    static byte[] solve(final byte[] input, final PacketFilter filter, final PacketStatistics statistics,
+        final ForkJoinPool pool, final int chunkSize) {
+        final long start = System.nanoTime();
+        return solve(input, boundaries(input, statistics), filter, statistics, pool, chunkSize, start);
+    }
+
+    /*
+     * Only finding where the packets start is sequential. The checksums and filters are checked for chunks of
+     * chunkSize packets concurrently, a prefix sum over the accepted payload lengths gives every payload its place in
+     * the result, and the payloads are copied concurrently. Fragments are handed to the reassembler in order during
+     * the prefix sum.
+     */
+    private static byte[] solve(final byte[] input, final int[] offsets, final PacketFilter filter,
+        final PacketStatistics statistics, final ForkJoinPool pool, final int chunkSize, final long start) {
+        final int count = offsets.length;
+        final int chunkCount = (int) (((long) count + chunkSize - 1) / chunkSize);
+        final Chunk[] chunks = new Chunk[chunkCount];
+        for (int i = 0; i < chunkCount; i++) {
+            final int from = i * chunkSize;
+            chunks[i] = new Chunk(from, (int) Math.min((long) from + chunkSize, count));
+        }
+        // payload length of every accepted whole datagram, 0 for rejected ones and -1 for fragments
+        final int[] lengths = new int[count];
+        Parallel.forEach(pool, chunks, chunkCount, c -> c.validate(input, offsets, filter, statistics, lengths));
+
+        final PacketView packet = new PacketView(ByteBuffer.wrap(input));
+        final FragmentReassembler reassembler = new FragmentReassembler();
+        final byte[] result = new byte[input.length];
+        final int[] starts = new int[count];
+        int length = 0;
+        for (int k = 0; k < count; k++) {
+            if (lengths[k] >= 0) {
+                starts[k] = length;
+                length += lengths[k];
+                continue;
+            }
+            final PacketView datagram = datagram(packet.moveTo(offsets[k]), reassembler, k, statistics);
+            if (datagram != null && accept(datagram, filter, statistics)) {
+                datagram.copyPayload(result, length);
+                length += datagram.payloadLength();
+            }
+        }
+        Parallel.forEach(pool, chunks, chunkCount, c -> c.copy(input, offsets, lengths, starts, result));
+        finish(reassembler, input.length, start, statistics);
+        return Arrays.copyOf(result, length);
+    }
+
+    /**
+     * Start of every whole packet, found by following the IPv4 total lengths. A last packet that the end of the
+     * payload cuts short is counted as {@link DropReason#TRUNCATED} in {@code statistics} and left out.
+     */
+    static int[] boundaries(final byte[] input, final PacketStatistics statistics) {
+        int[] offsets = new int[Math.max(16, input.length / 512)];
+        int count = 0;
+        int i = 0;
+        while (i < input.length) {
+            final int totalLength = wholeLength(input, i);
+            if (totalLength < 0) {
+                statistics.drop(DropReason.TRUNCATED, input.length - i);
+                break;
+            }
+            if (count == offsets.length) {
+                offsets = Arrays.copyOf(offsets, count * 2);
+            }
+            offsets[count++] = i;
+            i += totalLength;
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    /**
+     * The IPv4 total length of the packet at {@code offset}, checked before a {@link PacketView} reads any of it, or
+     * -1 if the input ends before the packet does.
+     */
+    static int wholeLength(final byte[] input, final int offset) {
+        final int left = input.length - offset;
+        if (left < 4) {
+            return -1;
+        }
+        final int totalLength = (input[offset + 2] & 0xff) << 8 | input[offset + 3] & 0xff;
+        if (totalLength < 20) {
+            throw new IllegalStateException("Invalid IPv4 total length " + totalLength + " at " + offset);
+        }
+        return totalLength <= left ? totalLength : -1;
+    }
+
+    /**
+     * Reads one packet at a time: the IPv4 total length is needed to know where it ends.
+     */
+    static void stream(final InputStream in, final OutputStream out) throws IOException {
+        stream(in, out, PacketFilter.ONION, new PacketStatistics());
+    }
+
+    static void stream(final InputStream in, final OutputStream out, final PacketFilter filter,
+        final PacketStatistics statistics) throws IOException {
+        final byte[] bytes = new byte[65535];
+        final byte[] payload = new byte[bytes.length];
+        final PacketView packet = new PacketView(ByteBuffer.wrap(bytes));
+        final FragmentReassembler reassembler = new FragmentReassembler();
+        final long start = System.nanoTime();
+        long processed = 0;
+        for (long index = 0; ; index++) {
+            final int first = in.read();
+            if (first < 0) {
+                finish(reassembler, processed, start, statistics);
+                return;
+            }
+            bytes[0] = (byte) first;
+            final int read = 1 + in.readNBytes(bytes, 1, 3);
+            final int totalLength = (bytes[2] & 0xff) << 8 | bytes[3] & 0xff;
+            if (read == 4 && totalLength < 20) {
+                throw new IllegalStateException("Invalid IPv4 total length " + totalLength);
+            }
+            final int length = read < 4 ? read : read + in.readNBytes(bytes, 4, totalLength - 4);
+            processed += length;
+            if (read < 4 || length < totalLength) {
+                // the last packet, cut short by the end of the payload
+                statistics.drop(DropReason.TRUNCATED, length);
+                finish(reassembler, processed, start, statistics);
+                return;
+            }
+            final PacketView datagram = datagram(packet.moveTo(0), reassembler, index, statistics);
+            if (datagram != null && accept(datagram, filter, statistics)) {
+                datagram.copyPayload(payload, 0);
+                out.write(payload, 0, datagram.payloadLength());
+            }
+        }
+    }
+
+    /**
+     * Extracts the payloads of the valid packets of a capture file. Accepted datagrams and rejected packets are also
+     * written to {@code accepted} and {@code rejected} if they are not {@code null}; fragments waiting for the rest of
+     * their datagram are neither.
+     */
+    static void stream(final PcapReader in, final OutputStream out, final PacketFilter filter,
+        final PacketStatistics statistics, final PcapWriter accepted, final PcapWriter rejected) throws IOException {
+        final byte[] payload = new byte[65535];
+        final FragmentReassembler reassembler = new FragmentReassembler();
+        final long start = System.nanoTime();
+        long processed = 0;
+        for (long index = 0; in.next(); index++) {
+            processed += in.capturedLength();
+            if (!in.isComplete()) {
+                statistics.drop(DropReason.TRUNCATED, in.capturedLength());
+                if (rejected != null) {
+                    rejected.write(in.packet(), in.originalPacketLength(), in.timestamp());
                 }
+                continue;
             }
-            if (i != payload.length) {
-                throw new IllegalStateException("Wrong number of bytes read, more bytes read than available. i: " + i);
+            final PacketView packet = in.view();
+            final PacketView datagram = datagram(packet, reassembler, index, statistics);
+            if (datagram != null && accept(datagram, filter, statistics)) {
+                datagram.copyPayload(payload, 0);
+                out.write(payload, 0, datagram.payloadLength());
+                if (accepted != null) {
+                    accepted.write(datagram, in.timestamp());
+                }
+            } else if (rejected != null && datagram != null) {
+                rejected.write(datagram, in.timestamp());
+            } else if (rejected != null && (packet.version() != 4 || !packet.validIpChecksum())) {
+                // a fragment the reassembler did not take
+                rejected.write(packet, in.timestamp());
             }
-            return outputStream.toByteArray();
-        } catch (IOException e) {
-            throw new RuntimeException(e);
         }
+        finish(reassembler, processed, start, statistics);
     }
 
+    private static final class Chunk {
+        final int from;
+        final int to;
+
+        Chunk(int from, int to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        void validate(final byte[] input, final int[] offsets, final PacketFilter filter,
+            final PacketStatistics statistics, final int[] lengths) {
+            final PacketView packet = new PacketView(ByteBuffer.wrap(input));
+            for (int k = from; k < to; k++) {
+                packet.moveTo(offsets[k]);
+                lengths[k] = packet.isFragment() ? -1 : accept(packet, filter, statistics) ? packet.payloadLength() : 0;
+            }
+        }
+
+        void copy(final byte[] input, final int[] offsets, final int[] lengths, final int[] starts,
+            final byte[] result) {
+            final PacketView packet = new PacketView(ByteBuffer.wrap(input));
+            for (int k = from; k < to; k++) {
+                if (lengths[k] > 0) {
+                    packet.moveTo(offsets[k]).copyPayload(result, starts[k]);
+                }
+            }
+        }
+    }
+
+    /**
+     * The packet itself if it is a whole datagram, the reassembled datagram if it is the last missing fragment of one,
+     * else {@code null}. Fragments with a broken IPv4 header are not offered to the reassembler.
+     */
+    static PacketView datagram(final PacketView packet, final FragmentReassembler reassembler, final long index,
+        final PacketStatistics statistics) {
+        if (!packet.isFragment()) {
+            return packet;
+        }
+        if (packet.version() != 4 || !packet.validIpChecksum()) {
+            statistics.drop(packet.version() != 4 ? DropReason.NOT_IPV4 : DropReason.BAD_IP_CHECKSUM,
+                packet.totalLength());
+            return null;
+        }
+        return reassembler.offer(packet, index);
+    }
+
+    /**
+     * Checks a whole datagram and counts it in {@code statistics}.
+     */
+    static boolean accept(final PacketView datagram, final PacketFilter filter, final PacketStatistics statistics) {
+        final DropReason reason = datagram.check(filter);
+        if (reason == null) {
+            statistics.accept(datagram.payloadLength());
+            return true;
+        }
+        statistics.drop(reason, datagram.totalLength());
+        return false;
+    }
+
+    /**
+     * Counts the datagrams the reassembler gave up on, and the throughput.
+     */
+    static void finish(final FragmentReassembler reassembler, final long processed, final long start,
+        final PacketStatistics statistics) {
+        statistics.drop(DropReason.REASSEMBLY_FAILED, reassembler.dropped(), 0);
+        statistics.processed(processed, System.nanoTime() - start);
+    }
 }
@@ -1,12 +1,14 @@
 package fs.tdo;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
 import java.security.Key;
-import java.security.Security;
 import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
 import javax.crypto.Cipher;
-import javax.crypto.spec.IvParameterSpec;
-import javax.crypto.spec.SecretKeySpec;
-import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 /**
  * This payload has been encrypted with AES-256 in Cipher Block
@@ -48,68 +50,131 @@ import org.bouncycastle.jce.provider.BouncyCastleProvider;
  * do. I'm not your dad. You do you. Personally, I used OpenSSL
  * to generate the payload for this layer, and reused the
  * `aes_key_wrap` Ruby gem that I wrote years ago.
+ *
+ * <p>Despite the above, the payload of the puzzle is encrypted in
+ * counter (CTR) mode, which needs no padding. Both modes are
+ * supported, see {@link Mode}; CTR is the default.
  */
 public class Layer5 extends Solver {
 
+    /**
+     * How the payload is encrypted.
+     */
+    enum Mode {
+        CTR, CBC,
+        /**
+         * CBC if the payload is a whole number of blocks whose last block decrypts to valid PKCS#7 padding, else CTR.
+         * A CTR payload of whole blocks looks padded by chance about once in 256 times, and detection needs the end of
+         * the payload, so this is only used when asked for.
+         */
+        AUTO;
+
+        /**
+         * {@code ctr}, {@code cbc} or {@code auto}.
+         */
+        static Mode of(final String name) {
+            switch (name) {
+                case "ctr":
+                    return CTR;
+                case "cbc":
+                    return CBC;
+                case "auto":
+                    return AUTO;
+                default:
+                    throw new IllegalArgumentException("Unknown cipher mode: " + name);
+            }
+        }
+    }
+
+    private final Mode mode;
+    private final KeyWrap.Implementation keyWrap;
+
     Layer5(byte[] payload) {
+        this(payload, Mode.CTR);
+    }
+
+    Layer5(byte[] payload, Mode mode) {
+        this(payload, mode, KeyWrap.Implementation.JDK);
+    }
+
+    Layer5(byte[] payload, Mode mode, KeyWrap.Implementation keyWrap) {
         super(payload);
+        this.mode = mode;
+        this.keyWrap = keyWrap;
     }
 
     @Override
     byte[] solve() {
         try {
-            Security.addProvider(new BouncyCastleProvider());
-
             byte[] kek = Arrays.copyOfRange(payload, 0, 32);
             byte[] kekIv = Arrays.copyOfRange(payload, 32, 40);
             byte[] wrappedKey = Arrays.copyOfRange(payload, 40, 80);
             byte[] ivPayload = Arrays.copyOfRange(payload, 80, 96);
-            byte[] encryptedPayload = Arrays.copyOfRange(payload, 96, payload.length);
 
-            Key unwrappedKey = unwrap(wrappedKey, kek, kekIv);
-            return decrypt(encryptedPayload, unwrappedKey, ivPayload);
+            Key unwrappedKey = KeyWrap.unwrap(keyWrap, wrappedKey, kek, kekIv);
+            // decrypted straight from the payload, without copying the encrypted part out first
+            return decrypt(unwrappedKey, ivPayload, ByteBuffer.wrap(payload, 96, payload.length - 96), mode);
         } catch (Exception e) {
             throw new RuntimeException(e);
         }
     }
 
-    private Key unwrap(byte[] wrappedKey,
-                       byte[] kek,
-                       byte[] iv)
-        throws Exception {
-        Cipher cipher = Cipher.getInstance("AESWrap", "BC");
-        cipher.init(
-            Cipher.UNWRAP_MODE,
-            new SecretKeySpec(kek, "AES"),
-            new IvParameterSpec(iv)
-        );
-        return cipher.unwrap(
-            wrappedKey,
-            "AES",
-            Cipher.SECRET_KEY
-        );
+    static byte[] decrypt(final Key key, final byte[] iv, final ByteBuffer encrypted, final Mode mode)
+        throws GeneralSecurityException {
+        final byte[] result = new byte[encrypted.remaining()];
+        if (mode == Mode.CBC || mode == Mode.AUTO && AesCbc.isPadded(key, iv, encrypted)) {
+            final int length = AesCbc.decrypt(key, iv, encrypted, ByteBuffer.wrap(result), ForkJoinPool.commonPool());
+            return Arrays.copyOf(result, length);
+        }
+        AesCtr.decrypt(key, iv, encrypted, ByteBuffer.wrap(result), ForkJoinPool.commonPool());
+        return result;
     }
 
-    private byte[] pad(byte[] data, int blocksize) {
-        int remaining = data.length % blocksize;
-        if (remaining == 0) {
-            return data;
-        }
+    static void stream(final InputStream in, final OutputStream out) throws IOException {
+        stream(in, out, Mode.CTR);
+    }
 
-        int padLen = blocksize - remaining;
-        return Arrays.copyOf(data, data.length + padLen);
+    /**
+     * Decrypts chunk by chunk into one reused buffer. Telling the modes apart needs the end of the payload, so with
+     * {@link Mode#AUTO} the payload is read fully first.
+     */
+    static void stream(final InputStream in, final OutputStream out, final Mode mode) throws IOException {
+        stream(in, out, mode, KeyWrap.Implementation.JDK);
     }
 
-    private byte[] decrypt(byte[] encryptedData,
-                           Key key,
-                           byte[] ivPayload)
-        throws Exception {
-        Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
-        cipher.init(
-            Cipher.DECRYPT_MODE,
-            key,
-            new IvParameterSpec(ivPayload)
-        );
-        return cipher.doFinal(encryptedData);
+    static void stream(final InputStream in, final OutputStream out, final Mode mode,
+        final KeyWrap.Implementation keyWrap) throws IOException {
+        final byte[] header = in.readNBytes(96);
+        if (header.length != 96) {
+            throw new IllegalStateException("Payload too short, header has " + header.length + " bytes");
+        }
+        try {
+            final Key unwrappedKey = KeyWrap.unwrap(keyWrap,
+                Arrays.copyOfRange(header, 40, 80),
+                Arrays.copyOfRange(header, 0, 32),
+                Arrays.copyOfRange(header, 32, 40)
+            );
+            final byte[] iv = Arrays.copyOfRange(header, 80, 96);
+            if (mode == Mode.AUTO) {
+                out.write(decrypt(unwrappedKey, iv, ByteBuffer.wrap(in.readAllBytes()), mode));
+                return;
+            }
+            final Cipher cipher = mode == Mode.CBC
+                ? AesCbc.paddingCipher(unwrappedKey, iv)
+                : AesCtr.cipher(unwrappedKey, iv, 0);
+            final byte[] buffer = new byte[1 << 16];
+            // CBC holds back up to a block, which may come out with the next chunk
+            final byte[] decrypted = new byte[buffer.length + AesCbc.BLOCK_SIZE];
+            try {
+                for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                    out.write(decrypted, 0, cipher.update(buffer, 0, n, decrypted, 0));
+                }
+                out.write(cipher.doFinal());
+            } finally {
+                Ciphers.clear(cipher);
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
     }
-}
\ No newline at end of file
+}
@@ -1,15 +1,60 @@
 package fs.tdo;
 
+import fs.tdo.layer5.Profile;
 import fs.tdo.layer5.TomtelVm;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 
 public class Layer6 extends Solver {
 
+    private final boolean profiled;
+    private final int jitThreshold;
+    private Profile profile;
+
     Layer6(byte[] payload) {
+        this(payload, false);
+    }
+
+    Layer6(byte[] payload, boolean profiled) {
+        this(payload, profiled, 0);
+    }
+
+    /**
+     * @param profiled     whether {@link #solve()} runs the program with a {@link Profile}
+     * @param jitThreshold see {@link TomtelVm#TomtelVm(byte[], int)}, 0 to only interpret
+     */
+    Layer6(byte[] payload, boolean profiled, int jitThreshold) {
         super(payload);
+        this.profiled = profiled;
+        this.jitThreshold = jitThreshold;
     }
 
     @Override
     byte[] solve() {
-        return new TomtelVm(payload).run();
+        TomtelVm vm = new TomtelVm(payload, jitThreshold);
+        if (profiled) {
+            profile = vm.profile();
+        }
+        return vm.run();
+    }
+
+    /**
+     * @return the profile of the last {@link #solve()}, or {@code null} if it was not profiled
+     */
+    Profile profile() {
+        return profile;
+    }
+
+    /**
+     * The program may read any address of its memory, so it only starts once the whole payload has arrived. Its output
+     * is written while it runs.
+     */
+    static void stream(InputStream in, OutputStream out) throws IOException {
+        stream(in, out, 0);
+    }
+
+    static void stream(InputStream in, OutputStream out, int jitThreshold) throws IOException {
+        new TomtelVm(in.readAllBytes(), jitThreshold).run(out);
     }
 }
\ No newline at end of file
@@ -1,26 +1,163 @@
 package fs.tdo;
 
+import fs.tdo.layer4.PacketFilter;
+import fs.tdo.layer4.PacketStatistics;
+import fs.tdo.layer4.PacketView;
+import fs.tdo.layer4.PcapReader;
+import fs.tdo.layer5.Profile;
+import fs.tdo.layer5.TomtelVm;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.io.InputStream;
+import java.net.URISyntaxException;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
 
 public class Main {
 
+    /**
+     * Peels the onion in the given file, or the bundled {@code layer0.txt} if no file is given. With
+     * {@code --pipeline} all layers run concurrently as a {@link Pipeline}. With {@code --pcap} the file is a pcap or
+     * pcapng capture of the layer 4 packets, and peeling starts there. Without {@code --pipeline},
+     * {@code --filter <expression>} selects the layer 4 packets with a {@link PacketFilter} instead of the addresses of
+     * the puzzle, and {@code --demux <directory>} writes the payload of every layer 4 flow to a file of its own
+     * instead of peeling further. {@code --stats} publishes the layer 4 {@link PacketStatistics} over JMX and prints
+     * them to standard error at the end. {@code --crypto bc} unwraps the layer 5 key with BouncyCastle instead of the
+     * JDK. {@code --cipher cbc} decrypts layer 5 in CBC instead of CTR mode, {@code --cipher auto} detects the mode.
+     * {@code --jit} compiles the hot loops of the layer 6 program to JVM bytecode instead of only interpreting them.
+     * Without {@code --pipeline}, {@code --profile} prints a {@link Profile} of the layer 6 program to standard
+     * error.
+     */
     public static void main(String[] args) throws Exception {
-        URL url = Objects.requireNonNull(
-            Main.class.getClassLoader().getResource("layer0.txt")
-        );
-        try (InputStream inputStream = url.openStream()) {
-            byte[] layer0 = inputStream.readAllBytes();
+        List<String> arguments = new ArrayList<>(Arrays.asList(args));
+        boolean stats = arguments.remove("--stats");
+        PacketStatistics statistics = new PacketStatistics();
+        if (stats) {
+            statistics.register("layer4");
+        }
+        try {
+            run(arguments, statistics);
+        } finally {
+            if (stats) {
+                System.err.println("Layer 4: " + statistics);
+            }
+        }
+    }
+
+    private static void run(List<String> arguments, PacketStatistics statistics) throws Exception {
+        boolean pipeline = arguments.remove("--pipeline");
+        boolean pcap = arguments.remove("--pcap");
+        boolean profile = arguments.remove("--profile");
+        int jitThreshold = arguments.remove("--jit") ? TomtelVm.DEFAULT_JIT_THRESHOLD : 0;
+        String filterExpression = option(arguments, "--filter");
+        String demux = option(arguments, "--demux");
+        String crypto = option(arguments, "--crypto");
+        String cipher = option(arguments, "--cipher");
+        Layer5.Mode mode = cipher != null ? Layer5.Mode.of(cipher) : Layer5.Mode.CTR;
+        KeyWrap.Implementation keyWrap = crypto != null
+            ? KeyWrap.Implementation.of(crypto)
+            : KeyWrap.Implementation.JDK;
+        PacketFilter filter = filterExpression != null
+            ? PacketFilter.compile(filterExpression, PacketView.PROTOCOL_UDP)
+            : demux != null ? PacketFilter.compile("ip") : PacketFilter.ONION;
+        Path path = arguments.isEmpty() ? null : Paths.get(arguments.get(0));
+        if (pcap && path == null) {
+            throw new IllegalArgumentException("--pcap needs a capture file");
+        }
+        URL url = Objects.requireNonNull(Main.class.getClassLoader().getResource("layer0.txt"));
+        if (pipeline) {
+            try (InputStream inputStream = path != null ? Files.newInputStream(path) : url.openStream()) {
+                Pipeline.onion(statistics, mode, keyWrap, jitThreshold).run(inputStream, System.out);
+            }
+            return;
+        }
+        byte[] layer4 = null;
+        if (!pcap) {
+            ByteBuffer layer0 = path != null ? map(path) : open(url);
             byte[] layer1 = new Layer0(layer0).solve();
             byte[] layer2 = new Layer1(layer1).solve();
             byte[] layer3 = new Layer2(layer2).solve();
-            byte[] layer4 = new Layer3(layer3).solve();
-            byte[] layer5 = new Layer4(layer4).solve();
-            byte[] layer6 = new Layer5(layer5).solve();
-            byte[] core = new Layer6(layer6).solve();
-            System.out.print(new String(core, StandardCharsets.US_ASCII));
+            layer4 = new Layer3(layer3).solve();
+        }
+        if (demux != null) {
+            Path directory = Files.createDirectories(Paths.get(demux));
+            FlowDemux.Sinks sinks = flow -> Files.newOutputStream(directory.resolve(flow + ".bin"));
+            List<FlowDemux.Result> flows;
+            if (pcap) {
+                try (PcapReader reader = PcapReader.open(path)) {
+                    flows = FlowDemux.demux(reader, filter, statistics, sinks);
+                }
+            } else {
+                flows = FlowDemux.demux(new Layer4(layer4).payload, filter, statistics, sinks,
+                    ForkJoinPool.commonPool());
+            }
+            for (FlowDemux.Result flow : flows) {
+                System.out.println(flow.flow + ": " + flow.packets + " packets, " + flow.bytes + " bytes");
+            }
+            return;
+        }
+        byte[] layer5;
+        if (pcap) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            try (PcapReader reader = PcapReader.open(path)) {
+                Layer4.stream(reader, out, filter, statistics, null, null);
+            }
+            layer5 = out.toByteArray();
+        } else {
+            layer5 = new Layer4(layer4, filter, statistics).solve();
+        }
+        byte[] layer6 = new Layer5(layer5, mode, keyWrap).solve();
+        Layer6 solver = new Layer6(layer6, profile, jitThreshold);
+        byte[] core = solver.solve();
+        if (profile) {
+            System.err.print("Layer 6: " + solver.profile());
+        }
+        System.out.print(new String(core, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * Removes {@code name} and its value from the arguments.
+     *
+     * @return the value, or {@code null} if the option is not given
+     */
+    private static String option(List<String> arguments, String name) {
+        int index = arguments.indexOf(name);
+        if (index < 0) {
+            return null;
+        }
+        if (index + 1 >= arguments.size()) {
+            throw new IllegalArgumentException(name + " needs a value");
+        }
+        arguments.remove(index);
+        return arguments.remove(index);
+    }
+
+    /**
+     * Maps file resources into memory, so that they are not copied onto the heap. Other resources are read fully.
+     */
+    private static ByteBuffer open(URL url) throws IOException, URISyntaxException {
+        if ("file".equals(url.getProtocol())) {
+            return map(Paths.get(url.toURI()));
+        }
+        try (InputStream inputStream = url.openStream()) {
+            return ByteBuffer.wrap(inputStream.readAllBytes());
+        }
+    }
+
+    private static ByteBuffer map(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
         }
     }
 }
@@ -0,0 +1,56 @@
+package fs.tdo;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * Runs an action for disjoint pieces of work on a {@link ForkJoinPool}, splitting the range in halves.
+ */
+final class Parallel {
+
+    private Parallel() {
+    }
+
+    /**
+     * Calls {@code action} for {@code items[0]} to {@code items[count - 1]} on {@code pool} and waits for all of
+     * them.
+     */
+    static <T> void forEach(ForkJoinPool pool, T[] items, int count, Consumer<? super T> action) {
+        forEach(pool, count, i -> action.accept(items[i]));
+    }
+
+    /**
+     * Calls {@code action} for the indexes 0 to {@code count - 1} on {@code pool} and waits for all of them.
+     */
+    static void forEach(ForkJoinPool pool, int count, IntConsumer action) {
+        if (count > 0) {
+            pool.invoke(new Task(0, count, action));
+        }
+    }
+
+    private static final class Task extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int from;
+        private final int to;
+        private final IntConsumer action;
+
+        Task(int from, int to, IntConsumer action) {
+            this.from = from;
+            this.to = to;
+            this.action = action;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from == 1) {
+                action.accept(from);
+            } else {
+                final int mid = (from + to) >>> 1;
+                invokeAll(new Task(from, mid, action), new Task(mid, to, action));
+            }
+        }
+    }
+}
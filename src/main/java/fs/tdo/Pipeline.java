@@ -0,0 +1,160 @@
+package fs.tdo;
+
+import fs.tdo.layer4.PacketFilter;
+import fs.tdo.layer4.PacketStatistics;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Runs {@link Stage}s concurrently, each on its own thread, connected by bounded {@link ChunkPipe}s. Every stage
+ * works on chunks as soon as its predecessor produces them, so the total run time approaches that of the slowest stage
+ * rather than the sum of all stages.
+ */
+public class Pipeline {
+    public static final int DEFAULT_CHUNK_SIZE = 64 * 1024;
+    public static final int DEFAULT_CAPACITY = 16;
+
+    private final List<Stage> stages;
+    private final int chunkSize;
+    private final int capacity;
+
+    public Pipeline(List<Stage> stages) {
+        this(stages, DEFAULT_CHUNK_SIZE, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param chunkSize size of the chunks handed from one stage to the next
+     * @param capacity  number of chunks that may be waiting between two stages before the producer blocks
+     */
+    public Pipeline(List<Stage> stages, int chunkSize, int capacity) {
+        if (stages.isEmpty()) {
+            throw new IllegalArgumentException("A pipeline needs at least one stage");
+        }
+        this.stages = List.copyOf(stages);
+        this.chunkSize = chunkSize;
+        this.capacity = capacity;
+    }
+
+    /**
+     * All layers of the onion: each layer's Base85 envelope is decoded in one stage and the layer's own transformation
+     * is applied in the next.
+     */
+    public static Pipeline onion() {
+        return onion(new PacketStatistics());
+    }
+
+    /**
+     * {@link #onion()}, counting the layer 4 packets in {@code statistics}.
+     */
+    public static Pipeline onion(PacketStatistics statistics) {
+        return onion(statistics, Layer5.Mode.CTR, KeyWrap.Implementation.JDK, 0);
+    }
+
+    /**
+     * {@link #onion(PacketStatistics)}, decrypting layer 5 in {@code mode} with a key unwrapped by {@code keyWrap},
+     * and running layer 6 with the given JIT threshold.
+     */
+    static Pipeline onion(PacketStatistics statistics, Layer5.Mode mode, KeyWrap.Implementation keyWrap,
+        int jitThreshold) {
+        return new Pipeline(List.of(
+            Pipeline::envelope,
+            Pipeline::envelope, Layer1::stream,
+            Pipeline::envelope, Layer2::stream,
+            Pipeline::envelope, Layer3::stream,
+            Pipeline::envelope, (in, out) -> Layer4.stream(in, out, PacketFilter.ONION, statistics),
+            Pipeline::envelope, (in, out) -> Layer5.stream(in, out, mode, keyWrap),
+            Pipeline::envelope, (in, out) -> Layer6.stream(in, out, jitThreshold)
+        ));
+    }
+
+    /**
+     * Skips everything up to the {@code <~} delimiter and decodes the Base85 payload behind it. Unlike {@link Solver},
+     * which decodes the last envelope, this takes the first one, since the end of the input is not known yet.
+     */
+    static void envelope(InputStream in, OutputStream out) throws IOException {
+        int previous = -1;
+        int b;
+        while ((b = in.read()) >= 0 && !(previous == '<' && b == '~')) {
+            previous = b;
+        }
+        if (b < 0) {
+            throw new IllegalStateException("Payload does not look right, missing tokens <~ | ~>");
+        }
+        new Base85InputStream(in).transferTo(out);
+    }
+
+    /**
+     * Pushes {@code source} through all stages and writes the output of the last stage to {@code sink}. Returns once
+     * all stages are done; the first failure of any stage stops the others and is rethrown.
+     */
+    public void run(InputStream source, OutputStream sink) throws IOException {
+        final int n = stages.size();
+        final ChunkPipe[] pipes = new ChunkPipe[n - 1];
+        for (int i = 0; i < pipes.length; i++) {
+            pipes[i] = new ChunkPipe(chunkSize, capacity);
+        }
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final List<Thread> threads = new ArrayList<>(n);
+        for (int i = 0; i < n; i++) {
+            final Stage stage = stages.get(i);
+            final InputStream in = i == 0 ? source : pipes[i - 1].in;
+            final OutputStream out = i == n - 1 ? sink : pipes[i].out;
+            final boolean last = i == n - 1;
+            final Thread thread = new Thread(() -> {
+                try {
+                    stage.run(in, out);
+                    if (in != source) {
+                        // keep the previous stage from blocking on a full pipe
+                        in.transferTo(OutputStream.nullOutputStream());
+                    }
+                    if (!last) {
+                        out.close();
+                    }
+                } catch (Throwable t) {
+                    if (failure.compareAndSet(null, t)) {
+                        threads.forEach(Thread::interrupt);
+                    }
+                }
+            }, "pipeline-stage-" + i);
+            thread.setDaemon(true);
+            threads.add(thread);
+        }
+        threads.forEach(Thread::start);
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            threads.forEach(Thread::interrupt);
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the pipeline");
+        }
+        sink.flush();
+        rethrow(failure.get());
+    }
+
+    private static void rethrow(Throwable t) throws IOException {
+        if (t == null) {
+            return;
+        }
+        if (t instanceof IOException) {
+            throw (IOException) t;
+        }
+        if (t instanceof UncheckedIOException) {
+            throw ((UncheckedIOException) t).getCause();
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new IllegalStateException(t);
+    }
+}
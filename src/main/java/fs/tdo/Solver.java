@@ -1,20 +1,54 @@
 package fs.tdo;
 
-import java.nio.charset.StandardCharsets;
+import java.nio.ByteBuffer;
+import java.util.function.Function;
 
 public abstract class Solver {
     protected final byte[] payload;
 
     protected Solver(final byte[] payload) {
-        String payloadString = new String(payload, StandardCharsets.US_ASCII);
-        if (!payloadString.contains("<~") || !payloadString.contains("~>")) {
+        this(ByteBuffer.wrap(payload));
+    }
+
+    protected Solver(final byte[] payload, final Function<ByteBuffer, WordTransform> transform) {
+        this(ByteBuffer.wrap(payload), transform);
+    }
+
+    /**
+     * Decodes the last {@code <~ ... ~>} envelope of {@code input}. The envelope is located by scanning the bytes
+     * backwards and decoded straight from a view of {@code input}, so the input itself is never copied and may be a
+     * mapped file.
+     */
+    protected Solver(final ByteBuffer input) {
+        this(input, envelope -> null);
+    }
+
+    /**
+     * Like {@link #Solver(ByteBuffer)}, but applies the transform returned by {@code transform} while decoding, so a
+     * per-byte layer is solved in the same pass. {@code transform} is given the envelope before decoding starts.
+     */
+    protected Solver(final ByteBuffer input, final Function<ByteBuffer, WordTransform> transform) {
+        final int end = lastIndexOf(input, '~', '>');
+        final int start = lastIndexOf(input, '<', '~');
+        if (start < 0 || end < 0) {
             throw new IllegalStateException("Payload does not look right, missing tokens <~ | ~>");
         }
-
-        int start = payloadString.lastIndexOf("<~") + 2;
-        int end = payloadString.lastIndexOf("~>");
-        this.payload = Base85.decode(payloadString.substring(start, end));
+        final ByteBuffer envelope = input.duplicate();
+        envelope.limit(end).position(start + 2);
+        this.payload = Base85.decodeParallel(envelope, transform.apply(envelope));
     }
 
     abstract byte[] solve();
+
+    /**
+     * Absolute index of the last occurrence of the two bytes {@code first second} between position and limit, or -1.
+     */
+    static int lastIndexOf(final ByteBuffer buffer, final char first, final char second) {
+        for (int i = buffer.limit() - 2; i >= buffer.position(); i--) {
+            if (buffer.get(i) == first && buffer.get(i + 1) == second) {
+                return i;
+            }
+        }
+        return -1;
+    }
 }
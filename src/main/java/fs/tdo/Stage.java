@@ -0,0 +1,14 @@
+package fs.tdo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * One step of a {@link Pipeline}: reads its input from {@code in} and writes its output to {@code out} while the
+ * input is still being produced.
+ */
+@FunctionalInterface
+public interface Stage {
+    void run(InputStream in, OutputStream out) throws IOException;
+}
@@ -0,0 +1,69 @@
+package fs.tdo;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * The kernels of {@link ByteKernels} on the widest byte vectors of the CPU. Loaded by {@link ByteKernels} only if the
+ * {@code jdk.incubator.vector} module is present; the tails shorter than a vector go to the SWAR kernels.
+ */
+final class VectorKernels implements ByteKernels.Backend {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+    private static final int LENGTH = SPECIES.length();
+
+    private final ByteKernels.Backend tail = new ByteKernels.Swar();
+
+    VectorKernels() {
+        // below 128 bits the SWAR kernels are as fast, beyond 512 bits the expanded keys are too short
+        if (LENGTH < 16 || LENGTH > ByteKernels.KEY_PADDING) {
+            throw new UnsupportedOperationException("Vectors of " + LENGTH + " bytes");
+        }
+    }
+
+    @Override
+    public void flipAndRotate(final byte[] data, final int from, final int to) {
+        int i = from;
+        for (; i + LENGTH <= to; i += LENGTH) {
+            ByteVector.fromArray(SPECIES, data, i)
+                .lanewise(VectorOperators.XOR, (byte) 0x55)
+                .lanewise(VectorOperators.ROR, 1)
+                .intoArray(data, i);
+        }
+        tail.flipAndRotate(data, i, to);
+    }
+
+    @Override
+    public void xor(final byte[] data, final int from, final int to, final byte[] expanded, final int keyLength,
+        final long keyOffset) {
+        int k = (int) (keyOffset % keyLength);
+        int i = from;
+        for (; i + LENGTH <= to; i += LENGTH) {
+            ByteVector.fromArray(SPECIES, data, i)
+                .lanewise(VectorOperators.XOR, ByteVector.fromArray(SPECIES, expanded, k))
+                .intoArray(data, i);
+            k += LENGTH;
+            while (k >= keyLength) {
+                k -= keyLength;
+            }
+        }
+        tail.xor(data, i, to, expanded, keyLength, k);
+    }
+
+    @Override
+    public int countEvenParity(final byte[] data, final int from, final int to) {
+        int odd = 0;
+        int i = from;
+        for (; i + LENGTH <= to; i += LENGTH) {
+            ByteVector x = ByteVector.fromArray(SPECIES, data, i);
+            x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 4));
+            x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 2));
+            x = x.lanewise(VectorOperators.XOR, x.lanewise(VectorOperators.LSHR, 1));
+            // the parity ends up in bit 0, shifted to the sign bit to test it
+            final VectorMask<Byte> parity = x.lanewise(VectorOperators.LSHL, 7).compare(VectorOperators.LT, 0);
+            odd += parity.trueCount();
+        }
+        return i - from - odd + tail.countEvenParity(data, i, to);
+    }
+}
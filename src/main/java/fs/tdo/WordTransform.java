@@ -0,0 +1,35 @@
+package fs.tdo;
+
+/**
+ * A transformation the Base85 decoder applies to each decoded 4-byte group before storing it, so that a per-byte layer
+ * transformation does not need a second pass over the decoded data.
+ */
+@FunctionalInterface
+public interface WordTransform {
+    /**
+     * @param word   four decoded bytes, the first one in the most significant position
+     * @param offset position of the first of the four bytes in the decoded output
+     * @return the transformed bytes, in the same order
+     */
+    int apply(int word, long offset);
+
+    /**
+     * Transforms whole groups in place, a batch of decoded bytes at a time. The decoders call this instead of
+     * {@link #apply(int, long)} when they decode into an array, so that a transform with a bulk form can override it.
+     *
+     * @param from   index of the first byte, a multiple of 4 bytes after the start of the output
+     * @param to     index after the last byte, {@code to - from} is a multiple of 4
+     * @param offset position of {@code data[from]} in the decoded output
+     */
+    default void apply(byte[] data, int from, int to, long offset) {
+        for (int i = from; i < to; i += 4) {
+            final int word = apply(
+                (data[i] & 0xff) << 24 | (data[i + 1] & 0xff) << 16 | (data[i + 2] & 0xff) << 8 | data[i + 3] & 0xff,
+                offset + i - from);
+            data[i] = (byte) (word >>> 24);
+            data[i + 1] = (byte) (word >>> 16);
+            data[i + 2] = (byte) (word >>> 8);
+            data[i + 3] = (byte) word;
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package fs.tdo;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Recovers a cycling XOR key from ciphertext alone, assuming the plaintext is ASCII text.
+ *
+ * <p>The key length is the smallest length whose index of coincidence, averaged over the key positions, comes close to
+ * the best one found: bytes encrypted with the same key byte keep the uneven distribution of the plaintext, so the
+ * true length and its multiples stand out. Each key byte is then chosen to maximise the likelihood of its column under
+ * a model of English ASCII text. Both steps work on byte histograms, so the ciphertext is only read once per candidate
+ * length and once for the histograms of the key positions.
+ */
+final class XorKeyRecovery {
+    static final int MAX_KEY_LENGTH = 64;
+    /*
+     * Candidates within this fraction of the best index of coincidence are considered multiples of the key length.
+     */
+    private static final double COINCIDENCE_TOLERANCE = 0.9;
+    private static final double[] LOG_PROBABILITY = new double[256];
+
+    static {
+        final double[] letters = {
+            8.2, 1.5, 2.8, 4.3, 12.7, 2.2, 2.0, 6.1, 7.0, 0.15, 0.77, 4.0, 2.4,
+            6.7, 7.5, 1.9, 0.095, 6.0, 6.3, 9.1, 2.8, 0.98, 2.4, 0.15, 2.0, 0.074
+        };
+        final double[] weights = new double[256];
+        for (int b = 0; b < 256; b++) {
+            weights[b] = b >= 0x20 && b < 0x7f ? 1.0 : 0.0001;
+        }
+        for (int i = 0; i < letters.length; i++) {
+            weights['a' + i] += letters[i] * 0.5;
+            weights['A' + i] += letters[i] * 0.1;
+        }
+        weights[' '] += 15;
+        weights['\n'] += 2;
+        weights['\r'] += 0.5;
+        weights['\t'] += 0.5;
+        double total = 0;
+        for (double weight : weights) {
+            total += weight;
+        }
+        for (int b = 0; b < 256; b++) {
+            LOG_PROBABILITY[b] = Math.log(weights[b] / total);
+        }
+    }
+
+    private XorKeyRecovery() {
+    }
+
+    /**
+     * Recovers the key from the first {@code length} bytes of {@code cipher}, trying key lengths up to
+     * {@link #MAX_KEY_LENGTH}.
+     */
+    static byte[] recoverKey(final byte[] cipher, final int length, final ForkJoinPool pool) {
+        return recoverKey(cipher, length, keyLength(cipher, length, MAX_KEY_LENGTH, pool), pool);
+    }
+
+    /**
+     * Estimates the key length from the index of coincidence of the first {@code length} bytes of {@code cipher}.
+     * Candidate lengths are evaluated concurrently.
+     */
+    static int keyLength(final byte[] cipher, final int length, final int maxKeyLength, final ForkJoinPool pool) {
+        final int candidates = Math.min(maxKeyLength, length / 2);
+        if (candidates < 1) {
+            throw new IllegalArgumentException("Ciphertext too short to find a key: " + length + " bytes");
+        }
+        final double[] coincidence = new double[candidates + 1];
+        Parallel.forEach(pool, candidates, i -> {
+            final int keyLength = i + 1;
+            coincidence[keyLength] = indexOfCoincidence(histograms(cipher, length, keyLength), length);
+        });
+
+        double best = 0;
+        for (int keyLength = 1; keyLength <= candidates; keyLength++) {
+            best = Math.max(best, coincidence[keyLength]);
+        }
+        for (int keyLength = 1; keyLength <= candidates; keyLength++) {
+            if (coincidence[keyLength] >= best * COINCIDENCE_TOLERANCE) {
+                return keyLength;
+            }
+        }
+        throw new IllegalStateException("No key length found");
+    }
+
+    /**
+     * Chooses each byte of a key of {@code keyLength} bytes from the histogram of the ciphertext bytes it encrypts. Key
+     * positions are solved concurrently.
+     */
+    static byte[] recoverKey(final byte[] cipher, final int length, final int keyLength, final ForkJoinPool pool) {
+        final int[][] histograms = histograms(cipher, length, keyLength);
+        final byte[] key = new byte[keyLength];
+        Parallel.forEach(pool, keyLength, position -> key[position] = bestKeyByte(histograms[position]));
+        return key;
+    }
+
+    private static int[][] histograms(final byte[] cipher, final int length, final int keyLength) {
+        final int[][] histograms = new int[keyLength][256];
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            histograms[position][cipher[i] & 0xff]++;
+            if (++position == keyLength) {
+                position = 0;
+            }
+        }
+        return histograms;
+    }
+
+    private static double indexOfCoincidence(final int[][] histograms, final int length) {
+        double sum = 0;
+        for (int[] histogram : histograms) {
+            long pairs = 0;
+            long n = 0;
+            for (int count : histogram) {
+                pairs += (long) count * (count - 1);
+                n += count;
+            }
+            if (n > 1) {
+                sum += (double) pairs / (n * (n - 1));
+            }
+        }
+        return sum / histograms.length;
+    }
+
+    private static byte bestKeyByte(final int[] histogram) {
+        int best = 0;
+        double bestScore = Double.NEGATIVE_INFINITY;
+        for (int candidate = 0; candidate < 256; candidate++) {
+            double score = 0;
+            for (int b = 0; b < 256; b++) {
+                if (histogram[b] != 0) {
+                    score += histogram[b] * LOG_PROBABILITY[b ^ candidate];
+                }
+            }
+            if (score > bestScore) {
+                bestScore = score;
+                best = candidate;
+            }
+        }
+        return (byte) best;
+    }
+}
@@ -0,0 +1,29 @@
+package fs.tdo.layer4;
+
+/**
+ * Why a packet was not accepted, in the order the checks are made: a packet is counted under the first check it fails.
+ */
+public enum DropReason {
+    /** The IP version is not 4. */
+    NOT_IPV4,
+    /** The IHL is below the minimum of 5 words, or the header is longer than the IPv4 total length. */
+    BAD_HEADER_LENGTH,
+    /** The packet is a fragment. Fragments only count once reassembled. */
+    FRAGMENT,
+    /** The capture holds fewer bytes than the IPv4 total length. */
+    TRUNCATED,
+    /** The time to live is zero. */
+    ZERO_TTL,
+    /** The protocol is not UDP. */
+    NOT_UDP,
+    /** The UDP header does not fit the packet, or the UDP length is below 8 or beyond the IPv4 total length. */
+    BAD_UDP_LENGTH,
+    /** The IPv4 header checksum is wrong. */
+    BAD_IP_CHECKSUM,
+    /** The UDP checksum over the pseudo header, UDP header and payload is wrong. */
+    BAD_UDP_CHECKSUM,
+    /** An intact packet whose addresses, ports or protocol do not match the {@link PacketFilter}. */
+    FILTERED,
+    /** Incomplete datagrams dropped by the {@link FragmentReassembler}, and fragments it could not use. */
+    REASSEMBLY_FAILED
+}
@@ -0,0 +1,47 @@
+package fs.tdo.layer4;
+
+/**
+ * The 5-tuple that identifies a flow: addresses, ports and protocol.
+ */
+public final class Flow {
+    public final int sourceIp;
+    public final int destIp;
+    public final int sourcePort;
+    public final int destPort;
+    public final int protocol;
+
+    public Flow(final int sourceIp, final int destIp, final int sourcePort, final int destPort, final int protocol) {
+        this.sourceIp = sourceIp;
+        this.destIp = destIp;
+        this.sourcePort = sourcePort;
+        this.destPort = destPort;
+        this.protocol = protocol;
+    }
+
+    @Override
+    public boolean equals(final Object o) {
+        if (!(o instanceof Flow)) {
+            return false;
+        }
+        final Flow flow = (Flow) o;
+        return sourceIp == flow.sourceIp && destIp == flow.destIp && sourcePort == flow.sourcePort
+            && destPort == flow.destPort && protocol == flow.protocol;
+    }
+
+    @Override
+    public int hashCode() {
+        return FlowTable.hash(sourceIp, destIp, sourcePort, destPort, protocol);
+    }
+
+    /**
+     * E.g. {@code 10.1.1.10_1234-10.1.1.200_42069-17}, which is also usable as a file name.
+     */
+    @Override
+    public String toString() {
+        return address(sourceIp) + "_" + sourcePort + "-" + address(destIp) + "_" + destPort + "-" + protocol;
+    }
+
+    private static String address(final int ip) {
+        return (ip >>> 24) + "." + (ip >>> 16 & 0xff) + "." + (ip >>> 8 & 0xff) + "." + (ip & 0xff);
+    }
+}
@@ -0,0 +1,98 @@
+package fs.tdo.layer4;
+
+import java.util.Arrays;
+
+/**
+ * Numbers flows in the order they are first seen. The 5-tuples are kept in an open addressing hash table of primitive
+ * arrays, so looking up a packet's flow neither boxes a key nor allocates, except for the first packet of a flow.
+ */
+public final class FlowTable {
+    private static final int INITIAL_CAPACITY = 64;
+    /* Marks free slots: real entries have a protocol below 256 in the top bits. */
+    private static final long FREE = -1;
+
+    /* Source and destination address of each slot. */
+    private long[] addresses;
+    /* Protocol, source and destination port of each slot, or FREE. */
+    private long[] ports;
+    private int[] ids;
+    private Flow[] flows = new Flow[16];
+    private int size;
+
+    public FlowTable() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * The number of the flow of a UDP or TCP packet, adding the flow if it is new.
+     */
+    public int flowOf(final PacketView packet) {
+        return flowOf(packet.sourceIp(), packet.destIp(), packet.sourcePort(), packet.destPort(), packet.protocol());
+    }
+
+    public int flowOf(final int sourceIp, final int destIp, final int sourcePort, final int destPort,
+        final int protocol) {
+        final long address = (long) sourceIp << 32 | destIp & 0xffffffffL;
+        final long port = (long) protocol << 32 | (long) sourcePort << 16 | destPort;
+        final int mask = ports.length - 1;
+        int slot = hash(sourceIp, destIp, sourcePort, destPort, protocol) & mask;
+        while (ports[slot] != FREE) {
+            if (ports[slot] == port && addresses[slot] == address) {
+                return ids[slot];
+            }
+            slot = slot + 1 & mask;
+        }
+        if (size == flows.length) {
+            flows = Arrays.copyOf(flows, size * 2);
+        }
+        flows[size] = new Flow(sourceIp, destIp, sourcePort, destPort, protocol);
+        addresses[slot] = address;
+        ports[slot] = port;
+        ids[slot] = size;
+        if (++size * 2 > ports.length) {
+            rehash();
+        }
+        return size - 1;
+    }
+
+    public Flow flow(final int id) {
+        if (id < 0 || id >= size) {
+            throw new IndexOutOfBoundsException("No flow " + id);
+        }
+        return flows[id];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    static int hash(final int sourceIp, final int destIp, final int sourcePort, final int destPort,
+        final int protocol) {
+        long h = ((long) sourceIp << 32 | destIp & 0xffffffffL) * 0x9E3779B97F4A7C15L;
+        h ^= ((long) protocol << 32 | (long) sourcePort << 16 | destPort) + (h >>> 29);
+        h *= 0xBF58476D1CE4E5B9L;
+        return (int) (h ^ h >>> 32);
+    }
+
+    private void allocate(final int capacity) {
+        addresses = new long[capacity];
+        ports = new long[capacity];
+        ids = new int[capacity];
+        Arrays.fill(ports, FREE);
+    }
+
+    private void rehash() {
+        allocate(ports.length * 2);
+        final int mask = ports.length - 1;
+        for (int id = 0; id < size; id++) {
+            final Flow flow = flows[id];
+            int slot = hash(flow.sourceIp, flow.destIp, flow.sourcePort, flow.destPort, flow.protocol) & mask;
+            while (ports[slot] != FREE) {
+                slot = slot + 1 & mask;
+            }
+            addresses[slot] = (long) flow.sourceIp << 32 | flow.destIp & 0xffffffffL;
+            ports[slot] = (long) flow.protocol << 32 | (long) flow.sourcePort << 16 | flow.destPort;
+            ids[slot] = id;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package fs.tdo.layer4;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reassembles fragmented IPv4 datagrams. Fragments are matched by source, destination, protocol and identification
+ * and collected into a fixed number of reusable buffers, so memory stays below the configured limit no matter how many
+ * incomplete datagrams a capture contains. Datagrams that did not complete within the timeout are dropped, and when
+ * all buffers are in use the least recently updated datagram is dropped to make room.
+ */
+public class FragmentReassembler {
+    public static final int DEFAULT_MEMORY_LIMIT = 1 << 20;
+    /**
+     * Default timeout in units of the clock passed to {@link #offer(PacketView, long)}.
+     */
+    public static final long DEFAULT_TIMEOUT = 4096;
+    private static final int MAX_HEADER_LENGTH = 60;
+    private static final int MAX_DATAGRAM_LENGTH = 65535;
+    private static final int BUFFER_SIZE = MAX_HEADER_LENGTH + MAX_DATAGRAM_LENGTH;
+
+    private final Datagram[] datagrams;
+    private final long timeout;
+    private long dropped;
+
+    public FragmentReassembler() {
+        this(DEFAULT_MEMORY_LIMIT, DEFAULT_TIMEOUT);
+    }
+
+    /**
+     * @param memoryLimit maximum number of bytes used for buffers, at least one buffer is always used
+     * @param timeout     how long an incomplete datagram is kept, in units of the clock passed to {@code offer}
+     */
+    public FragmentReassembler(final int memoryLimit, final long timeout) {
+        this.datagrams = new Datagram[Math.max(1, memoryLimit / BUFFER_SIZE)];
+        this.timeout = timeout;
+    }
+
+    /**
+     * Adds a fragment, whose IPv4 header should already have been checked. The fragment's bytes are copied, so the view
+     * may be moved on afterwards.
+     *
+     * @param now current time of any monotonic clock, e.g. a packet counter or capture timestamp
+     * @return a view of the reassembled datagram once the fragment completes it, valid until the next call, else
+     * {@code null}
+     */
+    public PacketView offer(final PacketView fragment, final long now) {
+        final int dataLength = fragment.totalLength() - fragment.headerLength();
+        final int dataOffset = fragment.fragmentOffset() * 8;
+        if (fragment.ihl() < 5 || dataLength < 0 || dataOffset + dataLength > MAX_DATAGRAM_LENGTH
+            || fragment.moreFragments() && dataLength % 8 != 0) {
+            dropped++;
+            return null;
+        }
+        Datagram target = null;
+        Datagram free = null;
+        Datagram oldest = null;
+        for (int i = 0; i < datagrams.length; i++) {
+            Datagram datagram = datagrams[i];
+            if (datagram == null) {
+                datagram = datagrams[i] = new Datagram();
+            }
+            if (datagram.active && now - datagram.lastSeen > timeout) {
+                datagram.active = false;
+                dropped++;
+            }
+            if (!datagram.active) {
+                if (free == null) {
+                    free = datagram;
+                }
+            } else if (datagram.matches(fragment)) {
+                target = datagram;
+            } else if (oldest == null || datagram.lastSeen < oldest.lastSeen) {
+                oldest = datagram;
+            }
+        }
+        if (target == null) {
+            if (free == null) {
+                free = oldest;
+                dropped++;
+            }
+            target = free;
+            target.start(fragment);
+        }
+        target.lastSeen = now;
+        if (!target.add(fragment, dataOffset, dataLength)) {
+            target.active = false;
+            dropped++;
+            return null;
+        }
+        if (!target.isComplete()) {
+            return null;
+        }
+        target.active = false;
+        if (target.headerLength + target.dataLength > MAX_DATAGRAM_LENGTH) {
+            // the total length would not fit its 16 bits
+            dropped++;
+            return null;
+        }
+        return target.assemble();
+    }
+
+    /**
+     * Number of incomplete, inconsistent or oversized datagrams and malformed fragments dropped so far.
+     */
+    public long dropped() {
+        return dropped;
+    }
+
+    private static final class Datagram {
+        final byte[] data = new byte[BUFFER_SIZE];
+        final PacketView view = new PacketView(ByteBuffer.wrap(data));
+        /* One bit per 8-byte block of the datagram's data. */
+        final long[] received = new long[(MAX_DATAGRAM_LENGTH + 7) / 8 / 64 + 1];
+        boolean active;
+        long lastSeen;
+        int sourceIp;
+        int destIp;
+        int protocol;
+        int identification;
+        int headerLength;
+        int dataLength;
+        /* End of the data of the fragment that reaches furthest. */
+        int end;
+        int receivedBlocks;
+
+        boolean matches(final PacketView fragment) {
+            return identification == fragment.identification()
+                && sourceIp == fragment.sourceIp()
+                && destIp == fragment.destIp()
+                && protocol == fragment.protocol();
+        }
+
+        void start(final PacketView fragment) {
+            active = true;
+            sourceIp = fragment.sourceIp();
+            destIp = fragment.destIp();
+            protocol = fragment.protocol();
+            identification = fragment.identification();
+            headerLength = -1;
+            dataLength = -1;
+            end = 0;
+            receivedBlocks = 0;
+            Arrays.fill(received, 0);
+        }
+
+        /**
+         * Copies a fragment into the datagram.
+         *
+         * @return {@code false} if the fragment contradicts the earlier ones: it reaches past the end of the datagram,
+         * or it is a last fragment that gives another length or ends before data already received. Only then could
+         * blocks beyond the end be counted as received, so a complete datagram has all of its data.
+         */
+        boolean add(final PacketView fragment, final int dataOffset, final int length) {
+            final int fragmentEnd = dataOffset + length;
+            if (!fragment.moreFragments()) {
+                if (dataLength >= 0 && dataLength != fragmentEnd || end > fragmentEnd) {
+                    return false;
+                }
+                dataLength = fragmentEnd;
+            } else if (dataLength >= 0 && fragmentEnd > dataLength) {
+                return false;
+            }
+            end = Math.max(end, fragmentEnd);
+            if (dataOffset == 0) {
+                headerLength = fragment.headerLength();
+                fragment.copyBytes(fragment.offset(), data, MAX_HEADER_LENGTH - headerLength, headerLength);
+            }
+            fragment.copyBytes(fragment.udpOffset(), data, MAX_HEADER_LENGTH + dataOffset, length);
+            final int lastBlock = (fragmentEnd + 7) / 8;
+            for (int block = dataOffset / 8; block < lastBlock; block++) {
+                final long bit = 1L << block;
+                if ((received[block >>> 6] & bit) == 0) {
+                    received[block >>> 6] |= bit;
+                    receivedBlocks++;
+                }
+            }
+            return true;
+        }
+
+        boolean isComplete() {
+            return headerLength >= 0 && dataLength >= 0 && receivedBlocks == (dataLength + 7) / 8;
+        }
+
+        /**
+         * Rewrites the first fragment's header for the whole datagram: new total length and no fragment flags or
+         * offset. The checksum is adjusted for the two changed words.
+         */
+        PacketView assemble() {
+            final int start = MAX_HEADER_LENGTH - headerLength;
+            final ByteBuffer header = ByteBuffer.wrap(data, start, headerLength).slice();
+            final int oldLength = header.getShort(2) & 0xffff;
+            final int oldFlags = header.getShort(6) & 0xffff;
+            final int totalLength = headerLength + dataLength;
+            final int flags = oldFlags & 0x4000;
+            int checksum = header.getShort(10) & 0xffff;
+            checksum = InternetChecksum.adjust(checksum, oldLength, totalLength);
+            checksum = InternetChecksum.adjust(checksum, oldFlags, flags);
+            header.putShort(2, (short) totalLength).putShort(6, (short) flags).putShort(10, (short) checksum);
+            return view.moveTo(start);
+        }
+    }
+}
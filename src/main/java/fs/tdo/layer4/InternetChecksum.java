@@ -0,0 +1,170 @@
+package fs.tdo.layer4;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * The one's complement sum of RFC 1071 used by IPv4, UDP and TCP. Data is added eight bytes per step as two 32-bit
+ * halves into a 64-bit accumulator, and the carries are only folded back into 16 bits when the value is asked for:
+ * since 2^16 is 1 modulo 0xffff, summing wider words gives the same result as summing 16-bit ones.
+ *
+ * <p>An instance sums data that arrives in pieces of any length; a piece may end in the middle of a 16-bit word.
+ */
+public final class InternetChecksum {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.BIG_ENDIAN);
+    private static final long LOW_32 = 0xffffffffL;
+
+    private long sum;
+    /* Whether an odd number of bytes was added, so the next byte is the low byte of a word. */
+    private boolean odd;
+
+    public InternetChecksum update(final byte[] data, final int from, final int length) {
+        int i = from;
+        final int end = from + length;
+        if (odd && i < end) {
+            sum += data[i++] & 0xff;
+            odd = false;
+        }
+        for (; i + 8 <= end; i += 8) {
+            final long word = (long) LONGS.get(data, i);
+            sum += (word >>> 32) + (word & LOW_32);
+        }
+        for (; i + 1 < end; i += 2) {
+            sum += (data[i] & 0xff) << 8 | data[i + 1] & 0xff;
+        }
+        if (i < end) {
+            sum += (data[i] & 0xff) << 8;
+            odd = true;
+        }
+        return normalize();
+    }
+
+    /**
+     * Adds the remaining bytes of {@code buffer} without moving its position.
+     */
+    public InternetChecksum update(final ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return update(buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        int i = buffer.position();
+        final int end = buffer.limit();
+        if (odd && i < end) {
+            sum += buffer.get(i++) & 0xff;
+            odd = false;
+        }
+        sum += sum(buffer, i, end - i);
+        if ((end - i) % 2 != 0) {
+            odd = true;
+        }
+        return normalize();
+    }
+
+    /**
+     * Adds a 16-bit word, e.g. a header field, as if it continued the data.
+     */
+    public InternetChecksum updateShort(final int value) {
+        if (odd) {
+            // the word is split over two words of the data
+            sum += (value >>> 8 & 0xff) + ((value & 0xff) << 8);
+        } else {
+            sum += value & 0xffff;
+        }
+        return this;
+    }
+
+    public InternetChecksum updateInt(final int value) {
+        return updateShort(value >>> 16).updateShort(value);
+    }
+
+    /**
+     * Adds a partial sum of whole 16-bit words, e.g. from {@link #pseudoHeaderSum(int, int, int, int)}, as if the
+     * words continued the data.
+     */
+    public InternetChecksum updateSum(final long partialSum) {
+        final int folded = fold(partialSum);
+        // after an odd number of bytes the words straddle the data's words, which swaps the bytes of their sum
+        sum += odd ? (folded & 0xff) << 8 | folded >>> 8 : folded;
+        return this;
+    }
+
+    /**
+     * The folded one's complement sum of everything added so far: 0xffff if the data includes a correct checksum.
+     */
+    public int value() {
+        return fold(sum);
+    }
+
+    /**
+     * The checksum to store in a header: the complement of {@link #value()}.
+     */
+    public int checksum() {
+        return ~value() & 0xffff;
+    }
+
+    /* Keeps the accumulator far from overflowing, an update adds less than 2^62. */
+    private InternetChecksum normalize() {
+        if (sum >>> 62 != 0) {
+            sum = fold(sum);
+        }
+        return this;
+    }
+
+    public InternetChecksum reset() {
+        sum = 0;
+        odd = false;
+        return this;
+    }
+
+    /**
+     * Unfolded sum of the big-endian 16-bit words of {@code buffer} at absolute index {@code from}, an odd last byte is
+     * padded with zero.
+     */
+    public static long sum(final ByteBuffer buffer, final int from, final int length) {
+        long sum = 0;
+        final int end = from + length;
+        int i = from;
+        if (buffer.order() == ByteOrder.BIG_ENDIAN) {
+            for (; i + 8 <= end; i += 8) {
+                final long word = buffer.getLong(i);
+                sum += (word >>> 32) + (word & LOW_32);
+            }
+        }
+        for (; i + 1 < end; i += 2) {
+            sum += (buffer.get(i) & 0xff) << 8 | buffer.get(i + 1) & 0xff;
+        }
+        if (i < end) {
+            sum += (buffer.get(i) & 0xff) << 8;
+        }
+        return sum;
+    }
+
+    /**
+     * Unfolded sum of the UDP (or TCP) pseudo-header, computed from its fields without building it.
+     */
+    public static long pseudoHeaderSum(final int sourceIp, final int destIp, final int protocol, final int length) {
+        return (sourceIp >>> 16) + (sourceIp & 0xffff)
+            + (destIp >>> 16) + (destIp & 0xffff)
+            + (protocol & 0xff) + (length & 0xffff);
+    }
+
+    /**
+     * Folds the carries of a sum back into 16 bits.
+     */
+    public static int fold(long sum) {
+        while (sum > 0xffff) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return (int) sum;
+    }
+
+    /**
+     * Updates a stored checksum for one 16-bit word of the covered data changing from {@code oldWord} to
+     * {@code newWord}, without summing the data again (RFC 1624, equation 3).
+     */
+    public static int adjust(final int checksum, final int oldWord, final int newWord) {
+        final int sum = (~checksum & 0xffff) + (~oldWord & 0xffff) + (newWord & 0xffff);
+        return ~fold(sum) & 0xffff;
+    }
+}
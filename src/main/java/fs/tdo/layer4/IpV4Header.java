@@ -25,9 +25,10 @@ public class IpV4Header {
     public IpV4Header(final byte[] bytes, final int offset) {
         version = (byte) (bytes[offset] >> 4 & 0xf);
         ihl = (byte) (bytes[offset] & 0xf);
-        if (ihl != 5) {
-            throw new RuntimeException("Options handling not implemented");
+        if (ihl < 5) {
+            throw new IllegalArgumentException("Invalid IPv4 header length " + ihl);
         }
+        // options, if any, are covered by the checksum but not interpreted
         final byte[] data = Utils.subarray(bytes, offset, offset + ihl * 4);
         bb = ByteBuffer.wrap(data, 0, data.length);
         bb.get();
@@ -38,11 +39,8 @@ public class IpV4Header {
         final byte tmp = bb.get();
         flags = (byte) ((tmp & 0b11100000) >>> 5);
         dontFragment = (flags & 0b00000010) != 0;
-        moreFragments = (flags & 0b00000100) != 0;
+        moreFragments = (flags & 0b00000001) != 0;
         fragmentOffset = (short) (((tmp & 0b00011111) << 8 & 0xff00 | bb.get() & 0xff) & 0x1fff);
-        if (!dontFragment || moreFragments || fragmentOffset != 0) {
-            throw new RuntimeException("Fragmentation handling not implemented");
-        }
         ttl = bb.get();
         protocol = bb.get();
         checksum = bb.getShort();
@@ -58,11 +56,8 @@ public class IpV4Header {
             + "." + (0xff & bytes[offset + 19]);
     }
 
-    static int intTo16BitsWithCarryOver(int intValue) {
-        while (intValue > 0xffff) {
-            intValue = (intValue & 0xffff) + (intValue >> 16);
-        }
-        return intValue;
+    public boolean isFragment() {
+        return moreFragments || fragmentOffset != 0;
     }
 
     public boolean isValid() {
@@ -82,12 +77,7 @@ public class IpV4Header {
     }
 
     private int getChecksum() {
-        bb.rewind();
-        int accumulation = 0;
-        while (bb.hasRemaining()) {
-            accumulation += Short.toUnsignedInt(bb.getShort());
-        }
-        return intTo16BitsWithCarryOver(accumulation);
+        return new InternetChecksum().update(bb.array(), 0, bb.limit()).value();
     }
 
     public int getLength() {
@@ -6,6 +6,9 @@ public class Packet {
 
     public Packet(final byte[] bytes, final int offset) {
         ipv4Header = new IpV4Header(bytes, offset);
+        if (ipv4Header.isFragment()) {
+            throw new IllegalArgumentException("Packet is a fragment, reassemble it with a FragmentReassembler");
+        }
         udpPacket = new UdpPacket(
             ipv4Header.sourceIp,
             ipv4Header.destIp,
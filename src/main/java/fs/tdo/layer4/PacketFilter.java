@@ -0,0 +1,361 @@
+package fs.tdo.layer4;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Predicate;
+
+/**
+ * A packet filter in a subset of the pcap-filter language of tcpdump, e.g.
+ * {@code src host 10.1.1.10 and dst port 42069 and udp}. The expression is parsed once into a tree of predicates that
+ * compare raw header fields of a {@link PacketView}, so matching a packet does not allocate or format anything.
+ *
+ * <p>Primitives:
+ * <ul>
+ *   <li>{@code [src|dst] host A.B.C.D}</li>
+ *   <li>{@code [src|dst] net A.B.C.D/LEN}</li>
+ *   <li>{@code [udp|tcp] [src|dst] port N} and {@code [udp|tcp] [src|dst] portrange N-M}, UDP or TCP if no protocol
+ *   is given</li>
+ *   <li>{@code ip}, {@code udp}, {@code tcp}, {@code icmp} and {@code ip proto N}</li>
+ *   <li>{@code less N} and {@code greater N}, comparing the IPv4 total length</li>
+ * </ul>
+ * Without a direction, addresses and ports match on either side. Primitives are combined with {@code not}/{@code !},
+ * {@code and}/{@code &&}, {@code or}/{@code ||} and parentheses. As in pcap-filter, negation binds tightest and
+ * {@code and} and {@code or} have equal precedence and associate to the left.
+ *
+ * <p>Filters only look at addresses, ports and protocols; they are meant for whole IPv4 packets whose headers have
+ * been checked, see {@link PacketView#isValid(PacketFilter)}. Layer 4 only takes UDP packets, so filters for it are
+ * compiled with {@link #compile(String, int)}, which rejects expressions such as {@code tcp} that no UDP packet can
+ * match.
+ */
+public final class PacketFilter {
+    /**
+     * The packets that carry the solution of layer 4.
+     */
+    public static final PacketFilter ONION =
+        compile("src host 10.1.1.10 and dst host 10.1.1.200 and udp dst port 42069");
+    private static final int PROTOCOL_ICMP = 1;
+    private static final int PROTOCOL_TCP = 6;
+
+    private final String expression;
+    private final Predicate<PacketView> predicate;
+
+    private PacketFilter(final String expression, final Predicate<PacketView> predicate) {
+        this.expression = expression;
+        this.predicate = predicate;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the expression is not a valid filter
+     */
+    public static PacketFilter compile(final String expression) {
+        return compile(new Parser(expression, -1));
+    }
+
+    /**
+     * Compiles a filter for packets of one protocol.
+     *
+     * @throws IllegalArgumentException if the expression is not a valid filter, or no packet of {@code protocol} can
+     *                                  match it
+     */
+    public static PacketFilter compile(final String expression, final int protocol) {
+        return compile(new Parser(expression, protocol));
+    }
+
+    private static PacketFilter compile(final Parser parser) {
+        final Term term = parser.expression();
+        if (parser.hasNext()) {
+            parser.next++;
+            throw parser.error("unexpected token");
+        }
+        if (Boolean.FALSE.equals(term.value)) {
+            throw new IllegalArgumentException("Filter \"" + parser.expression + "\" matches no packet of protocol "
+                + parser.protocol);
+        }
+        return new PacketFilter(parser.expression, term.predicate);
+    }
+
+    public boolean matches(final PacketView packet) {
+        return predicate.test(packet);
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    private enum Direction {
+        SOURCE, DEST, EITHER
+    }
+
+    /**
+     * A parsed expression and what it gives for every packet of the parser's protocol: {@code TRUE} or {@code FALSE}
+     * if that follows from the protocol, {@code null} if it depends on other fields.
+     */
+    private static final class Term {
+        final Predicate<PacketView> predicate;
+        final Boolean value;
+
+        Term(final Predicate<PacketView> predicate, final Boolean value) {
+            this.predicate = predicate;
+            this.value = value;
+        }
+    }
+
+    private static final class Parser {
+        private final String expression;
+        /* The protocol of all packets the filter is for, -1 if any. */
+        private final int protocol;
+        private final List<String> tokens = new ArrayList<>();
+        private int next;
+
+        Parser(final String expression, final int protocol) {
+            this.expression = expression;
+            this.protocol = protocol;
+            final String spaced = expression.replace("(", " ( ").replace(")", " ) ")
+                .replace("&&", " && ").replace("||", " || ").replace("!", " ! ");
+            for (String token : spaced.trim().split("\\s+")) {
+                if (!token.isEmpty()) {
+                    tokens.add(token.toLowerCase(Locale.ROOT));
+                }
+            }
+        }
+
+        boolean hasNext() {
+            return next < tokens.size();
+        }
+
+        Term expression() {
+            Term left = unary();
+            while (hasNext()) {
+                final String operator = tokens.get(next);
+                if (operator.equals("and") || operator.equals("&&")) {
+                    next++;
+                    final Term a = left;
+                    final Term b = unary();
+                    final Boolean value = Boolean.FALSE.equals(a.value) || Boolean.FALSE.equals(b.value) ? Boolean.FALSE
+                        : Boolean.TRUE.equals(a.value) && Boolean.TRUE.equals(b.value) ? Boolean.TRUE : null;
+                    left = new Term(p -> a.predicate.test(p) && b.predicate.test(p), value);
+                } else if (operator.equals("or") || operator.equals("||")) {
+                    next++;
+                    final Term a = left;
+                    final Term b = unary();
+                    final Boolean value = Boolean.TRUE.equals(a.value) || Boolean.TRUE.equals(b.value) ? Boolean.TRUE
+                        : Boolean.FALSE.equals(a.value) && Boolean.FALSE.equals(b.value) ? Boolean.FALSE : null;
+                    left = new Term(p -> a.predicate.test(p) || b.predicate.test(p), value);
+                } else {
+                    break;
+                }
+            }
+            return left;
+        }
+
+        private Term unary() {
+            final String token = take("a filter primitive");
+            switch (token) {
+                case "not":
+                case "!": {
+                    final Term operand = unary();
+                    return new Term(p -> !operand.predicate.test(p), operand.value == null ? null : !operand.value);
+                }
+                case "(": {
+                    final Term inner = expression();
+                    expect(")");
+                    return inner;
+                }
+                default:
+                    next--;
+                    return primitive();
+            }
+        }
+
+        private Term primitive() {
+            int protocol = -1;
+            String token = take("a filter primitive");
+            switch (token) {
+                case "ip":
+                    if (accept("proto")) {
+                        return protocol(number(0, 255));
+                    }
+                    return new Term(p -> true, Boolean.TRUE);
+                case "udp":
+                    protocol = PacketView.PROTOCOL_UDP;
+                    break;
+                case "tcp":
+                    protocol = PROTOCOL_TCP;
+                    break;
+                case "icmp":
+                    return protocol(PROTOCOL_ICMP);
+                case "proto":
+                    return protocol(number(0, 255));
+                case "less": {
+                    final int length = number(0, 65535);
+                    return new Term(p -> p.totalLength() <= length, null);
+                }
+                case "greater": {
+                    final int length = number(0, 65535);
+                    return new Term(p -> p.totalLength() >= length, null);
+                }
+                default:
+                    next--;
+            }
+            if (protocol >= 0 && !peekAny("src", "dst", "port", "portrange")) {
+                return protocol(protocol);
+            }
+            Direction direction = Direction.EITHER;
+            if (accept("src")) {
+                direction = Direction.SOURCE;
+            } else if (accept("dst")) {
+                direction = Direction.DEST;
+            }
+            token = take("host, net, port or portrange");
+            switch (token) {
+                case "host":
+                    if (protocol >= 0) {
+                        throw error("host after a transport protocol");
+                    }
+                    return new Term(address(direction, address(), -1), null);
+                case "net":
+                    if (protocol >= 0) {
+                        throw error("net after a transport protocol");
+                    }
+                    return new Term(net(direction), null);
+                case "port": {
+                    final int port = number(0, 65535);
+                    return ports(protocol, direction, port, port);
+                }
+                case "portrange": {
+                    final String range = take("a port range");
+                    final int dash = range.indexOf('-');
+                    if (dash < 0) {
+                        throw error("expected N-M");
+                    }
+                    final int from = parse(range.substring(0, dash), 0, 65535);
+                    final int to = parse(range.substring(dash + 1), from, 65535);
+                    return ports(protocol, direction, from, to);
+                }
+                default:
+                    next--;
+                    throw error("unknown primitive");
+            }
+        }
+
+        private Predicate<PacketView> net(final Direction direction) {
+            final String token = take("a network");
+            final int slash = token.indexOf('/');
+            final int prefix = slash < 0 ? 32 : parse(token.substring(slash + 1), 0, 32);
+            final int mask = prefix == 0 ? 0 : -1 << 32 - prefix;
+            final int network = parseAddress(slash < 0 ? token : token.substring(0, slash));
+            if ((network & ~mask) != 0) {
+                throw error("host bits set in network");
+            }
+            return address(direction, network, mask);
+        }
+
+        private static Predicate<PacketView> address(final Direction direction, final int address, final int mask) {
+            switch (direction) {
+                case SOURCE:
+                    return p -> (p.sourceIp() & mask) == address;
+                case DEST:
+                    return p -> (p.destIp() & mask) == address;
+                default:
+                    return p -> (p.sourceIp() & mask) == address || (p.destIp() & mask) == address;
+            }
+        }
+
+        private Term protocol(final int number) {
+            return new Term(p -> p.protocol() == number, this.protocol < 0 ? null : number == this.protocol);
+        }
+
+        /*
+         * UDP and TCP both start with the source and destination port, so the same fields serve both.
+         */
+        private Term ports(final int protocol, final Direction direction, final int from, final int to) {
+            final Predicate<PacketView> transport = protocol >= 0
+                ? p -> p.protocol() == protocol
+                : p -> p.protocol() == PacketView.PROTOCOL_UDP || p.protocol() == PROTOCOL_TCP;
+            final boolean possible = this.protocol < 0 || (protocol >= 0 ? protocol == this.protocol
+                : this.protocol == PacketView.PROTOCOL_UDP || this.protocol == PROTOCOL_TCP);
+            final Boolean value = possible ? null : Boolean.FALSE;
+            switch (direction) {
+                case SOURCE:
+                    return new Term(p -> transport.test(p) && p.sourcePort() >= from && p.sourcePort() <= to, value);
+                case DEST:
+                    return new Term(p -> transport.test(p) && p.destPort() >= from && p.destPort() <= to, value);
+                default:
+                    return new Term(p -> transport.test(p) && (p.sourcePort() >= from && p.sourcePort() <= to
+                        || p.destPort() >= from && p.destPort() <= to), value);
+            }
+        }
+
+        private int address() {
+            return parseAddress(take("an IPv4 address"));
+        }
+
+        private int parseAddress(final String token) {
+            final String[] parts = token.split("\\.", -1);
+            if (parts.length != 4) {
+                throw error("expected an IPv4 address");
+            }
+            int address = 0;
+            for (String part : parts) {
+                address = address << 8 | parse(part, 0, 255);
+            }
+            return address;
+        }
+
+        private int number(final int min, final int max) {
+            return parse(take("a number"), min, max);
+        }
+
+        private int parse(final String token, final int min, final int max) {
+            final int value;
+            try {
+                value = Integer.parseInt(token);
+            } catch (NumberFormatException e) {
+                throw error("expected a number");
+            }
+            if (value < min || value > max) {
+                throw error("expected a number from " + min + " to " + max);
+            }
+            return value;
+        }
+
+        private boolean peekAny(final String... candidates) {
+            if (hasNext()) {
+                for (String candidate : candidates) {
+                    if (tokens.get(next).equals(candidate)) {
+                        return true;
+                    }
+                }
+            }
+            return false;
+        }
+
+        private boolean accept(final String token) {
+            if (peekAny(token)) {
+                next++;
+                return true;
+            }
+            return false;
+        }
+
+        private void expect(final String token) {
+            if (!accept(token)) {
+                throw error("expected '" + token + "'");
+            }
+        }
+
+        private String take(final String expected) {
+            if (!hasNext()) {
+                throw error("expected " + expected);
+            }
+            return tokens.get(next++);
+        }
+
+        IllegalArgumentException error(final String message) {
+            final String at = next == 0 ? "start" : next > tokens.size() ? "end" : "'" + tokens.get(next - 1) + "'";
+            return new IllegalArgumentException("Invalid filter \"" + expression + "\": " + message + " at " + at);
+        }
+    }
+}
@@ -0,0 +1,138 @@
+package fs.tdo.layer4;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Counts accepted and dropped packets, with the reason for every drop, and the processing throughput. The counters are
+ * {@link LongAdder}s, so packets can be counted from many threads without contention.
+ */
+public final class PacketStatistics implements PacketStatisticsMXBean {
+    private static final DropReason[] REASONS = DropReason.values();
+
+    private final LongAdder acceptedPackets = new LongAdder();
+    private final LongAdder acceptedBytes = new LongAdder();
+    private final LongAdder droppedBytes = new LongAdder();
+    private final LongAdder[] drops = new LongAdder[REASONS.length];
+    private final LongAdder processedBytes = new LongAdder();
+    private final LongAdder processingNanos = new LongAdder();
+
+    public PacketStatistics() {
+        for (int i = 0; i < drops.length; i++) {
+            drops[i] = new LongAdder();
+        }
+    }
+
+    public void accept(final int payloadLength) {
+        acceptedPackets.increment();
+        acceptedBytes.add(payloadLength);
+    }
+
+    public void drop(final DropReason reason, final int packetLength) {
+        drops[reason.ordinal()].increment();
+        droppedBytes.add(packetLength);
+    }
+
+    public void drop(final DropReason reason, final long packets, final long bytes) {
+        drops[reason.ordinal()].add(packets);
+        droppedBytes.add(bytes);
+    }
+
+    /**
+     * Records that {@code bytes} of input were processed in {@code nanos}.
+     */
+    public void processed(final long bytes, final long nanos) {
+        processedBytes.add(bytes);
+        processingNanos.add(nanos);
+    }
+
+    public long drops(final DropReason reason) {
+        return drops[reason.ordinal()].sum();
+    }
+
+    @Override
+    public long getAcceptedPackets() {
+        return acceptedPackets.sum();
+    }
+
+    @Override
+    public long getAcceptedBytes() {
+        return acceptedBytes.sum();
+    }
+
+    @Override
+    public long getDroppedPackets() {
+        long sum = 0;
+        for (LongAdder drop : drops) {
+            sum += drop.sum();
+        }
+        return sum;
+    }
+
+    @Override
+    public long getDroppedBytes() {
+        return droppedBytes.sum();
+    }
+
+    @Override
+    public Map<String, Long> getDrops() {
+        final Map<String, Long> result = new LinkedHashMap<>();
+        for (DropReason reason : REASONS) {
+            result.put(reason.name(), drops(reason));
+        }
+        return result;
+    }
+
+    @Override
+    public double getThroughput() {
+        final long nanos = processingNanos.sum();
+        return nanos == 0 ? 0 : processedBytes.sum() * 1e9 / nanos;
+    }
+
+    @Override
+    public void reset() {
+        acceptedPackets.reset();
+        acceptedBytes.reset();
+        droppedBytes.reset();
+        for (LongAdder drop : drops) {
+            drop.reset();
+        }
+        processedBytes.reset();
+        processingNanos.reset();
+    }
+
+    /**
+     * Registers these statistics with the platform MBean server as {@code fs.tdo:type=PacketStatistics,name=<name>},
+     * unless they are registered already.
+     */
+    public void register(final String name) throws JMException {
+        final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, new ObjectName("fs.tdo:type=PacketStatistics,name=" + ObjectName.quote(name)));
+        } catch (InstanceAlreadyExistsException e) {
+            // registered before
+        }
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder builder = new StringBuilder()
+            .append("accepted ").append(getAcceptedPackets()).append(" packets (").append(getAcceptedBytes())
+            .append(" payload bytes), dropped ").append(getDroppedPackets()).append(" packets (")
+            .append(getDroppedBytes()).append(" bytes)");
+        for (DropReason reason : REASONS) {
+            final long count = drops(reason);
+            if (count != 0) {
+                builder.append(", ").append(reason).append(' ').append(count);
+            }
+        }
+        return builder.append(String.format(Locale.ROOT, ", %.1f MB/s", getThroughput() / 1e6)).toString();
+    }
+}
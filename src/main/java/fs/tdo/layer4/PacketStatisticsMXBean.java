@@ -0,0 +1,34 @@
+package fs.tdo.layer4;
+
+import java.util.Map;
+
+/**
+ * JMX view of {@link PacketStatistics}.
+ */
+public interface PacketStatisticsMXBean {
+    long getAcceptedPackets();
+
+    /**
+     * Payload bytes of the accepted packets.
+     */
+    long getAcceptedBytes();
+
+    long getDroppedPackets();
+
+    /**
+     * IPv4 total length of the dropped packets.
+     */
+    long getDroppedBytes();
+
+    /**
+     * Dropped packets by {@link DropReason}.
+     */
+    Map<String, Long> getDrops();
+
+    /**
+     * Input bytes processed per second of processing time.
+     */
+    double getThroughput();
+
+    void reset();
+}
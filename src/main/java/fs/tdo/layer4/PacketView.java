@@ -0,0 +1,233 @@
+package fs.tdo.layer4;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Reusable view of one IPv4/UDP packet inside a larger buffer. Fields are read in place whenever they are asked for,
+ * nothing is copied, and moving the view to the next packet does not allocate.
+ */
+public class PacketView {
+    /** 10.1.1.10 */
+    public static final int SOURCE_IP = 0x0A01010A;
+    /** 10.1.1.200 */
+    public static final int DEST_IP = 0x0A0101C8;
+    public static final int DEST_PORT = 42069;
+    public static final int PROTOCOL_UDP = 17;
+
+    private final ByteBuffer buffer;
+    private int offset;
+
+    public PacketView(final ByteBuffer buffer) {
+        this.buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Moves the view to the packet starting at absolute index {@code offset} of the buffer.
+     */
+    public PacketView moveTo(final int offset) {
+        this.offset = offset;
+        if (totalLength() < 20) {
+            throw new IllegalStateException("Invalid IPv4 total length " + totalLength() + " at " + offset);
+        }
+        return this;
+    }
+
+    public int offset() {
+        return offset;
+    }
+
+    public int version() {
+        return (buffer.get(offset) & 0xff) >>> 4;
+    }
+
+    public int ihl() {
+        return buffer.get(offset) & 0xf;
+    }
+
+    public int headerLength() {
+        return ihl() * 4;
+    }
+
+    public int totalLength() {
+        return buffer.getShort(offset + 2) & 0xffff;
+    }
+
+    public int identification() {
+        return buffer.getShort(offset + 4) & 0xffff;
+    }
+
+    public boolean dontFragment() {
+        return (buffer.get(offset + 6) & 0x40) != 0;
+    }
+
+    public boolean moreFragments() {
+        return (buffer.get(offset + 6) & 0x20) != 0;
+    }
+
+    /**
+     * Offset of this fragment's data in the original datagram, in units of 8 bytes.
+     */
+    public int fragmentOffset() {
+        return buffer.getShort(offset + 6) & 0x1fff;
+    }
+
+    /**
+     * Whether this packet is only part of a datagram, see {@link FragmentReassembler}.
+     */
+    public boolean isFragment() {
+        return moreFragments() || fragmentOffset() != 0;
+    }
+
+    public int ttl() {
+        return buffer.get(offset + 8) & 0xff;
+    }
+
+    public int protocol() {
+        return buffer.get(offset + 9) & 0xff;
+    }
+
+    public int sourceIp() {
+        return buffer.getInt(offset + 12);
+    }
+
+    public int destIp() {
+        return buffer.getInt(offset + 16);
+    }
+
+    public int udpOffset() {
+        return offset + headerLength();
+    }
+
+    public int sourcePort() {
+        return buffer.getShort(udpOffset()) & 0xffff;
+    }
+
+    public int destPort() {
+        return buffer.getShort(udpOffset() + 2) & 0xffff;
+    }
+
+    public int udpLength() {
+        return buffer.getShort(udpOffset() + 4) & 0xffff;
+    }
+
+    public int udpChecksum() {
+        return buffer.getShort(udpOffset() + 6) & 0xffff;
+    }
+
+    public int payloadOffset() {
+        return udpOffset() + 8;
+    }
+
+    public int payloadLength() {
+        return udpLength() - 8;
+    }
+
+    /**
+     * Number of bytes from the start of this packet to the start of the next one.
+     */
+    public int length() {
+        return totalLength();
+    }
+
+    /**
+     * Whether this is a packet of the solution, see {@link PacketFilter#ONION}.
+     */
+    public boolean isValid() {
+        return isValid(PacketFilter.ONION);
+    }
+
+    /**
+     * Whether this is a whole, intact IPv4/UDP packet, both checksums included, that passes {@code filter}.
+     */
+    public boolean isValid(final PacketFilter filter) {
+        return check(filter) == null;
+    }
+
+    /**
+     * The first check of {@link #isValid(PacketFilter)} that this packet fails, {@code null} if it passes them all.
+     * The checksums come before the filter, so a corrupted packet counts as corrupted whatever its addresses say.
+     * Only UDP packets can pass, so a filter for other protocols never matches; see
+     * {@link PacketFilter#compile(String, int)}, which rejects such filters.
+     */
+    public DropReason check(final PacketFilter filter) {
+        if (version() != 4) {
+            return DropReason.NOT_IPV4;
+        }
+        if (ihl() < 5 || headerLength() > totalLength()) {
+            return DropReason.BAD_HEADER_LENGTH;
+        }
+        if (isFragment()) {
+            return DropReason.FRAGMENT;
+        }
+        if (ttl() == 0) {
+            return DropReason.ZERO_TTL;
+        }
+        if (protocol() != PROTOCOL_UDP) {
+            return DropReason.NOT_UDP;
+        }
+        if (!validUdpLength()) {
+            return DropReason.BAD_UDP_LENGTH;
+        }
+        if (!validIpChecksum()) {
+            return DropReason.BAD_IP_CHECKSUM;
+        }
+        if (!validUdpChecksum()) {
+            return DropReason.BAD_UDP_CHECKSUM;
+        }
+        if (!filter.matches(this)) {
+            return DropReason.FILTERED;
+        }
+        return null;
+    }
+
+    public boolean validIpChecksum() {
+        return ihl() >= 5 && headerLength() <= totalLength()
+            && InternetChecksum.fold(InternetChecksum.sum(buffer, offset, headerLength())) == 0xffff;
+    }
+
+    /**
+     * Whether the UDP header fits in the packet and the UDP length covers the header and stays within the packet, so
+     * that the payload lies inside this packet.
+     */
+    public boolean validUdpLength() {
+        final int available = totalLength() - headerLength();
+        return available >= 8 && udpLength() >= 8 && udpLength() <= available;
+    }
+
+    /**
+     * Checks the UDP checksum over the pseudo-header, which is summed from the IPv4 header fields in place, and the
+     * UDP header and payload. A UDP length that does not fit the packet fails, see {@link #validUdpLength()}.
+     */
+    public boolean validUdpChecksum() {
+        if (!validUdpLength()) {
+            return false;
+        }
+        if (udpChecksum() == 0) {
+            return true;
+        }
+        final long pseudoHeader = InternetChecksum.pseudoHeaderSum(sourceIp(), destIp(), PROTOCOL_UDP, udpLength());
+        return InternetChecksum.fold(pseudoHeader + InternetChecksum.sum(buffer, udpOffset(), udpLength())) == 0xffff;
+    }
+
+    /**
+     * Copies the UDP payload to {@code dst} at {@code dstOffset}.
+     *
+     * @throws IllegalStateException if the UDP length does not fit the packet, see {@link #validUdpLength()}
+     */
+    public void copyPayload(final byte[] dst, final int dstOffset) {
+        if (!validUdpLength()) {
+            throw new IllegalStateException("Invalid UDP length " + udpLength() + " at " + offset);
+        }
+        buffer.position(payloadOffset());
+        buffer.get(dst, dstOffset, payloadLength());
+    }
+
+    /**
+     * Copies {@code length} bytes starting at absolute index {@code from} of the underlying buffer.
+     */
+    public void copyBytes(final int from, final byte[] dst, final int dstOffset, final int length) {
+        buffer.position(from);
+        buffer.get(dst, dstOffset, length);
+    }
+}
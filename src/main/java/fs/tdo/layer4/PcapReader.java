@@ -0,0 +1,372 @@
+package fs.tdo.layer4;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Reads the IPv4 packets of a pcap or pcapng capture file. The file is memory-mapped one window at a time, so captures
+ * of any size are read without copying them onto the heap, and every record is handed out as a {@link PacketView} into
+ * the mapped window.
+ *
+ * <p>Raw IP, Ethernet (with VLAN tags) and BSD loopback link types are understood. Records that do not carry IPv4 are
+ * skipped, records cut short by the capture's snapshot length, or by the end of the file, are reported by
+ * {@link #isComplete()}.
+ */
+public class PcapReader implements Closeable {
+    public static final int LINKTYPE_NULL = 0;
+    public static final int LINKTYPE_ETHERNET = 1;
+    public static final int LINKTYPE_RAW = 101;
+    public static final int LINKTYPE_IPV4 = 228;
+    static final int PCAP_MAGIC = 0xa1b2c3d4;
+    static final int PCAP_MAGIC_NANOS = 0xa1b23c4d;
+    static final int PCAPNG_SECTION_HEADER = 0x0a0d0d0a;
+    static final int PCAPNG_BYTE_ORDER_MAGIC = 0x1a2b3c4d;
+    static final int PCAPNG_INTERFACE_DESCRIPTION = 1;
+    static final int PCAPNG_SIMPLE_PACKET = 3;
+    static final int PCAPNG_ENHANCED_PACKET = 6;
+    static final int DEFAULT_WINDOW_SIZE = 1 << 30;
+    private static final int ETHERTYPE_IPV4 = 0x0800;
+    private static final int ETHERTYPE_VLAN = 0x8100;
+    private static final int ETHERTYPE_QINQ = 0x88a8;
+    private static final int AF_INET = 2;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final FileChannel channel;
+    private final long size;
+    private final int windowSize;
+    private final boolean pcapng;
+    private ByteOrder order;
+    private MappedByteBuffer window;
+    private long windowStart;
+    private PacketView view;
+    /* File position of the next record or block. */
+    private long position;
+    /* pcap: one link type and timestamp resolution for the whole file, pcapng: one per interface of the section. */
+    private int[] linkTypes = new int[1];
+    private long[] unitsPerSecond = new long[1];
+    private int interfaces;
+    /* The current record. */
+    private int packetOffset;
+    private int packetLength;
+    private int originalLength;
+    private int linkHeaderLength;
+    private long timestamp;
+
+    PcapReader(final FileChannel channel, final int windowSize) throws IOException {
+        this.channel = channel;
+        this.size = channel.size();
+        this.windowSize = windowSize;
+        ensure(0, 4);
+        final int magic = window.order(ByteOrder.BIG_ENDIAN).getInt(0);
+        if (magic == PCAPNG_SECTION_HEADER) {
+            pcapng = true;
+            order = ByteOrder.BIG_ENDIAN;
+            return;
+        }
+        pcapng = false;
+        if (magic == PCAP_MAGIC || magic == PCAP_MAGIC_NANOS) {
+            order = ByteOrder.BIG_ENDIAN;
+        } else if (Integer.reverseBytes(magic) == PCAP_MAGIC || Integer.reverseBytes(magic) == PCAP_MAGIC_NANOS) {
+            order = ByteOrder.LITTLE_ENDIAN;
+        } else {
+            throw new IOException("Not a pcap or pcapng file, magic " + Integer.toHexString(magic));
+        }
+        ensure(0, 24);
+        window.order(order);
+        linkTypes[0] = window.getInt(20) & 0x0fffffff;
+        unitsPerSecond[0] = window.getInt(0) == PCAP_MAGIC_NANOS ? NANOS_PER_SECOND : 1_000_000L;
+        interfaces = 1;
+        checkLinkType(linkTypes[0]);
+        position = 24;
+    }
+
+    public static PcapReader open(final Path path) throws IOException {
+        final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+        try {
+            return new PcapReader(channel, DEFAULT_WINDOW_SIZE);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Moves to the next record that carries an IPv4 packet.
+     *
+     * @return {@code false} at the end of the file
+     */
+    public boolean next() throws IOException {
+        while (position < size) {
+            if (pcapng ? nextBlock() : nextRecord()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Whether the captured bytes hold a whole IPv4 packet: the capture may have cut it short, or its total length may
+     * be broken.
+     */
+    public boolean isComplete() {
+        if (packetLength < 20) {
+            return false;
+        }
+        final int totalLength = networkShort(packetOffset + 2);
+        return totalLength >= 20 && totalLength <= packetLength;
+    }
+
+    /**
+     * View of the current packet, valid until the next call of {@link #next()}. Only complete packets can be viewed.
+     */
+    public PacketView view() {
+        return view.moveTo(packetOffset);
+    }
+
+    /**
+     * The captured bytes of the current packet, starting with its IPv4 header.
+     */
+    public ByteBuffer packet() {
+        final ByteBuffer packet = window.duplicate();
+        packet.limit(packetOffset + packetLength).position(packetOffset);
+        return packet.slice();
+    }
+
+    /**
+     * Capture time of the current packet in nanoseconds since the epoch.
+     */
+    public long timestamp() {
+        return timestamp;
+    }
+
+    /**
+     * Length of the current record's frame on the wire, link layer header included.
+     */
+    public int originalLength() {
+        return originalLength;
+    }
+
+    /**
+     * Length of the current IPv4 packet on the wire, as far as the record tells: without the link layer header, and
+     * never less than the captured bytes.
+     */
+    public int originalPacketLength() {
+        return Math.max(packetLength, originalLength - linkHeaderLength);
+    }
+
+    /**
+     * Number of bytes of the current IPv4 packet: its total length if it is complete, else the captured bytes.
+     */
+    public int capturedLength() {
+        return isComplete() ? networkShort(packetOffset + 2) : packetLength;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    private boolean nextRecord() throws IOException {
+        if (size - position < 16) {
+            // a record header cut short by the end of the file carries no packet
+            position = size;
+            return false;
+        }
+        ensure(position, 16);
+        int i = (int) (position - windowStart);
+        final long seconds = window.getInt(i) & 0xffffffffL;
+        final long fraction = window.getInt(i + 4) & 0xffffffffL;
+        int capturedLength = window.getInt(i + 8);
+        originalLength = window.getInt(i + 12);
+        if (capturedLength < 0) {
+            throw new IOException("Corrupt pcap record at " + position);
+        }
+        // the last record may be cut short by the end of the file, its packet is then incomplete
+        capturedLength = (int) Math.min(capturedLength, size - position - 16);
+        ensure(position, 16L + capturedLength);
+        i = (int) (position - windowStart);
+        position += 16L + capturedLength;
+        timestamp = seconds * NANOS_PER_SECOND + fraction * NANOS_PER_SECOND / unitsPerSecond[0];
+        return link(linkTypes[0], i + 16, capturedLength);
+    }
+
+    private boolean nextBlock() throws IOException {
+        if (size - position < 12) {
+            position = size;
+            return false;
+        }
+        ensure(position, 12);
+        int i = (int) (position - windowStart);
+        final int type = window.getInt(i);
+        if (type == PCAPNG_SECTION_HEADER) {
+            final int byteOrderMagic = window.order(ByteOrder.BIG_ENDIAN).getInt(i + 8);
+            if (byteOrderMagic == PCAPNG_BYTE_ORDER_MAGIC) {
+                order = ByteOrder.BIG_ENDIAN;
+            } else if (Integer.reverseBytes(byteOrderMagic) == PCAPNG_BYTE_ORDER_MAGIC) {
+                order = ByteOrder.LITTLE_ENDIAN;
+            } else {
+                throw new IOException("Corrupt pcapng section header at " + position);
+            }
+            window.order(order);
+            interfaces = 0;
+        }
+        final long blockLength = window.getInt(i + 4) & 0xffffffffL;
+        if (blockLength < 12 || blockLength % 4 != 0) {
+            throw new IOException("Corrupt pcapng block at " + position);
+        }
+        // the last block may be cut short by the end of the file: only a packet block is still read, its packet is
+        // then incomplete
+        final long available = Math.min(blockLength, size - position);
+        final boolean truncated = available < blockLength;
+        ensure(position, available);
+        i = (int) (position - windowStart);
+        position += available;
+        switch (type) {
+            case PCAPNG_INTERFACE_DESCRIPTION:
+                if (!truncated) {
+                    addInterface(i, (int) blockLength);
+                }
+                return false;
+            case PCAPNG_ENHANCED_PACKET: {
+                if (available < 28) {
+                    return false;
+                }
+                final int id = window.getInt(i + 8);
+                if (id < 0 || id >= interfaces) {
+                    throw new IOException("Packet of unknown interface " + id);
+                }
+                final long units = (window.getInt(i + 12) & 0xffffffffL) << 32 | window.getInt(i + 16) & 0xffffffffL;
+                final int capturedLength = window.getInt(i + 20);
+                originalLength = window.getInt(i + 24);
+                if (capturedLength < 0 || capturedLength > blockLength - 32) {
+                    throw new IOException("Corrupt pcapng packet block");
+                }
+                timestamp = toNanos(units, unitsPerSecond[id]);
+                return link(linkTypes[id], i + 28, (int) Math.min(capturedLength, available - 28));
+            }
+            case PCAPNG_SIMPLE_PACKET:
+                if (interfaces == 0) {
+                    throw new IOException("Packet of unknown interface 0");
+                }
+                originalLength = window.getInt(i + 8);
+                timestamp = 0;
+                return link(linkTypes[0], i + 12,
+                    (int) Math.min(originalLength & 0xffffffffL, truncated ? available - 12 : blockLength - 16));
+            default:
+                return false;
+        }
+    }
+
+    private void addInterface(final int i, final int blockLength) throws IOException {
+        final int linkType = window.getShort(i + 8) & 0xffff;
+        checkLinkType(linkType);
+        long units = 1_000_000L;
+        int option = i + 16;
+        while (option + 4 <= i + blockLength - 4) {
+            final int code = window.getShort(option) & 0xffff;
+            final int length = window.getShort(option + 2) & 0xffff;
+            if (code == 0) {
+                break;
+            }
+            if (code == 9 && length == 1) {
+                // if_tsresol: a negative power of ten, or of two if the most significant bit is set
+                final int resolution = window.get(option + 4);
+                units = resolution < 0 ? 1L << (resolution & 0x7f) : (long) Math.pow(10, resolution);
+            }
+            option += 4 + (length + 3 & ~3);
+        }
+        if (interfaces == linkTypes.length) {
+            linkTypes = Arrays.copyOf(linkTypes, interfaces * 2);
+            unitsPerSecond = Arrays.copyOf(unitsPerSecond, interfaces * 2);
+        }
+        linkTypes[interfaces] = linkType;
+        unitsPerSecond[interfaces++] = units;
+    }
+
+    private static long toNanos(final long units, final long unitsPerSecond) {
+        return units / unitsPerSecond * NANOS_PER_SECOND + units % unitsPerSecond * NANOS_PER_SECOND / unitsPerSecond;
+    }
+
+    /**
+     * Finds the IPv4 packet in the frame at window index {@code i}.
+     */
+    private boolean link(final int linkType, int i, int length) {
+        final int frame = i;
+        switch (linkType) {
+            case LINKTYPE_ETHERNET: {
+                int header = 12;
+                int etherType = length >= header + 2 ? networkShort(i + header) : -1;
+                while ((etherType == ETHERTYPE_VLAN || etherType == ETHERTYPE_QINQ) && length >= header + 6) {
+                    header += 4;
+                    etherType = networkShort(i + header);
+                }
+                if (etherType != ETHERTYPE_IPV4) {
+                    return false;
+                }
+                i += header + 2;
+                length -= header + 2;
+                break;
+            }
+            case LINKTYPE_NULL: {
+                // address family in the byte order of the capturing host
+                final int family = length >= 4 ? window.getInt(i) : -1;
+                if (family != AF_INET && Integer.reverseBytes(family) != AF_INET) {
+                    return false;
+                }
+                i += 4;
+                length -= 4;
+                break;
+            }
+            default:
+                break;
+        }
+        if (length < 1 || (window.get(i) & 0xf0) != 0x40) {
+            return false;
+        }
+        packetOffset = i;
+        packetLength = length;
+        linkHeaderLength = i - frame;
+        return true;
+    }
+
+    private int networkShort(final int i) {
+        return (window.get(i) & 0xff) << 8 | window.get(i + 1) & 0xff;
+    }
+
+    private static void checkLinkType(final int linkType) throws IOException {
+        if (linkType != LINKTYPE_NULL && linkType != LINKTYPE_ETHERNET && linkType != LINKTYPE_RAW
+            && linkType != LINKTYPE_IPV4) {
+            throw new IOException("Unsupported link type " + linkType);
+        }
+    }
+
+    /**
+     * Maps a new window if {@code [from, from + length)} of the file is not inside the current one.
+     */
+    private void ensure(final long from, final long length) throws IOException {
+        if (from + length > size) {
+            throw new EOFException("Capture truncated at " + from);
+        }
+        if (window != null && from >= windowStart && from + length <= windowStart + window.capacity()) {
+            return;
+        }
+        final long mapSize = Math.min(Math.max(windowSize, length), size - from);
+        if (mapSize > Integer.MAX_VALUE) {
+            throw new IOException("Record too large: " + length + " bytes");
+        }
+        windowStart = from;
+        window = channel.map(FileChannel.MapMode.READ_ONLY, from, mapSize);
+        if (order != null) {
+            window.order(order);
+        }
+        view = new PacketView(window);
+    }
+}
@@ -0,0 +1,89 @@
+package fs.tdo.layer4;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.Flushable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Writes IPv4 packets to a pcap file with nanosecond timestamps and the raw IP link type, which tools like Wireshark
+ * and tcpdump open directly.
+ */
+public class PcapWriter implements Closeable, Flushable {
+    private static final int SNAPSHOT_LENGTH = 65535;
+    private static final long NANOS_PER_SECOND = 1_000_000_000L;
+
+    private final OutputStream out;
+    private final byte[] record = new byte[16 + SNAPSHOT_LENGTH];
+    private final ByteBuffer header = ByteBuffer.wrap(record, 0, 16);
+
+    public PcapWriter(final OutputStream out) throws IOException {
+        this.out = out;
+        final ByteBuffer fileHeader = ByteBuffer.allocate(24)
+            .putInt(PcapReader.PCAP_MAGIC_NANOS)
+            .putShort((short) 2)
+            .putShort((short) 4)
+            .putInt(0)
+            .putInt(0)
+            .putInt(SNAPSHOT_LENGTH)
+            .putInt(PcapReader.LINKTYPE_RAW);
+        out.write(fileHeader.array());
+    }
+
+    public static PcapWriter create(final Path path) throws IOException {
+        final OutputStream out = new BufferedOutputStream(Files.newOutputStream(path), 1 << 16);
+        try {
+            return new PcapWriter(out);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Writes the packet the view is positioned on.
+     *
+     * @param timestamp capture time in nanoseconds since the epoch
+     */
+    public void write(final PacketView packet, final long timestamp) throws IOException {
+        final int length = packet.totalLength();
+        packet.copyBytes(packet.offset(), record, 16, length);
+        writeRecord(length, length, timestamp);
+    }
+
+    /**
+     * Writes the remaining bytes of {@code packet}, which start with an IPv4 header, without moving its position. The
+     * bytes may be a packet cut short, {@code originalLength} is then the length it had on the wire.
+     *
+     * @param originalLength length of the whole packet, at least the remaining bytes are recorded
+     * @param timestamp capture time in nanoseconds since the epoch
+     */
+    public void write(final ByteBuffer packet, final int originalLength, final long timestamp) throws IOException {
+        final int length = Math.min(packet.remaining(), SNAPSHOT_LENGTH);
+        packet.duplicate().get(record, 16, length);
+        writeRecord(length, Math.max(packet.remaining(), originalLength), timestamp);
+    }
+
+    private void writeRecord(final int length, final int originalLength, final long timestamp) throws IOException {
+        header.clear();
+        header.putInt((int) (timestamp / NANOS_PER_SECOND))
+            .putInt((int) (timestamp % NANOS_PER_SECOND))
+            .putInt(length)
+            .putInt(originalLength);
+        out.write(record, 0, 16 + length);
+    }
+
+    @Override
+    public void flush() throws IOException {
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        out.close();
+    }
+}
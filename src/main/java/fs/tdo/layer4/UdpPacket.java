@@ -1,7 +1,6 @@
 package fs.tdo.layer4;
 
 import fs.tdo.Utils;
-import java.nio.ByteBuffer;
 
 public class UdpPacket {
     public final short destPort;
@@ -32,28 +31,9 @@ public class UdpPacket {
         if (checksum == 0) {
             return true;
         }
-        byte[] data = new byte[12 + raw.length];
-        final ByteBuffer bb = ByteBuffer.wrap(data);
-        bb.putInt(sourceIp);
-        bb.putInt(destIp);
-        bb.put((byte) 0);
-        bb.put((byte) 17);
-        bb.putShort(totalLength);
-        bb.put(raw);
-
-        return computeChecksum(data) == 0xffff;
-    }
-
-    private int computeChecksum(byte[] data) {
-        int sumHighBytes = 0;
-        for (int i = 0; i < data.length; i += 2) {
-            sumHighBytes += Byte.toUnsignedInt(data[i]);
-        }
-        int sumLowBytes = 0;
-        for (int i = 1; i < data.length; i += 2) {
-            sumLowBytes += Byte.toUnsignedInt(data[i]);
-        }
-        int totalSum = (sumHighBytes << 8) + sumLowBytes;
-        return IpV4Header.intTo16BitsWithCarryOver(totalSum);
+        return new InternetChecksum()
+            .updateSum(InternetChecksum.pseudoHeaderSum(sourceIp, destIp, PacketView.PROTOCOL_UDP, totalLength))
+            .update(raw, 0, raw.length)
+            .value() == 0xffff;
     }
 }
\ No newline at end of file
@@ -0,0 +1,338 @@
+package fs.tdo.layer5;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes the few class files the {@link Jit} needs: a public final class with a default constructor and methods
+ * without exception handlers. The classes have version 49, which the JVM verifies by type inference, so no stack map
+ * frames have to be computed.
+ *
+ * <p>Like the {@link Jit}, this uses neither lambdas nor string concatenation with {@code +}: both are bootstrapped
+ * on first use, which in a short run costs more than compiling saves.
+ */
+final class ClassWriter {
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    static final int ICONST_0 = 0x03;
+    static final int BIPUSH = 0x10;
+    static final int SIPUSH = 0x11;
+    static final int LDC_W = 0x13;
+    static final int ILOAD = 0x15;
+    static final int ALOAD = 0x19;
+    static final int BALOAD = 0x33;
+    static final int ISTORE = 0x36;
+    static final int ASTORE = 0x3a;
+    static final int BASTORE = 0x54;
+    static final int IADD = 0x60;
+    static final int ISUB = 0x64;
+    static final int IUSHR = 0x7c;
+    static final int IAND = 0x7e;
+    static final int IXOR = 0x82;
+    static final int I2B = 0x91;
+    static final int IFEQ = 0x99;
+    static final int IFNE = 0x9a;
+    static final int GOTO = 0xa7;
+    static final int RETURN = 0xb1;
+    static final int GETFIELD = 0xb4;
+    static final int PUTFIELD = 0xb5;
+    static final int INVOKEVIRTUAL = 0xb6;
+    static final int INVOKESPECIAL = 0xb7;
+
+    private static final int CONSTANT_UTF8 = 1;
+    private static final int CONSTANT_INTEGER = 3;
+    private static final int CONSTANT_CLASS = 7;
+    private static final int CONSTANT_FIELDREF = 9;
+    private static final int CONSTANT_METHODREF = 10;
+    private static final int CONSTANT_NAME_AND_TYPE = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final Map<String, Integer> constants = new HashMap<>();
+    private final List<byte[]> methods = new ArrayList<>();
+    private final String name;
+    private final String superName;
+    private final String[] interfaces;
+    private int poolCount = 1;
+
+    /**
+     * @param name internal name of the class, e.g. {@code fs/tdo/layer5/Region}
+     */
+    ClassWriter(final String name, final String superName, final String... interfaces) {
+        this.name = name;
+        this.superName = superName;
+        this.interfaces = interfaces;
+        final Code init = new Code(this);
+        init.aload(0);
+        init.op(INVOKESPECIAL);
+        init.u2(methodRef(superName, "<init>", "()V"));
+        init.op(RETURN);
+        method(ACC_PUBLIC, "<init>", "()V", init, 1, 1);
+    }
+
+    int utf8(final String value) {
+        final String key = "U".concat(value);
+        final Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+        try {
+            pool.writeByte(CONSTANT_UTF8);
+            pool.writeUTF(value);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return add(key);
+    }
+
+    int integer(final int value) {
+        final String key = "I".concat(Integer.toString(value));
+        final Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+        write(CONSTANT_INTEGER, value >>> 16, value & 0xffff);
+        return add(key);
+    }
+
+    int classRef(final String internalName) {
+        final String key = "C".concat(internalName);
+        final Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+        final int utf8 = utf8(internalName);
+        write(CONSTANT_CLASS, utf8);
+        return add(key);
+    }
+
+    int fieldRef(final String owner, final String field, final String descriptor) {
+        return memberRef(CONSTANT_FIELDREF, owner, field, descriptor);
+    }
+
+    int methodRef(final String owner, final String method, final String descriptor) {
+        return memberRef(CONSTANT_METHODREF, owner, method, descriptor);
+    }
+
+    /**
+     * Adds a method whose body is {@code code}.
+     */
+    void method(final int access, final String method, final String descriptor, final Code code, final int maxStack,
+        final int maxLocals) {
+        final byte[] body = code.toByteArray();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeShort(access);
+            out.writeShort(utf8(method));
+            out.writeShort(utf8(descriptor));
+            out.writeShort(1);
+            out.writeShort(utf8("Code"));
+            out.writeInt(12 + body.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(body.length);
+            out.write(body);
+            // no exception handlers, no attributes
+            out.writeShort(0);
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        methods.add(bytes.toByteArray());
+    }
+
+    byte[] toByteArray() {
+        final int thisClass = classRef(name);
+        final int superClass = classRef(superName);
+        final int[] interfaceRefs = new int[interfaces.length];
+        for (int i = 0; i < interfaces.length; i++) {
+            interfaceRefs[i] = classRef(interfaces[i]);
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            poolBytes.writeTo(out);
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(interfaceRefs.length);
+            for (int ref : interfaceRefs) {
+                out.writeShort(ref);
+            }
+            out.writeShort(0);
+            out.writeShort(methods.size());
+            for (byte[] method : methods) {
+                out.write(method);
+            }
+            out.writeShort(0);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    private int memberRef(final int tag, final String owner, final String member, final String descriptor) {
+        final String key = new StringBuilder().append(tag).append(owner).append('.').append(member).append(':')
+            .append(descriptor).toString();
+        final Integer index = constants.get(key);
+        if (index != null) {
+            return index;
+        }
+        final int classRef = classRef(owner);
+        final String typeKey = key.substring(key.indexOf('.') + 1);
+        Integer nameAndType = constants.get(typeKey);
+        if (nameAndType == null) {
+            final int memberName = utf8(member);
+            final int type = utf8(descriptor);
+            write(CONSTANT_NAME_AND_TYPE, memberName, type);
+            nameAndType = add(typeKey);
+        }
+        write(tag, classRef, nameAndType);
+        return add(key);
+    }
+
+    /* A constant of a tag and two-byte values. */
+    private void write(final int tag, final int... values) {
+        try {
+            pool.writeByte(tag);
+            for (int value : values) {
+                pool.writeShort(value);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private int add(final String key) {
+        constants.put(key, poolCount);
+        return poolCount++;
+    }
+
+    /**
+     * The bytecode of a method, with labels for branches. Branch offsets are 16 bits, so a method stays below 32 KiB.
+     */
+    static final class Code {
+        private final ClassWriter owner;
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        private int[] labels = new int[16];
+        private int labelCount;
+        /* Pairs of the position of a branch opcode and its label. */
+        private int[] fixups = new int[32];
+        private int fixupCount;
+
+        Code(final ClassWriter owner) {
+            this.owner = owner;
+        }
+
+        void op(final int opcode) {
+            bytes.write(opcode);
+        }
+
+        void u2(final int value) {
+            bytes.write(value >>> 8);
+            bytes.write(value);
+        }
+
+        void iload(final int local) {
+            bytes.write(ILOAD);
+            bytes.write(local);
+        }
+
+        void istore(final int local) {
+            bytes.write(ISTORE);
+            bytes.write(local);
+        }
+
+        void aload(final int local) {
+            bytes.write(ALOAD);
+            bytes.write(local);
+        }
+
+        void astore(final int local) {
+            bytes.write(ASTORE);
+            bytes.write(local);
+        }
+
+        void push(final int value) {
+            if (value >= -1 && value <= 5) {
+                bytes.write(ICONST_0 + value);
+            } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+                bytes.write(BIPUSH);
+                bytes.write(value);
+            } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                bytes.write(SIPUSH);
+                u2(value);
+            } else {
+                bytes.write(LDC_W);
+                u2(owner.integer(value));
+            }
+        }
+
+        void field(final int opcode, final String fieldOwner, final String field, final String descriptor) {
+            bytes.write(opcode);
+            u2(owner.fieldRef(fieldOwner, field, descriptor));
+        }
+
+        void invoke(final int opcode, final String methodOwner, final String method, final String descriptor) {
+            bytes.write(opcode);
+            u2(owner.methodRef(methodOwner, method, descriptor));
+        }
+
+        int newLabel() {
+            if (labelCount == labels.length) {
+                labels = Arrays.copyOf(labels, labelCount * 2);
+            }
+            labels[labelCount] = -1;
+            return labelCount++;
+        }
+
+        void mark(final int label) {
+            labels[label] = bytes.size();
+        }
+
+        /**
+         * A branch to {@code label}, which may be marked later.
+         */
+        void jump(final int opcode, final int label) {
+            if (fixupCount == fixups.length) {
+                fixups = Arrays.copyOf(fixups, fixupCount * 2);
+            }
+            fixups[fixupCount++] = bytes.size();
+            fixups[fixupCount++] = label;
+            bytes.write(opcode);
+            u2(0);
+        }
+
+        byte[] toByteArray() {
+            final byte[] code = bytes.toByteArray();
+            for (int i = 0; i < fixupCount; i += 2) {
+                final int at = fixups[i];
+                final int target = labels[fixups[i + 1]];
+                if (target < 0) {
+                    throw new IllegalStateException("Label " + fixups[i + 1] + " is not marked");
+                }
+                final int offset = target - at;
+                if (offset != (short) offset) {
+                    throw new IllegalStateException("Branch too far: " + offset);
+                }
+                code[at + 1] = (byte) (offset >> 8);
+                code[at + 2] = (byte) offset;
+            }
+            return code;
+        }
+    }
+}
@@ -0,0 +1,229 @@
+package fs.tdo.layer5;
+
+/**
+ * The instructions of a program, decoded from its memory into primitive arrays indexed by address, so that executing
+ * an instruction neither decodes nor allocates. Memory holds data as well as code, so an address is only decoded when
+ * it is executed, and decoded again after the program has written into the bytes of its instruction.
+ *
+ * <p>With fusion, common sequences of instructions are decoded into one superinstruction, executed in a single
+ * dispatch. It is only entered at the address of its first instruction: the instructions after it keep their own
+ * entries, so a jump into the middle of a sequence executes them one by one.
+ */
+final class CodeCache {
+    static final int UNDECODED = 0;
+    static final int ADD = 1;
+    static final int APTR = 2;
+    static final int CMP = 3;
+    static final int HALT = 4;
+    static final int JEZ = 5;
+    static final int JNZ = 6;
+    static final int MVI = 7;
+    static final int MVI32 = 8;
+    static final int MV = 9;
+    static final int MV32 = 10;
+    static final int OUT = 11;
+    static final int SUB = 12;
+    static final int XOR = 13;
+    /* MV a <- (ptr+c), XOR, MV (ptr+c) <- a */
+    static final int XOR_MEMORY = 14;
+    /* CMP, JEZ imm32 */
+    static final int CMP_JEZ = 15;
+    /* CMP, JNZ imm32 */
+    static final int CMP_JNZ = 16;
+    /* APTR imm8, MV {dest} <- (ptr+c) */
+    static final int APTR_LOAD = 17;
+    /* Bytes of the longest entry, CMP_JEZ, so a write affects the entries of at most this many addresses. */
+    static final int MAX_LENGTH = 6;
+
+    private final byte[] ram;
+    private final boolean fusion;
+    /* Per address: the opcode in bits 0-7, {dest} in bits 8-11, {src} in bits 12-15, the length from bit 16 on. */
+    private final int[] ops;
+    /* Per address: the single instruction, which differs from ops where that holds a superinstruction. */
+    private final int[] instructions;
+    /* Per address: the imm8 or imm32 of the instruction, for CMP_JEZ and CMP_JNZ the one of the jump. */
+    private final int[] immediates;
+    private long fused;
+
+    CodeCache(final byte[] ram) {
+        this(ram, true);
+    }
+
+    CodeCache(final byte[] ram, final boolean fusion) {
+        this.ram = ram;
+        this.fusion = fusion;
+        this.ops = new int[ram.length];
+        this.instructions = fusion ? new int[ram.length] : ops;
+        this.immediates = new int[ram.length];
+    }
+
+    /**
+     * What executes at {@code pc}, see {@link #opcode}, {@link #dest}, {@link #src} and {@link #length}.
+     */
+    int op(final int pc) {
+        final int op = ops[pc];
+        return op != UNDECODED ? op : decode(pc);
+    }
+
+    /**
+     * The single instruction at {@code pc}, never a superinstruction.
+     */
+    int instruction(final int pc) {
+        final int op = instructions[pc];
+        return op != UNDECODED ? op : decodeInstruction(pc);
+    }
+
+    int immediate(final int pc) {
+        return immediates[pc];
+    }
+
+    static int opcode(final int op) {
+        return op & 0xff;
+    }
+
+    static int dest(final int op) {
+        return op >>> 8 & 0xf;
+    }
+
+    static int src(final int op) {
+        return op >>> 12 & 0xf;
+    }
+
+    static int length(final int op) {
+        return op >>> 16;
+    }
+
+    /**
+     * Number of superinstructions decoded.
+     */
+    long fused() {
+        return fused;
+    }
+
+    /**
+     * Drops the entries whose instruction bytes include {@code address}.
+     */
+    void invalidate(final int address) {
+        for (int pc = Math.max(0, address - MAX_LENGTH + 1); pc <= address; pc++) {
+            ops[pc] = UNDECODED;
+            instructions[pc] = UNDECODED;
+        }
+    }
+
+    private int decode(final int pc) {
+        final int instruction = instruction(pc);
+        final int op = fusion ? fuse(pc, instruction) : instruction;
+        ops[pc] = op;
+        return op;
+    }
+
+    /**
+     * The superinstruction that starts with {@code op} at {@code pc}, or {@code op} if there is none.
+     */
+    private int fuse(final int pc, final int op) {
+        final int next = pc + length(op);
+        switch (opcode(op)) {
+            case MV:
+                if (dest(op) == 1 && src(op) == 7 && opcode(peek(next)) == XOR) {
+                    final int store = peek(next + 1);
+                    if (opcode(store) == MV && dest(store) == 7 && src(store) == 1) {
+                        fused++;
+                        return XOR_MEMORY | 3 << 16;
+                    }
+                }
+                return op;
+            case CMP:
+                final int jump = opcode(peek(next));
+                if (jump == JEZ || jump == JNZ) {
+                    immediates[pc] = immediates[next];
+                    fused++;
+                    return (jump == JEZ ? CMP_JEZ : CMP_JNZ) | 6 << 16;
+                }
+                return op;
+            case APTR:
+                final int load = peek(next);
+                if (opcode(load) == MV && dest(load) >= 1 && dest(load) <= 6 && src(load) == 7) {
+                    fused++;
+                    return APTR_LOAD | dest(load) << 8 | 3 << 16;
+                }
+                return op;
+            default:
+                return op;
+        }
+    }
+
+    /**
+     * The instruction at {@code pc}, or {@link #UNDECODED} if there is none, as the bytes may be data.
+     */
+    private int peek(final int pc) {
+        if (pc >= ram.length) {
+            return UNDECODED;
+        }
+        try {
+            return instruction(pc);
+        } catch (IllegalArgumentException | IndexOutOfBoundsException e) {
+            return UNDECODED;
+        }
+    }
+
+    private int decodeInstruction(final int pc) {
+        final Instruction instruction = Instruction.valueOf(ram[pc]);
+        if (pc + instruction.length > ram.length) {
+            throw new ArrayIndexOutOfBoundsException("Instruction " + instruction + " at " + pc
+                + " runs past the end of memory");
+        }
+        final int opcode;
+        switch (instruction) {
+            case ADD:
+                opcode = ADD;
+                break;
+            case APTR:
+                opcode = APTR;
+                break;
+            case CMP:
+                opcode = CMP;
+                break;
+            case HALT:
+                opcode = HALT;
+                break;
+            case JEZ:
+                opcode = JEZ;
+                break;
+            case JNZ:
+                opcode = JNZ;
+                break;
+            case MVI:
+                opcode = MVI;
+                break;
+            case MVI32:
+                opcode = MVI32;
+                break;
+            case MV:
+                opcode = MV;
+                break;
+            case MV32:
+                opcode = MV32;
+                break;
+            case OUT:
+                opcode = OUT;
+                break;
+            case SUB:
+                opcode = SUB;
+                break;
+            case XOR:
+                opcode = XOR;
+                break;
+            default:
+                throw new IllegalStateException("Instruction " + instruction + " not implemented");
+        }
+        if (instruction.length == 2) {
+            immediates[pc] = Byte.toUnsignedInt(ram[pc + 1]);
+        } else if (instruction.length == 5) {
+            immediates[pc] = ram[pc + 1] & 0xff | (ram[pc + 2] & 0xff) << 8 | (ram[pc + 3] & 0xff) << 16
+                | ram[pc + 4] << 24;
+        }
+        final int op = opcode | (ram[pc] >> 3 & 0b111) << 8 | (ram[pc] & 0b111) << 12 | instruction.length << 16;
+        instructions[pc] = op;
+        return op;
+    }
+}
@@ -0,0 +1,12 @@
+package fs.tdo.layer5;
+
+/**
+ * A region of a Tomtel program compiled to JVM bytecode by the {@link Jit}.
+ */
+interface CompiledCode {
+    /**
+     * Runs the region from its entry until it leaves the region, and leaves the registers of {@code vm}, `pc`
+     * included, as the interpreter would have.
+     */
+    void run(TomtelVm vm);
+}
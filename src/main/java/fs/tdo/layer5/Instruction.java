@@ -26,12 +26,25 @@ public enum Instruction {
         this.length = length;
     }
 
-    public static Instruction valueOf(byte in) {
-        for (Instruction inst : values()) {
-            if ((in & inst.checkMask) == inst.value) {
-                return inst;
+    /* The instruction of every opcode byte, or null. */
+    private static final Instruction[] BY_OPCODE = new Instruction[256];
+
+    static {
+        for (int in = 0; in < 256; in++) {
+            for (Instruction inst : values()) {
+                if ((in & inst.checkMask) == (inst.value & 0xff)) {
+                    BY_OPCODE[in] = inst;
+                    break;
+                }
             }
         }
-        throw new IllegalArgumentException("Byte " + in + " is not an instruction byte");
+    }
+
+    public static Instruction valueOf(byte in) {
+        final Instruction inst = BY_OPCODE[in & 0xff];
+        if (inst == null) {
+            throw new IllegalArgumentException("Byte " + in + " is not an instruction byte");
+        }
+        return inst;
     }
 }
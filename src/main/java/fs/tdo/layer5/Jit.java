@@ -0,0 +1,540 @@
+package fs.tdo.layer5;
+
+import static fs.tdo.layer5.ClassWriter.ALOAD;
+import static fs.tdo.layer5.ClassWriter.BALOAD;
+import static fs.tdo.layer5.ClassWriter.BASTORE;
+import static fs.tdo.layer5.ClassWriter.GETFIELD;
+import static fs.tdo.layer5.ClassWriter.GOTO;
+import static fs.tdo.layer5.ClassWriter.I2B;
+import static fs.tdo.layer5.ClassWriter.IADD;
+import static fs.tdo.layer5.ClassWriter.IAND;
+import static fs.tdo.layer5.ClassWriter.IFEQ;
+import static fs.tdo.layer5.ClassWriter.IFNE;
+import static fs.tdo.layer5.ClassWriter.INVOKEVIRTUAL;
+import static fs.tdo.layer5.ClassWriter.ISUB;
+import static fs.tdo.layer5.ClassWriter.IUSHR;
+import static fs.tdo.layer5.ClassWriter.IXOR;
+import static fs.tdo.layer5.ClassWriter.PUTFIELD;
+import static fs.tdo.layer5.ClassWriter.RETURN;
+
+import java.lang.invoke.MethodHandles;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compiles hot regions of a Tomtel program to JVM bytecode. The interpreter counts the backward jumps to every
+ * address; once an address has been jumped back to {@code threshold} times, the code reachable from it becomes a
+ * region, and the region a class with the registers in locals and memory accesses on the {@code ram} array.
+ *
+ * <p>A region ends wherever the next instruction is not known when compiling: at jumps through `pc`, at HALT, at
+ * instructions that do not decode or name invalid registers, and after {@link #MAX_INSTRUCTIONS}. There the registers
+ * are written back and the interpreter takes over, which also raises any error. A write into the code of a compiled
+ * region drops the region and leaves it right away.
+ *
+ * <p>The same code gives the same class, so classes are shared by all machines. They are never unloaded, so at most
+ * {@link #MAX_CLASSES} are defined per process; after that, regions that get hot stay interpreted unless their class
+ * exists already. Compiling avoids lambdas and {@code +} on strings, see {@link ClassWriter}.
+ */
+final class Jit {
+    static final int DEFAULT_THRESHOLD = 100;
+    /* Per region, which keeps its method far below the 32 KiB that 16-bit branch offsets reach. */
+    private static final int MAX_INSTRUCTIONS = 512;
+    /* After a region has been dropped, its entry is compiled again only after this many thresholds. */
+    private static final int RECOMPILE_DELAY = 16;
+    /* Classes of compiled regions, over all machines. Checked before defining, so it may be exceeded by a few. */
+    static final int MAX_CLASSES = 1 << 12;
+
+    private static final String VM = "fs/tdo/layer5/TomtelVm";
+    private static final String[] BYTE_REGISTERS = {null, "a", "b", "c", "d", "e", "f"};
+    private static final String[] INT_REGISTERS = {null, "la", "lb", "lc", "ld", "ptr"};
+    /* Locals of the generated method: the machine, its memory, byte registers a to f, int registers la to ptr. */
+    private static final int VM_LOCAL = 1;
+    private static final int RAM = 2;
+    private static final int A = 3;
+    private static final int C = A + 2;
+    private static final int F = A + 5;
+    private static final int LA = 9;
+    private static final int PTR = LA + 4;
+    private static final int ADDRESS = 14;
+    private static final int VALUE = 15;
+    private static final int LOCALS = 16;
+    private static final int MAX_STACK = 4;
+
+    private static final Map<ByteBuffer, Class<? extends CompiledCode>> CLASSES = new ConcurrentHashMap<>();
+    private static final AtomicInteger NAMES = new AtomicInteger();
+
+    private final CodeCache code;
+    private final int threshold;
+    private final int[] heat;
+    private final CompiledCode[] entries;
+    /* Bytes of memory that belong to an instruction of a compiled region. */
+    private final boolean[] compiled;
+    private final List<Region> regions = new ArrayList<>();
+    private int compilations;
+    private int drops;
+
+    Jit(final CodeCache code, final int memorySize, final int threshold) {
+        if (threshold <= 0) {
+            throw new IllegalArgumentException("Threshold must be positive: " + threshold);
+        }
+        this.code = code;
+        this.threshold = threshold;
+        this.heat = new int[memorySize];
+        this.entries = new CompiledCode[memorySize];
+        this.compiled = new boolean[memorySize];
+    }
+
+    /**
+     * Called by the interpreter after a backward jump to {@code pc}.
+     *
+     * @return the compiled region entered at {@code pc}, compiled now if {@code pc} just got hot, or {@code null}
+     */
+    CompiledCode enter(final int pc) {
+        final CompiledCode entry = entries[pc];
+        if (entry != null || ++heat[pc] != threshold) {
+            return entry;
+        }
+        final Region region = Region.form(code, pc);
+        if (region == null) {
+            return null;
+        }
+        final ByteBuffer key = region.key();
+        Class<? extends CompiledCode> type = CLASSES.get(key);
+        if (type == null) {
+            if (CLASSES.size() >= MAX_CLASSES) {
+                return null;
+            }
+            final Class<? extends CompiledCode> defined = define(region);
+            type = CLASSES.putIfAbsent(key, defined);
+            type = type != null ? type : defined;
+        }
+        final CompiledCode compiledCode = instantiate(type);
+        regions.add(region);
+        region.mark(compiled);
+        entries[pc] = compiledCode;
+        compilations++;
+        return compiledCode;
+    }
+
+    /**
+     * Called after the program has written {@code address}.
+     *
+     * @return whether the address was code of a compiled region, which is dropped then
+     */
+    boolean written(final int address) {
+        if (!compiled[address]) {
+            return false;
+        }
+        for (Iterator<Region> i = regions.iterator(); i.hasNext(); ) {
+            final Region region = i.next();
+            if (region.covers(address)) {
+                i.remove();
+                entries[region.entry] = null;
+                heat[region.entry] = -(int) Math.min((long) threshold * RECOMPILE_DELAY, Integer.MAX_VALUE);
+                drops++;
+            }
+        }
+        Arrays.fill(compiled, false);
+        for (Region region : regions) {
+            region.mark(compiled);
+        }
+        return true;
+    }
+
+    int compilations() {
+        return compilations;
+    }
+
+    int drops() {
+        return drops;
+    }
+
+    private static CompiledCode instantiate(final Class<? extends CompiledCode> type) {
+        try {
+            return type.getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Class<? extends CompiledCode> define(final Region region) {
+        final String name = "fs/tdo/layer5/CompiledRegion".concat(Integer.toString(NAMES.incrementAndGet()));
+        final byte[] bytes = new Emitter(region, name).emit();
+        try {
+            return MethodHandles.lookup().defineClass(bytes).asSubclass(CompiledCode.class);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * The instructions reachable from an entry without leaving the region, in address order.
+     */
+    static final class Region {
+        final int entry;
+        final int[] pcs;
+        final int[] ops;
+        final int[] immediates;
+
+        private Region(final int entry, final int[] pcs, final int[] ops, final int[] immediates) {
+            this.entry = entry;
+            this.pcs = pcs;
+            this.ops = ops;
+            this.immediates = immediates;
+        }
+
+        /**
+         * @return the region, or {@code null} if the instruction at {@code entry} itself cannot be compiled
+         */
+        static Region form(final CodeCache code, final int entry) {
+            final BitSet members = new BitSet();
+            int[] pending = {entry};
+            int pendingCount = 1;
+            int count = 0;
+            while (pendingCount > 0) {
+                final int pc = pending[--pendingCount];
+                if (pc < 0 || members.get(pc) || count == MAX_INSTRUCTIONS) {
+                    continue;
+                }
+                final int op = compilable(code, pc);
+                if (op == CodeCache.UNDECODED) {
+                    continue;
+                }
+                members.set(pc);
+                count++;
+                if (pendingCount + 2 > pending.length) {
+                    pending = Arrays.copyOf(pending, pending.length * 2);
+                }
+                if (fallsThrough(op)) {
+                    pending[pendingCount++] = pc + CodeCache.length(op);
+                }
+                final int target = jumpTarget(op, code.immediate(pc));
+                if (target >= 0) {
+                    pending[pendingCount++] = target;
+                }
+            }
+            if (!members.get(entry)) {
+                return null;
+            }
+            final int[] pcs = new int[count];
+            for (int i = 0, pc = members.nextSetBit(0); pc >= 0; pc = members.nextSetBit(pc + 1)) {
+                pcs[i++] = pc;
+            }
+            final int[] ops = new int[pcs.length];
+            final int[] immediates = new int[pcs.length];
+            for (int i = 0; i < pcs.length; i++) {
+                ops[i] = code.instruction(pcs[i]);
+                immediates[i] = code.immediate(pcs[i]);
+            }
+            return new Region(entry, pcs, ops, immediates);
+        }
+
+        boolean covers(final int address) {
+            for (int i = 0; i < pcs.length; i++) {
+                if (address >= pcs[i] && address < pcs[i] + CodeCache.length(ops[i])) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Flags the bytes of the region's instructions.
+         */
+        void mark(final boolean[] bytes) {
+            for (int i = 0; i < pcs.length; i++) {
+                Arrays.fill(bytes, pcs[i], pcs[i] + CodeCache.length(ops[i]), true);
+            }
+        }
+
+        /**
+         * Everything the generated class depends on: the entry and the decoded instructions with their addresses.
+         */
+        ByteBuffer key() {
+            final ByteBuffer key = ByteBuffer.allocate(4 + pcs.length * 12);
+            key.putInt(entry);
+            for (int i = 0; i < pcs.length; i++) {
+                key.putInt(pcs[i]).putInt(ops[i]).putInt(immediates[i]);
+            }
+            return key.flip();
+        }
+
+        /**
+         * The decoded instruction at {@code pc} if it can be compiled, else {@link CodeCache#UNDECODED}.
+         */
+        private static int compilable(final CodeCache code, final int pc) {
+            final int op;
+            try {
+                op = code.instruction(pc);
+            } catch (RuntimeException e) {
+                // outside of memory or not an instruction: the interpreter reports it
+                return CodeCache.UNDECODED;
+            }
+            final int dest = CodeCache.dest(op);
+            final int src = CodeCache.src(op);
+            switch (CodeCache.opcode(op)) {
+                case CodeCache.HALT:
+                    return CodeCache.UNDECODED;
+                case CodeCache.MV:
+                    return dest >= 1 && src >= 1 ? op : CodeCache.UNDECODED;
+                case CodeCache.MVI:
+                    return dest >= 1 ? op : CodeCache.UNDECODED;
+                case CodeCache.MV32:
+                    return dest >= 1 && dest <= 6 && src >= 1 && src <= 6 ? op : CodeCache.UNDECODED;
+                case CodeCache.MVI32:
+                    return dest >= 1 && dest <= 6 ? op : CodeCache.UNDECODED;
+                default:
+                    return op;
+            }
+        }
+
+        private static boolean fallsThrough(final int op) {
+            final int opcode = CodeCache.opcode(op);
+            return !((opcode == CodeCache.MV32 || opcode == CodeCache.MVI32) && CodeCache.dest(op) == 6);
+        }
+
+        /* The constant jump target of the instruction, or -1. */
+        private static int jumpTarget(final int op, final int immediate) {
+            switch (CodeCache.opcode(op)) {
+                case CodeCache.JEZ:
+                case CodeCache.JNZ:
+                    return immediate;
+                case CodeCache.MVI32:
+                    return CodeCache.dest(op) == 6 ? immediate : -1;
+                default:
+                    return -1;
+            }
+        }
+    }
+
+    /**
+     * Generates the class of a region: its {@code run} loads the registers into locals, jumps to the entry and
+     * executes the instructions like the interpreter. Every exit pushes the next `pc` and goes to a common epilogue,
+     * which writes the registers back.
+     */
+    private static final class Emitter {
+        private final Region region;
+        private final ClassWriter writer;
+        private final ClassWriter.Code code;
+        private final int[] labels;
+        private final Map<Integer, Integer> exits = new HashMap<>();
+        private final int epilogue;
+
+        Emitter(final Region region, final String name) {
+            this.region = region;
+            this.writer = new ClassWriter(name, "java/lang/Object", "fs/tdo/layer5/CompiledCode");
+            this.code = new ClassWriter.Code(writer);
+            this.labels = new int[region.pcs.length];
+            for (int i = 0; i < labels.length; i++) {
+                labels[i] = code.newLabel();
+            }
+            this.epilogue = code.newLabel();
+        }
+
+        byte[] emit() {
+            code.aload(VM_LOCAL);
+            code.field(GETFIELD, VM, "ram", "[B");
+            code.astore(RAM);
+            for (int r = 1; r <= 6; r++) {
+                code.aload(VM_LOCAL);
+                code.field(GETFIELD, VM, BYTE_REGISTERS[r], "B");
+                code.push(0xff);
+                code.op(IAND);
+                code.istore(A + r - 1);
+            }
+            for (int r = 1; r <= 5; r++) {
+                code.aload(VM_LOCAL);
+                code.field(GETFIELD, VM, INT_REGISTERS[r], "I");
+                code.istore(LA + r - 1);
+            }
+            code.jump(GOTO, target(region.entry));
+
+            final int[] pcs = region.pcs;
+            for (int i = 0; i < pcs.length; i++) {
+                code.mark(labels[i]);
+                final int op = region.ops[i];
+                final int next = pcs[i] + CodeCache.length(op);
+                instruction(op, region.immediates[i], next);
+                if (Region.fallsThrough(op) && (i + 1 == pcs.length || pcs[i + 1] != next)) {
+                    code.jump(GOTO, target(next));
+                }
+            }
+
+            // the exits were collected while emitting the instructions
+            for (Map.Entry<Integer, Integer> exit : exits.entrySet()) {
+                code.mark(exit.getValue());
+                code.push(exit.getKey());
+                code.jump(GOTO, epilogue);
+            }
+            code.mark(epilogue);
+            code.istore(VALUE);
+            for (int r = 1; r <= 6; r++) {
+                code.aload(VM_LOCAL);
+                code.iload(A + r - 1);
+                code.op(I2B);
+                code.field(PUTFIELD, VM, BYTE_REGISTERS[r], "B");
+            }
+            for (int r = 1; r <= 5; r++) {
+                code.aload(VM_LOCAL);
+                code.iload(LA + r - 1);
+                code.field(PUTFIELD, VM, INT_REGISTERS[r], "I");
+            }
+            code.aload(VM_LOCAL);
+            code.iload(VALUE);
+            code.field(PUTFIELD, VM, "pc", "I");
+            code.op(RETURN);
+
+            writer.method(ClassWriter.ACC_PUBLIC, "run", "(L" + VM + ";)V", code, MAX_STACK, LOCALS);
+            return writer.toByteArray();
+        }
+
+        private void instruction(final int op, final int immediate, final int next) {
+            final int dest = CodeCache.dest(op);
+            final int src = CodeCache.src(op);
+            switch (CodeCache.opcode(op)) {
+                case CodeCache.ADD:
+                    arithmetic(IADD);
+                    break;
+                case CodeCache.SUB:
+                    arithmetic(ISUB);
+                    break;
+                case CodeCache.XOR:
+                    code.iload(A);
+                    code.iload(A + 1);
+                    code.op(IXOR);
+                    code.istore(A);
+                    break;
+                case CodeCache.CMP:
+                    // (a ^ b) + 255 >>> 8 is 0 if a == b, else 1
+                    code.iload(A);
+                    code.iload(A + 1);
+                    code.op(IXOR);
+                    code.push(0xff);
+                    code.op(IADD);
+                    code.push(8);
+                    code.op(IUSHR);
+                    code.istore(F);
+                    break;
+                case CodeCache.APTR:
+                    code.iload(PTR);
+                    code.push(immediate);
+                    code.op(IADD);
+                    code.istore(PTR);
+                    break;
+                case CodeCache.OUT:
+                    code.aload(VM_LOCAL);
+                    code.iload(A);
+                    code.invoke(INVOKEVIRTUAL, VM, "write", "(I)V");
+                    break;
+                case CodeCache.JEZ:
+                    code.iload(F);
+                    code.jump(IFEQ, target(immediate));
+                    break;
+                case CodeCache.JNZ:
+                    code.iload(F);
+                    code.jump(IFNE, target(immediate));
+                    break;
+                case CodeCache.MV:
+                    loadByte(src);
+                    storeByte(dest, next);
+                    break;
+                case CodeCache.MVI:
+                    code.push(immediate);
+                    storeByte(dest, next);
+                    break;
+                case CodeCache.MV32:
+                    if (src == 6) {
+                        code.push(next);
+                    } else {
+                        code.iload(LA + src - 1);
+                    }
+                    if (dest == 6) {
+                        code.jump(GOTO, epilogue);
+                    } else {
+                        code.istore(LA + dest - 1);
+                    }
+                    break;
+                case CodeCache.MVI32:
+                    if (dest == 6) {
+                        code.jump(GOTO, target(immediate));
+                    } else {
+                        code.push(immediate);
+                        code.istore(LA + dest - 1);
+                    }
+                    break;
+                default:
+                    throw new IllegalStateException("Opcode " + CodeCache.opcode(op) + " cannot be compiled");
+            }
+        }
+
+        private void arithmetic(final int opcode) {
+            code.iload(A);
+            code.iload(A + 1);
+            code.op(opcode);
+            code.push(0xff);
+            code.op(IAND);
+            code.istore(A);
+        }
+
+        private void loadByte(final int register) {
+            if (register == 7) {
+                code.aload(RAM);
+                code.iload(PTR);
+                code.iload(C);
+                code.op(IADD);
+                code.op(BALOAD);
+                code.push(0xff);
+                code.op(IAND);
+            } else {
+                code.iload(A + register - 1);
+            }
+        }
+
+        /**
+         * Stores the value on the stack. A store to memory leaves the region if it hit compiled code.
+         */
+        private void storeByte(final int register, final int next) {
+            if (register != 7) {
+                code.istore(A + register - 1);
+                return;
+            }
+            code.istore(VALUE);
+            code.iload(PTR);
+            code.iload(C);
+            code.op(IADD);
+            code.istore(ADDRESS);
+            code.aload(RAM);
+            code.iload(ADDRESS);
+            code.iload(VALUE);
+            code.op(I2B);
+            code.op(BASTORE);
+            code.aload(VM_LOCAL);
+            code.iload(ADDRESS);
+            code.invoke(INVOKEVIRTUAL, VM, "written", "(I)Z");
+            code.jump(IFNE, exit(next));
+        }
+
+        /* The label of the instruction at pc, or of an exit to it. */
+        private int target(final int pc) {
+            final int index = Arrays.binarySearch(region.pcs, pc);
+            return index >= 0 ? labels[index] : exit(pc);
+        }
+
+        private int exit(final int pc) {
+            Integer label = exits.get(pc);
+            if (label == null) {
+                label = code.newLabel();
+                exits.put(pc, label);
+            }
+            return label;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package fs.tdo.layer5;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+
+/**
+ * Collects the bytes written by OUT and passes them to a {@link TomtelVm.Sink} whenever the buffer is full, so a
+ * program's output needs no more memory than the buffer. Only the thread running the program writes, so nothing is
+ * synchronized.
+ *
+ * <p>A failing sink throws an {@link UncheckedIOException}, which keeps {@code IOException} out of the interpreter loop
+ * and the compiled code.
+ */
+final class OutputBuffer {
+    static final int DEFAULT_SIZE = 1 << 13;
+
+    private final byte[] buffer;
+    private TomtelVm.Sink sink;
+    private int size;
+
+    OutputBuffer(final int capacity) {
+        buffer = new byte[capacity];
+    }
+
+    /**
+     * Sends the following bytes to {@code sink}.
+     */
+    void to(final TomtelVm.Sink sink) {
+        this.sink = sink;
+    }
+
+    void write(final int value) {
+        if (size == buffer.length) {
+            flush();
+        }
+        buffer[size++] = (byte) value;
+    }
+
+    void flush() {
+        if (size == 0) {
+            return;
+        }
+        try {
+            sink.write(buffer, 0, size);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        size = 0;
+    }
+}
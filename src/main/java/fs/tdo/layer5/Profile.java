@@ -0,0 +1,232 @@
+package fs.tdo.layer5;
+
+import java.util.Arrays;
+import java.util.Locale;
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+
+/**
+ * What a profiled {@link TomtelVm} run executed: how often each instruction and each address ran, how often the jumps
+ * at each address were taken, and how long it took. Counts are kept in primitive arrays indexed by opcode and address.
+ *
+ * <p>A profiled run executes one instruction at a time, without superinstructions and without compiled code, and pays
+ * for the counting, so its time and {@link #instructionsPerSecond()} measure the plain interpreter. Unprofiled runs
+ * with fusion or the JIT are faster.
+ *
+ * <p>At the end of the run a {@link RunEvent} and a {@link HotspotEvent} for each of the hottest addresses are
+ * committed to Flight Recorder, when it is running and records them.
+ */
+public final class Profile {
+    private static final Instruction[] INSTRUCTIONS = Instruction.values();
+    private static final int HOTSPOT_EVENTS = 10;
+
+    /* Per opcode of the CodeCache, which are the ordinals of Instruction plus one. */
+    private final long[] opcodes = new long[INSTRUCTIONS.length + 1];
+    /* Per address: instructions executed there, the opcode last executed there, jumps taken there. */
+    private final long[] hits;
+    private final byte[] opcodeAt;
+    private final long[] taken;
+    private RunEvent run;
+    private long nanos;
+
+    Profile(final int memorySize) {
+        hits = new long[memorySize];
+        opcodeAt = new byte[memorySize];
+        taken = new long[memorySize];
+    }
+
+    void start() {
+        // loading the event classes starts up Flight Recorder, which takes a while
+        if (FlightRecorder.isInitialized()) {
+            run = new RunEvent();
+            run.begin();
+        }
+    }
+
+    void executed(final int pc, final int opcode) {
+        opcodes[opcode]++;
+        hits[pc]++;
+        opcodeAt[pc] = (byte) opcode;
+    }
+
+    void jumped(final int pc) {
+        taken[pc]++;
+    }
+
+    /**
+     * Ends the run, which took {@code nanos}, and commits the events.
+     */
+    void finish(final long nanos) {
+        this.nanos = nanos;
+        if (run == null) {
+            return;
+        }
+        run.end();
+        if (run.shouldCommit()) {
+            run.instructions = instructions();
+            run.outputBytes = outputBytes();
+            run.instructionsPerSecond = instructionsPerSecond();
+            run.commit();
+        }
+        if (new HotspotEvent().isEnabled()) {
+            for (int pc : hottest(HOTSPOT_EVENTS)) {
+                final HotspotEvent event = new HotspotEvent();
+                event.address = pc;
+                event.instruction = instructionAt(pc).name();
+                event.hits = hits[pc];
+                event.taken = taken[pc];
+                event.commit();
+            }
+        }
+    }
+
+    public long instructions() {
+        long sum = 0;
+        for (long count : opcodes) {
+            sum += count;
+        }
+        return sum;
+    }
+
+    public long count(final Instruction instruction) {
+        return opcodes[instruction.ordinal() + 1];
+    }
+
+    /**
+     * Instructions executed at {@code pc}.
+     */
+    public long hits(final int pc) {
+        return hits[pc];
+    }
+
+    /**
+     * Times the JEZ or JNZ at {@code pc} jumped, and did not.
+     */
+    public long taken(final int pc) {
+        return taken[pc];
+    }
+
+    public long notTaken(final int pc) {
+        return isJump(pc) ? hits[pc] - taken[pc] : 0;
+    }
+
+    /**
+     * Bytes written by OUT.
+     */
+    public long outputBytes() {
+        return count(Instruction.OUT);
+    }
+
+    public long nanos() {
+        return nanos;
+    }
+
+    /**
+     * Throughput of the plain interpreter, profiling included, see above.
+     */
+    public double instructionsPerSecond() {
+        return nanos > 0 ? instructions() * 1e9 / nanos : 0;
+    }
+
+    /**
+     * The {@code n} addresses that executed the most instructions, hottest first.
+     */
+    public int[] hottest(final int n) {
+        if (n <= 0) {
+            return new int[0];
+        }
+        final int[] top = new int[n];
+        int size = 0;
+        for (int pc = 0; pc < hits.length; pc++) {
+            if (hits[pc] == 0 || size == n && hits[pc] <= hits[top[n - 1]]) {
+                continue;
+            }
+            int i = size < n ? size++ : n - 1;
+            for (; i > 0 && hits[top[i - 1]] < hits[pc]; i--) {
+                top[i] = top[i - 1];
+            }
+            top[i] = pc;
+        }
+        return Arrays.copyOf(top, size);
+    }
+
+    /**
+     * A readable summary: totals, all executed instructions by count, and the {@code top} hottest addresses with
+     * their jump statistics.
+     */
+    public String report(final int top) {
+        final long instructions = instructions();
+        final StringBuilder report = new StringBuilder(String.format(Locale.ROOT,
+            "%d instructions in %.3f ms, %.1f M instructions/s (interpreted, no fusion, no JIT), %d bytes out%n",
+            instructions, nanos / 1e6, instructionsPerSecond() / 1e6, outputBytes()));
+        report.append("Instructions:").append(System.lineSeparator());
+        final Instruction[] byCount = INSTRUCTIONS.clone();
+        Arrays.sort(byCount, (x, y) -> Long.compare(count(y), count(x)));
+        for (Instruction instruction : byCount) {
+            if (count(instruction) > 0) {
+                report.append(String.format(Locale.ROOT, "  %-6s %12d %6.2f%%%n",
+                    instruction, count(instruction), 100.0 * count(instruction) / instructions));
+            }
+        }
+        report.append("Hottest addresses:").append(System.lineSeparator());
+        for (int pc : hottest(top)) {
+            report.append(String.format(Locale.ROOT, "  0x%08x %-6s %12d", pc, instructionAt(pc), hits[pc]));
+            if (isJump(pc)) {
+                report.append(String.format(Locale.ROOT, "  taken %d, not taken %d", taken(pc), notTaken(pc)));
+            }
+            report.append(System.lineSeparator());
+        }
+        return report.toString();
+    }
+
+    @Override
+    public String toString() {
+        return report(10);
+    }
+
+    private Instruction instructionAt(final int pc) {
+        return INSTRUCTIONS[opcodeAt[pc] - 1];
+    }
+
+    private boolean isJump(final int pc) {
+        return opcodeAt[pc] == CodeCache.JEZ || opcodeAt[pc] == CodeCache.JNZ;
+    }
+
+    /**
+     * A profiled run of a Tomtel program.
+     */
+    @Name("fs.tdo.TomtelRun")
+    @Label("Tomtel Run")
+    @Category({"Onion", "Tomtel"})
+    static final class RunEvent extends Event {
+        @Label("Instructions")
+        long instructions;
+        @Label("Output Bytes")
+        long outputBytes;
+        @Label("Instructions per Second")
+        @Description("Of the plain interpreter: no superinstructions, no compiled code")
+        double instructionsPerSecond;
+    }
+
+    /**
+     * One of the addresses of a profiled run that executed the most instructions.
+     */
+    @Name("fs.tdo.TomtelHotspot")
+    @Label("Tomtel Hotspot")
+    @Category({"Onion", "Tomtel"})
+    @Description("An address of a Tomtel program that executed the most instructions")
+    static final class HotspotEvent extends Event {
+        @Label("Address")
+        int address;
+        @Label("Instruction")
+        String instruction;
+        @Label("Hits")
+        long hits;
+        @Label("Jumps Taken")
+        long taken;
+    }
+}
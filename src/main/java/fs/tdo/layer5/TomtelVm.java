@@ -1,94 +1,299 @@
 package fs.tdo.layer5;
 
-import fs.tdo.Utils;
 import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
 
 public class TomtelVm {
+    /**
+     * A threshold for {@link #TomtelVm(byte[], int)} that compiles the loops of long running programs quickly.
+     */
+    public static final int DEFAULT_JIT_THRESHOLD = Jit.DEFAULT_THRESHOLD;
+
     final byte[] ram;
-    final ByteArrayOutputStream out;
-    private byte a;
-    private byte b;
-    private byte c;
-    private byte d;
-    private byte e;
-    private byte f;
-    private int la;
-    private int lb;
-    private int lc;
-    private int ld;
-    private int ptr;
-    private int pc;
+    private final OutputBuffer out;
+    private final CodeCache code;
+    private final Jit jit;
+    /* Dispatches saved by superinstructions. */
+    private long eliminated;
+    private Profile profile;
+    /* Not private, for the code compiled by the Jit. */
+    byte a;
+    byte b;
+    byte c;
+    byte d;
+    byte e;
+    byte f;
+    int la;
+    int lb;
+    int lc;
+    int ld;
+    int ptr;
+    int pc;
 
+    /**
+     * A machine that only interprets. Compiling to JVM bytecode is opt-in, see {@link #TomtelVm(byte[], int)}.
+     */
     public TomtelVm(byte[] ram) {
+        this(ram, 0);
+    }
+
+    public TomtelVm(byte[] ram, int jitThreshold) {
+        this(ram, jitThreshold, true);
+    }
+
+    /**
+     * @param jitThreshold backward jumps to an address after which the code from there on is compiled to JVM
+     *                     bytecode, or 0 to only interpret
+     * @param fusion       whether the interpreter executes common instruction sequences as superinstructions
+     */
+    public TomtelVm(byte[] ram, int jitThreshold, boolean fusion) {
+        if (jitThreshold < 0) {
+            throw new IllegalArgumentException("JIT threshold must not be negative: " + jitThreshold);
+        }
         this.ram = ram;
-        out = new ByteArrayOutputStream();
+        out = new OutputBuffer(OutputBuffer.DEFAULT_SIZE);
+        code = new CodeCache(ram, fusion);
+        jit = jitThreshold > 0 ? new Jit(code, ram.length, jitThreshold) : null;
+    }
+
+    /**
+     * Receives the output of a program in batches of up to 8 KiB, while it runs.
+     * The bytes may only be used during the call.
+     */
+    @FunctionalInterface
+    public interface Sink {
+        void write(byte[] bytes, int offset, int length) throws IOException;
+
+        static Sink of(final OutputStream out) {
+            return out::write;
+        }
+
+        static Sink of(final WritableByteChannel channel) {
+            return (bytes, offset, length) -> {
+                final ByteBuffer buffer = ByteBuffer.wrap(bytes, offset, length);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            };
+        }
     }
 
+    /**
+     * Runs the program until HALT.
+     *
+     * @return all of its output
+     */
     public byte[] run() {
-        runInstructions();
-        return out.toByteArray();
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try {
+            run(Sink.of(bytes));
+        } catch (IOException e) {
+            // not thrown by a ByteArrayOutputStream
+            throw new UncheckedIOException(e);
+        }
+        return bytes.toByteArray();
+    }
+
+    public void run(OutputStream out) throws IOException {
+        run(Sink.of(out));
+    }
+
+    public void run(WritableByteChannel channel) throws IOException {
+        run(Sink.of(channel));
+    }
+
+    /**
+     * Runs the program until HALT, passing its output to {@code sink} as it comes. Neither the stream nor the channel
+     * of a sink is flushed or closed.
+     */
+    public void run(Sink sink) throws IOException {
+        out.to(sink);
+        try {
+            if (profile != null) {
+                runProfiled();
+            } else {
+                runInstructions(false);
+            }
+            out.flush();
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    /**
+     * Profiles the next run, and only that one. A profiled run interprets one instruction at a time, without
+     * superinstructions or compiled code, so that every instruction is counted where it is. Its timings are
+     * therefore those of the plain interpreter, not of a run with fusion or the JIT.
+     *
+     * @return the profile, complete when the run is over
+     */
+    public Profile profile() {
+        profile = new Profile(ram.length);
+        return profile;
     }
 
-    private void runInstructions() {
+    private void runProfiled() {
+        profile.start();
+        final long start = System.nanoTime();
+        try {
+            runInstructions(true);
+        } finally {
+            profile.finish(System.nanoTime() - start);
+            profile = null;
+        }
+    }
+
+    /**
+     * Executes from the instruction cache: each step reads the decoded instruction at `pc` and adds its length to
+     * `pc` before executing it.
+     *
+     * <p>A profiled run reads single instructions only and never enters compiled code, so that every instruction is
+     * counted where it is. {@code profiled} does not change within the loop, so checking it costs next to nothing.
+     */
+    private void runInstructions(final boolean profiled) {
+        final Jit compiler = profiled ? null : jit;
         while (true) {
-            InstructionWithBytes iwp = readInstruction();
-            switch (iwp.instruction) {
-                case HALT:
+            final int at = pc;
+            final int op = profiled ? code.instruction(at) : code.op(at);
+            pc = at + CodeCache.length(op);
+            final int opcode = CodeCache.opcode(op);
+            if (profiled) {
+                profile.executed(at, opcode);
+                if (opcode == CodeCache.JEZ && f == 0 || opcode == CodeCache.JNZ && f != 0) {
+                    profile.jumped(at);
+                }
+            }
+            switch (opcode) {
+                case CodeCache.HALT:
                     return;
-                case ADD:
+                case CodeCache.ADD:
                     add();
                     break;
-                case APTR:
-                    aptr(iwp.bytes);
+                case CodeCache.APTR:
+                    aptr(code.immediate(at));
                     break;
-                case CMP:
+                case CodeCache.CMP:
                     cmp();
                     break;
-                case JEZ:
-                    jez(iwp.bytes);
+                case CodeCache.JEZ:
+                    jez(code.immediate(at));
+                    if (pc <= at && compiler != null) {
+                        backwardJump();
+                    }
                     break;
-                case JNZ:
-                    jnz(iwp.bytes);
+                case CodeCache.JNZ:
+                    jnz(code.immediate(at));
+                    if (pc <= at && compiler != null) {
+                        backwardJump();
+                    }
                     break;
-                case MV:
-                    mv(iwp.bytes);
+                case CodeCache.MV:
+                    mv(CodeCache.dest(op), CodeCache.src(op));
                     break;
-                case MV32:
-                    mv32(iwp.bytes);
+                case CodeCache.MV32:
+                    mv32(CodeCache.dest(op), CodeCache.src(op));
                     break;
-                case MVI:
-                    mvi(iwp.bytes);
+                case CodeCache.MVI:
+                    mvi(CodeCache.dest(op), code.immediate(at));
                     break;
-                case MVI32:
-                    mvi32(iwp.bytes);
+                case CodeCache.MVI32:
+                    mvi32(CodeCache.dest(op), code.immediate(at));
                     break;
-                case OUT:
+                case CodeCache.OUT:
                     out();
                     break;
-                case SUB:
+                case CodeCache.SUB:
                     sub();
                     break;
-                case XOR:
+                case CodeCache.XOR:
                     xor();
                     break;
+                case CodeCache.XOR_MEMORY:
+                    xorMemory();
+                    eliminated += 2;
+                    break;
+                case CodeCache.CMP_JEZ:
+                    cmp();
+                    jez(code.immediate(at));
+                    eliminated++;
+                    if (pc <= at + 1 && compiler != null) {
+                        backwardJump();
+                    }
+                    break;
+                case CodeCache.CMP_JNZ:
+                    cmp();
+                    jnz(code.immediate(at));
+                    eliminated++;
+                    if (pc <= at + 1 && compiler != null) {
+                        backwardJump();
+                    }
+                    break;
+                case CodeCache.APTR_LOAD:
+                    aptr(code.immediate(at));
+                    mv(CodeCache.dest(op), 7);
+                    eliminated++;
+                    break;
                 default:
-                    throw new RuntimeException("Instruction " + iwp.instruction + " not implemented");
+                    throw new IllegalStateException("Opcode " + opcode + " not implemented");
             }
         }
     }
 
     /**
-     * Reads one instruction from memory, at the address stored in the `pc` register.
-     * Adds the byte size of the instruction to the `pc` register.
+     * Runs the compiled code of a loop once the loop is hot. It returns where the interpreter continues.
+     */
+    private void backwardJump() {
+        final CompiledCode compiled = jit.enter(pc);
+        if (compiled != null) {
+            compiled.run(this);
+        }
+    }
+
+    /**
+     * Number of regions compiled and dropped again for writes into their code, 0 if only interpreting.
+     */
+    int compilations() {
+        return jit != null ? jit.compilations() : 0;
+    }
+
+    int drops() {
+        return jit != null ? jit.drops() : 0;
+    }
+
+    /**
+     * Number of superinstructions decoded so far, 0 without fusion.
+     */
+    public long fused() {
+        return code.fused();
+    }
+
+    /**
+     * Number of dispatches the executed superinstructions saved, compared to executing their instructions one by one.
+     * Compiled code and profiled runs do not count.
+     */
+    public long eliminatedDispatches() {
+        return eliminated;
+    }
+
+    /**
+     * Appends a byte to the output, for OUT in compiled code.
      */
-    private InstructionWithBytes readInstruction() {
-        Instruction instruction = Instruction.valueOf(ram[pc]);
-        byte[] bytes = Utils.subarray(ram, pc, pc + instruction.length);
-        InstructionWithBytes iwp = new InstructionWithBytes(instruction, bytes);
-        pc += instruction.length;
-        return iwp;
+    void write(int value) {
+        out.write(value);
+    }
+
+    /**
+     * Called after each write to memory.
+     *
+     * @return whether compiled code was overwritten, see {@link Jit#written}
+     */
+    boolean written(int address) {
+        code.invalidate(address);
+        return jit != null && jit.written(address);
     }
 
     /**
@@ -111,8 +316,8 @@ public class TomtelVm {
      *
      * <p>Sets `ptr` to the sum of `ptr` and `imm8`. Overflow behaviour is undefined.
      */
-    private void aptr(byte[] bytes) {
-        ptr += Byte.toUnsignedInt(bytes[1]);
+    private void aptr(int imm8) {
+        ptr += imm8;
     }
 
     /**
@@ -134,11 +339,9 @@ public class TomtelVm {
      *
      * <p>If `f` is equal to zero, sets `pc` to `imm32`. Otherwise does nothing.
      */
-    private void jez(byte[] bytes) {
+    private void jez(int imm32) {
         if (f == 0) {
-            ByteBuffer bb = ByteBuffer.wrap(bytes, 1, 4);
-            bb.order(ByteOrder.LITTLE_ENDIAN);
-            pc = bb.getInt();
+            pc = imm32;
         }
     }
 
@@ -150,11 +353,9 @@ public class TomtelVm {
      *
      * <p>If `f` is not equal to zero, sets `pc` to `imm32`. Otherwise does nothing.
      */
-    private void jnz(byte[] bytes) {
+    private void jnz(int imm32) {
         if (f != 0) {
-            ByteBuffer bb = ByteBuffer.wrap(bytes, 1, 4);
-            bb.order(ByteOrder.LITTLE_ENDIAN);
-            pc = bb.getInt();
+            pc = imm32;
         }
     }
 
@@ -182,14 +383,8 @@ public class TomtelVm {
      *
      * <p>A zero `{src}` indicates an MVI instruction, not MV.
      */
-    private void mv(byte[] bytes) {
-        byte dest = (byte) ((bytes[0] & 0b00111000) >> 3);
-        byte src = (byte) (bytes[0] & 0b00000111);
-        if (src != 0) {
-            setByteRegisterValue(dest, getByteRegisterValue(src));
-        } else {
-            mvi(bytes);
-        }
+    private void mv(int dest, int src) {
+        setByteRegisterValue(dest, getByteRegisterValue(src));
     }
 
     /**
@@ -213,9 +408,7 @@ public class TomtelVm {
      * 5 => `ptr`<br>
      * 6 => `pc`<br>
      */
-    private void mv32(byte[] bytes) {
-        byte dest = (byte) ((bytes[0] & 0b00111000) >> 3);
-        byte src = (byte) (bytes[0] & 0b00000111);
+    private void mv32(int dest, int src) {
         setIntRegisterValue(dest, getIntRegisterValue(src));
     }
 
@@ -241,9 +434,8 @@ public class TomtelVm {
      * 6 => `f`<br>
      * 7 => `(ptr+c)`<br>
      */
-    private void mvi(byte[] bytes) {
-        byte dest = (byte) ((bytes[0] & 0b00111000) >> 3);
-        setByteRegisterValue(dest, bytes[1]);
+    private void mvi(int dest, int imm8) {
+        setByteRegisterValue(dest, (byte) imm8);
     }
 
     /**
@@ -266,11 +458,8 @@ public class TomtelVm {
      * 5 => `ptr`<br>
      * 6 => `pc`<br>
      */
-    private void mvi32(byte[] bytes) {
-        byte dest = (byte) ((bytes[0] & 0b00111000) >> 3);
-        ByteBuffer bb = ByteBuffer.wrap(bytes, 1, 4);
-        bb.order(ByteOrder.LITTLE_ENDIAN);
-        setIntRegisterValue(dest, bb.getInt());
+    private void mvi32(int dest, int imm32) {
+        setIntRegisterValue(dest, imm32);
     }
 
     /**
@@ -315,6 +504,16 @@ public class TomtelVm {
         a = (byte) (a ^ b);
     }
 
+    /**
+     * MV a <- (ptr+c), XOR a <- b, MV (ptr+c) <- a in one.
+     */
+    private void xorMemory() {
+        final int address = ptr + Byte.toUnsignedInt(c);
+        a = (byte) (ram[address] ^ b);
+        ram[address] = a;
+        written(address);
+    }
+
     /*
      * 1 => `a`
      * 2 => `b`
@@ -324,7 +523,7 @@ public class TomtelVm {
      * 6 => `f`
      * 7 => `(ptr+c)`
      */
-    private byte getByteRegisterValue(byte source) {
+    private byte getByteRegisterValue(int source) {
         switch (source) {
             case 1:
                 return a;
@@ -356,7 +555,7 @@ public class TomtelVm {
      * 6 => `f`
      * 7 => `(ptr+c)`
      */
-    private void setByteRegisterValue(byte dest, byte value) {
+    private void setByteRegisterValue(int dest, byte value) {
         switch (dest) {
             case 1:
                 a = value;
@@ -377,7 +576,9 @@ public class TomtelVm {
                 f = value;
                 break;
             case 7:
-                ram[ptr + Byte.toUnsignedInt(c)] = value;
+                final int address = ptr + Byte.toUnsignedInt(c);
+                ram[address] = value;
+                written(address);
                 break;
             default:
                 throw new IllegalArgumentException("Byte "
@@ -394,7 +595,7 @@ public class TomtelVm {
      * 5 => `ptr`
      * 6 => `pc`
      */
-    private int getIntRegisterValue(byte source) {
+    private int getIntRegisterValue(int source) {
         switch (source) {
             case 1:
                 return la;
@@ -423,7 +624,7 @@ public class TomtelVm {
      * 5 => `ptr`
      * 6 => `pc`
      */
-    private void setIntRegisterValue(byte source, int value) {
+    private void setIntRegisterValue(int source, int value) {
         switch (source) {
             case 1:
                 la = value;
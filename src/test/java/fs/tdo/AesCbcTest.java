@@ -0,0 +1,102 @@
+package fs.tdo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.BadPaddingException;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.Test;
+
+public class AesCbcTest {
+    private final Random random = new Random(20);
+    private final SecretKeySpec key = new SecretKeySpec(bytes(32), "AES");
+    private final byte[] iv = bytes(16);
+
+    @Test
+    void segmentsDecryptLikeOneCipher() throws GeneralSecurityException {
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int length : new int[] {0, 1, 15, 16, 17, 100_003}) {
+                final byte[] plain = bytes(length);
+                final byte[] encrypted = encrypt("AES/CBC/PKCS5Padding", plain);
+                for (int segmentSize : new int[] {1, 16, 17, 1000, 65536}) {
+                    final byte[] decrypted = new byte[encrypted.length];
+                    final int n = AesCbc.decrypt(key, iv, ByteBuffer.wrap(encrypted), ByteBuffer.wrap(decrypted),
+                        pool, segmentSize);
+                    assertArrayEquals(plain, Arrays.copyOf(decrypted, n), length + " in segments of " + segmentSize);
+                }
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void rejectsBadPadding() throws GeneralSecurityException {
+        final byte[] encrypted = encrypt("AES/CBC/NoPadding", new byte[64]);
+        assertFalse(AesCbc.isPadded(key, iv, ByteBuffer.wrap(encrypted)));
+        assertThrows(BadPaddingException.class, () -> AesCbc.decrypt(key, iv, ByteBuffer.wrap(encrypted),
+            ByteBuffer.allocate(64), ForkJoinPool.commonPool()));
+    }
+
+    @Test
+    void detectsTheMode() throws GeneralSecurityException {
+        final byte[] plain = bytes(1000);
+        final byte[] cbc = encrypt("AES/CBC/PKCS5Padding", plain);
+        assertTrue(AesCbc.isPadded(key, iv, ByteBuffer.wrap(cbc)));
+        assertArrayEquals(plain, Layer5.decrypt(key, iv, ByteBuffer.wrap(cbc), Layer5.Mode.AUTO));
+        final byte[] ctr = encrypt("AES/CTR/NoPadding", plain);
+        assertFalse(AesCbc.isPadded(key, iv, ByteBuffer.wrap(ctr)));
+        assertArrayEquals(plain, Layer5.decrypt(key, iv, ByteBuffer.wrap(ctr), Layer5.Mode.AUTO));
+    }
+
+    @Test
+    void streamsEveryMode() throws GeneralSecurityException, IOException {
+        final byte[] kek = bytes(32);
+        final byte[] kekIv = bytes(8);
+        final Cipher wrap = Cipher.getInstance("AESWrap", new BouncyCastleProvider());
+        wrap.init(Cipher.WRAP_MODE, new SecretKeySpec(kek, "AES"), new IvParameterSpec(kekIv));
+        final byte[] wrapped = wrap.wrap(key);
+        assertEquals(40, wrapped.length);
+        final byte[] plain = bytes(200_000);
+        for (Layer5.Mode mode : Layer5.Mode.values()) {
+            final byte[] encrypted = encrypt(mode == Layer5.Mode.CTR ? "AES/CTR/NoPadding" : "AES/CBC/PKCS5Padding",
+                plain);
+            final ByteArrayOutputStream payload = new ByteArrayOutputStream();
+            payload.write(kek);
+            payload.write(kekIv);
+            payload.write(wrapped);
+            payload.write(iv);
+            payload.write(encrypted);
+            final ByteArrayOutputStream out = new ByteArrayOutputStream();
+            Layer5.stream(new ByteArrayInputStream(payload.toByteArray()), out, mode);
+            assertArrayEquals(plain, out.toByteArray(), mode.toString());
+        }
+    }
+
+    private byte[] encrypt(final String transformation, final byte[] plain) throws GeneralSecurityException {
+        final Cipher cipher = Cipher.getInstance(transformation);
+        cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher.doFinal(plain);
+    }
+
+    private byte[] bytes(final int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,76 @@
+package fs.tdo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.nio.ByteBuffer;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.junit.jupiter.api.Test;
+
+public class AesCtrTest {
+
+    @Test
+    void segmentsDecryptLikeOneCipher() throws GeneralSecurityException {
+        final Random random = new Random(18);
+        final SecretKeySpec key = new SecretKeySpec(bytes(random, 32), "AES");
+        final byte[] input = bytes(random, 100_003);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            // the counters run over the low byte, the low half and all 128 bits
+            for (byte[] iv : new byte[][] {bytes(random, 16), filled(0xff, 0), filled(0xff, 8), filled(0xff, 15)}) {
+                final byte[] expected = reference(key, iv, input);
+                for (int segmentSize : new int[] {1, 16, 17, 1000, 65536}) {
+                    final byte[] actual = new byte[input.length - 3];
+                    AesCtr.decrypt(key, iv, ByteBuffer.wrap(input, 3, actual.length), ByteBuffer.wrap(actual),
+                        pool, segmentSize);
+                    assertArrayEquals(Arrays.copyOfRange(reference(key, iv, Arrays.copyOfRange(input, 3,
+                        input.length)), 0, actual.length), actual, "segment size " + segmentSize);
+                }
+                final byte[] actual = new byte[input.length];
+                AesCtr.decrypt(key, iv, ByteBuffer.wrap(input), ByteBuffer.wrap(actual), pool);
+                assertArrayEquals(expected, actual);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void counterCarriesAcrossBytes() {
+        assertArrayEquals(filled(0, 0), AesCtr.counter(filled(0xff, 0), 1));
+        final byte[] expected = filled(0, 0);
+        expected[7] = 1;
+        assertArrayEquals(expected, AesCtr.counter(filled(0xff, 8), 1));
+        final byte[] iv = filled(0, 0);
+        iv[15] = (byte) 0xf0;
+        final byte[] sum = filled(0, 0);
+        sum[7] = 1;
+        sum[15] = (byte) 0xef;
+        assertArrayEquals(sum, AesCtr.counter(iv, 0xffff_ffff_ffff_ffffL));
+    }
+
+    /* The first {@code from} bytes zero, the rest {@code value}. */
+    private static byte[] filled(final int value, final int from) {
+        final byte[] bytes = new byte[16];
+        Arrays.fill(bytes, from, 16, (byte) value);
+        return bytes;
+    }
+
+    private static byte[] bytes(final Random random, final int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] reference(final SecretKeySpec key, final byte[] iv, final byte[] input)
+        throws GeneralSecurityException {
+        final Cipher cipher = Cipher.getInstance("AES/CTR/NoPadding");
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(iv));
+        return cipher.doFinal(input);
+    }
+}
@@ -0,0 +1,138 @@
+package fs.tdo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+
+public class Base85Test {
+    private static final String HELLO = "<~87cURD_*#TDfTZ)+T~>";
+
+    @Test
+    void decodeString() {
+        assertArrayEquals(ascii("Hello, world!"), Base85.decode(HELLO));
+        assertArrayEquals(new byte[] {0, 0, 0, 0, 'a', 'b', 'c'}, Base85.decode("<~z@:E^~>"));
+    }
+
+    @Test
+    void bulkDecodeHasExactLength() {
+        assertEquals(13, Base85.decodedLength(ByteBuffer.wrap(ascii(HELLO))));
+        assertEquals(7, Base85.decodedLength(ByteBuffer.wrap(ascii("  <~z@:E^~> trailing"))));
+
+        final ByteBuffer src = ByteBuffer.wrap(ascii("xx" + HELLO + "xx"));
+        src.position(2).limit(src.limit() - 2);
+        final ByteBuffer dst = ByteBuffer.allocate(13).order(ByteOrder.LITTLE_ENDIAN);
+        Base85.decode(src, dst);
+        assertArrayEquals(ascii("Hello, world!"), dst.array());
+        assertEquals(0, dst.remaining());
+        assertEquals(src.limit(), src.position());
+    }
+
+    @Test
+    void parallelMatchesSequentialDecoder() throws IOException {
+        final byte[] layer0 = layer0Envelope();
+        final ByteBuffer sequential = ByteBuffer.wrap(layer0);
+        final byte[] expected = Base85.decode(sequential);
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int chunkSize : new int[] {1, 3, 7, 1000, 1 << 20}) {
+                final ByteBuffer src = ByteBuffer.wrap(layer0);
+                assertArrayEquals(expected, Base85.decodeParallel(src, pool, chunkSize, null));
+                assertEquals(sequential.position(), src.position());
+            }
+            final String shortcuts = "<~z@:E^zyy\n87cURDx_*#TDfTZ)+T~>";
+            for (int chunkSize = 1; chunkSize < shortcuts.length(); chunkSize++) {
+                assertArrayEquals(
+                    Base85.decode(shortcuts),
+                    Base85.decodeParallel(ByteBuffer.wrap(ascii(shortcuts)), pool, chunkSize, null)
+                );
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void transformIsAppliedWhileDecoding() throws IOException {
+        final byte[] layer0 = layer0Envelope();
+        final byte[] plain = Base85.decode(ByteBuffer.wrap(layer0));
+        for (byte[] key : new byte[][] {ascii("0123456789abcdef0123456789abcdef"), ascii("abcde")}) {
+            final byte[] expected = plain.clone();
+            for (int i = 0; i < expected.length; i++) {
+                expected[i] ^= key[i % key.length];
+            }
+            final WordTransform xor = Layer3.xorTransform(key);
+            assertArrayEquals(expected, Base85.decode(ByteBuffer.wrap(layer0), xor));
+            final ForkJoinPool pool = new ForkJoinPool(4);
+            try {
+                assertArrayEquals(expected, Base85.decodeParallel(ByteBuffer.wrap(layer0), pool, 4099, xor));
+            } finally {
+                pool.shutdown();
+            }
+        }
+        // a transform without a bulk form is applied group by group
+        final byte[] flipped = Base85.decodeParallel(ByteBuffer.wrap(layer0), ForkJoinPool.commonPool(), 4099,
+            (word, offset) -> Layer1.transformWord(word));
+        final byte[] expected = plain.clone();
+        ByteKernels.flipAndRotate(expected, 0, expected.length);
+        assertArrayEquals(expected, flipped);
+        assertArrayEquals(Arrays.copyOf(plain, 10), Base85.decodePrefix(ByteBuffer.wrap(layer0), 10));
+        assertArrayEquals(ascii("Hello, world!"), Base85.decodePrefix(ByteBuffer.wrap(ascii(HELLO)), 100));
+    }
+
+    @Test
+    void streamMatchesStringDecoder() throws IOException {
+        assertArrayEquals(ascii("Hello, world!"), readStream(ascii(HELLO), 5));
+        assertArrayEquals(ascii("Hello, world!"), readStream(ascii(" \n" + HELLO.substring(2)), 5));
+        assertArrayEquals(ascii("    "), readStream(ascii("<~y~>"), 16));
+
+        final byte[] layer0 = layer0Envelope();
+        final byte[] expected = Base85.decode(new String(layer0, StandardCharsets.US_ASCII));
+        for (int chunkSize : new int[] {5, 7, 4096}) {
+            assertArrayEquals(expected, readStream(layer0, chunkSize));
+        }
+    }
+
+    @Test
+    void channelMatchesStringDecoder() throws IOException {
+        final byte[] layer0 = layer0Envelope();
+        final byte[] expected = Base85.decode(new String(layer0, StandardCharsets.US_ASCII));
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final long written = Base85.decode(
+            Channels.newChannel(new ByteArrayInputStream(layer0)),
+            Channels.newChannel(out)
+        );
+        assertEquals(expected.length, written);
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    static byte[] layer0Envelope() throws IOException {
+        URL url = Objects.requireNonNull(Base85Test.class.getClassLoader().getResource("layer0.txt"));
+        try (InputStream inputStream = url.openStream()) {
+            String text = new String(inputStream.readAllBytes(), StandardCharsets.US_ASCII);
+            return ascii(text.substring(text.lastIndexOf("<~")));
+        }
+    }
+
+    private static byte[] readStream(byte[] encoded, int chunkSize) throws IOException {
+        try (InputStream in = new Base85InputStream(new ByteArrayInputStream(encoded), chunkSize)) {
+            return in.readAllBytes();
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+}
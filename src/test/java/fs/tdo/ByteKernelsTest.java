@@ -0,0 +1,77 @@
+package fs.tdo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class ByteKernelsTest {
+    private final Random random = new Random(3);
+
+    @Test
+    void flipAndRotate() {
+        final byte[] data = randomBytes(1003);
+        final byte[] expected = data.clone();
+        for (int i = 3; i < 1001; i++) {
+            final int flipped = expected[i] & 0xff ^ 0b01010101;
+            expected[i] = (byte) ((flipped & 1) << 7 | flipped >> 1);
+        }
+        ByteKernels.flipAndRotate(data, 3, 1001);
+        assertArrayEquals(expected, data);
+    }
+
+    @Test
+    void xorWithCyclingKey() {
+        for (int keyLength : new int[] {1, 5, 8, 32, 33}) {
+            final byte[] key = randomBytes(keyLength);
+            final byte[] data = randomBytes(517);
+            final byte[] expected = data.clone();
+            for (int i = 2; i < 517; i++) {
+                expected[i] ^= key[(int) ((1000L + i - 2) % keyLength)];
+            }
+            ByteKernels.xor(data, 2, 517, ByteKernels.expandKey(key), keyLength, 1000L);
+            assertArrayEquals(expected, data, "key length " + keyLength);
+        }
+    }
+
+    @Test
+    void countEvenParity() {
+        final byte[] data = randomBytes(1003);
+        int expected = 0;
+        for (int i = 5; i < 1000; i++) {
+            if (Integer.bitCount(data[i] & 0xff) % 2 == 0) {
+                expected++;
+            }
+        }
+        assertEquals(expected, ByteKernels.countEvenParity(data, 5, 1000));
+    }
+
+    @Test
+    void backendsAgree() {
+        final ByteKernels.Backend swar = new ByteKernels.Swar();
+        final ByteKernels.Backend backend = ByteKernels.BACKEND;
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent()) {
+            assertEquals("fs.tdo.VectorKernels", backend.getClass().getName());
+        }
+        final byte[] key = ByteKernels.expandKey(randomBytes(32));
+        for (int length = 0; length < 300; length += 7) {
+            final byte[] data = randomBytes(length + 3);
+            final byte[] expected = data.clone();
+            final byte[] actual = data.clone();
+            swar.flipAndRotate(expected, 3, length + 3);
+            backend.flipAndRotate(actual, 3, length + 3);
+            assertArrayEquals(expected, actual);
+            swar.xor(expected, 1, length + 2, key, 32, 45);
+            backend.xor(actual, 1, length + 2, key, 32, 45);
+            assertArrayEquals(expected, actual);
+            assertEquals(swar.countEvenParity(data, 2, length + 3), backend.countEvenParity(data, 2, length + 3));
+        }
+    }
+
+    private byte[] randomBytes(int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+}
@@ -0,0 +1,102 @@
+package fs.tdo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fs.tdo.layer4.Flow;
+import fs.tdo.layer4.FlowTable;
+import fs.tdo.layer4.PacketFilter;
+import fs.tdo.layer4.PacketStatistics;
+import fs.tdo.layer4.PacketView;
+import fs.tdo.layer4.PcapReader;
+import fs.tdo.layer4.PcapWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class FlowDemuxTest {
+
+    @Test
+    void everyFlowEqualsAFilteredExtraction() throws IOException {
+        final byte[] input = Layer4Test.layer4Input();
+        final Map<Flow, ByteArrayOutputStream> outputs = new ConcurrentHashMap<>();
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        final List<FlowDemux.Result> flows;
+        try {
+            flows = FlowDemux.demux(input, PacketFilter.compile("ip"), new PacketStatistics(), sink(outputs), pool);
+            assertTrue(flows.size() > 1);
+            long bytes = 0;
+            for (FlowDemux.Result result : flows) {
+                final Flow flow = result.flow;
+                final PacketFilter only = PacketFilter.compile(
+                    "src host " + address(flow.sourceIp) + " and src port " + flow.sourcePort
+                        + " and dst host " + address(flow.destIp) + " and dst port " + flow.destPort);
+                final byte[] expected = Layer4.solve(input, only, new PacketStatistics(), pool);
+                assertArrayEquals(expected, outputs.get(flow).toByteArray(), flow.toString());
+                assertEquals(expected.length, result.bytes);
+                bytes += result.bytes;
+            }
+            assertEquals(outputs.size(), flows.size());
+            assertTrue(bytes > Layer4.solve(input, PacketFilter.ONION, new PacketStatistics(), pool).length);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void captureGivesTheSameFlows(@TempDir final Path directory) throws IOException {
+        final byte[] input = Layer4Test.layer4Input();
+        final Path capture = directory.resolve("layer4.pcap");
+        final PacketView view = new PacketView(ByteBuffer.wrap(input));
+        try (PcapWriter writer = PcapWriter.create(capture)) {
+            for (int i = 0; i < input.length; i += view.length()) {
+                writer.write(view.moveTo(i), i);
+            }
+        }
+        final Map<Flow, ByteArrayOutputStream> fromBytes = new ConcurrentHashMap<>();
+        final Map<Flow, ByteArrayOutputStream> fromCapture = new ConcurrentHashMap<>();
+        final List<FlowDemux.Result> expected =
+            FlowDemux.demux(input, PacketFilter.ONION, new PacketStatistics(), sink(fromBytes),
+                ForkJoinPool.commonPool());
+        final List<FlowDemux.Result> flows;
+        try (PcapReader reader = PcapReader.open(capture)) {
+            flows = FlowDemux.demux(reader, PacketFilter.ONION, new PacketStatistics(), sink(fromCapture));
+        }
+        assertEquals(expected.size(), flows.size());
+        for (int i = 0; i < flows.size(); i++) {
+            assertEquals(expected.get(i).flow, flows.get(i).flow);
+            assertEquals(expected.get(i).packets, flows.get(i).packets);
+            assertArrayEquals(fromBytes.get(flows.get(i).flow).toByteArray(),
+                fromCapture.get(flows.get(i).flow).toByteArray());
+        }
+    }
+
+    @Test
+    void flowTableNumbersFlowsInOrderOfAppearance() {
+        final FlowTable table = new FlowTable();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(i, table.flowOf(0x0A000000 + i, 0x0A0101C8, 40000 + i % 7, 65535 - i, 17));
+            }
+        }
+        assertEquals(1000, table.size());
+        assertEquals(new Flow(0x0A000000 + 5, 0x0A0101C8, 40005, 65530, 17), table.flow(5));
+        assertEquals(1000, table.flowOf(0x0A000000 + 5, 0x0A0101C8, 40005, 65530, 6));
+    }
+
+    private static FlowDemux.Sinks sink(final Map<Flow, ByteArrayOutputStream> outputs) {
+        return flow -> outputs.computeIfAbsent(flow, f -> new ByteArrayOutputStream());
+    }
+
+    private static String address(final int ip) {
+        return (ip >>> 24) + "." + (ip >>> 16 & 0xff) + "." + (ip >>> 8 & 0xff) + "." + (ip & 0xff);
+    }
+}
@@ -0,0 +1,66 @@
+package fs.tdo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.security.GeneralSecurityException;
+import java.security.InvalidKeyException;
+import java.util.Random;
+import javax.crypto.Cipher;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.junit.jupiter.api.Test;
+
+public class KeyWrapTest {
+
+    @Test
+    void unwrapsTheTestVectorOfRfc3394() throws GeneralSecurityException {
+        // section 4.6: 256 bits of key data with a 256-bit KEK and the default IV
+        final byte[] kek = hex("000102030405060708090A0B0C0D0E0F101112131415161718191A1B1C1D1E1F");
+        final byte[] wrapped = hex("28C9F404C4B810F4CBCCB35CFB87F8263F5786E2D80ED326CBC7F0E71A99F43BFB988B9B7A02DD21");
+        final byte[] iv = hex("A6A6A6A6A6A6A6A6");
+        final byte[] key = hex("00112233445566778899AABBCCDDEEFF000102030405060708090A0B0C0D0E0F");
+        assertArrayEquals(key, KeyWrap.unwrapJdk(wrapped, kek, iv).getEncoded());
+        assertArrayEquals(key, KeyWrap.unwrapBouncyCastle(wrapped, kek, iv).getEncoded());
+    }
+
+    @Test
+    void unwrapsLikeBouncyCastle() throws GeneralSecurityException {
+        final Random random = new Random(19);
+        for (int keyLength : new int[] {16, 24, 32}) {
+            final byte[] kek = bytes(random, 32);
+            final byte[] iv = bytes(random, 8);
+            final byte[] key = bytes(random, keyLength);
+            final Cipher cipher = Cipher.getInstance("AESWrap", new BouncyCastleProvider());
+            cipher.init(Cipher.WRAP_MODE, new SecretKeySpec(kek, "AES"), new IvParameterSpec(iv));
+            final byte[] wrapped = cipher.wrap(new SecretKeySpec(key, "AES"));
+            assertArrayEquals(key, KeyWrap.unwrapJdk(wrapped, kek, iv).getEncoded());
+        }
+    }
+
+    @Test
+    void rejectsATamperedKey() throws GeneralSecurityException {
+        final byte[] kek = hex("000102030405060708090A0B0C0D0E0F101112131415161718191A1B1C1D1E1F");
+        final byte[] wrapped = hex("28C9F404C4B810F4CBCCB35CFB87F8263F5786E2D80ED326CBC7F0E71A99F43BFB988B9B7A02DD21");
+        wrapped[20] ^= 1;
+        assertThrows(InvalidKeyException.class,
+            () -> KeyWrap.unwrapJdk(wrapped, kek, hex("A6A6A6A6A6A6A6A6")));
+        assertThrows(InvalidKeyException.class,
+            () -> KeyWrap.unwrapJdk(new byte[16], kek, hex("A6A6A6A6A6A6A6A6")));
+    }
+
+    private static byte[] bytes(final Random random, final int length) {
+        final byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] hex(final String hex) {
+        final byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(2 * i, 2 * i + 2), 16);
+        }
+        return bytes;
+    }
+}
@@ -0,0 +1,50 @@
+package fs.tdo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+
+public class Layer2Test {
+
+    @Test
+    void sequentialParallelAndStreamAgree() throws IOException {
+        final byte[] input = new byte[200_003];
+        new Random(42).nextBytes(input);
+        final byte[] expected = reference(input);
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertArrayEquals(expected, Layer2.solve(input, pool));
+            for (int chunkSize : new int[] {1, 2, 3, 7, 8, 9, 1000, 65536, Integer.MAX_VALUE}) {
+                assertArrayEquals(expected, Layer2.solve(input, pool, chunkSize), "chunk size " + chunkSize);
+            }
+        } finally {
+            pool.shutdown();
+        }
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Layer2.stream(new ByteArrayInputStream(input), out);
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    private static byte[] reference(byte[] input) {
+        final StringBuilder bits = new StringBuilder();
+        for (byte element : input) {
+            final int val = element & 0xff;
+            if (Integer.bitCount(val >> 1) % 2 == (val & 1)) {
+                for (int k = 7; k >= 1; k--) {
+                    bits.append(val >> k & 1);
+                }
+            }
+        }
+        final byte[] result = new byte[bits.length() / 8];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = (byte) Integer.parseInt(bits.substring(i * 8, i * 8 + 8), 2);
+        }
+        return result;
+    }
+}
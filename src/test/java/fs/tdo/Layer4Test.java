@@ -0,0 +1,376 @@
+package fs.tdo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import fs.tdo.layer4.DropReason;
+import fs.tdo.layer4.FragmentReassembler;
+import fs.tdo.layer4.Packet;
+import fs.tdo.layer4.PacketFilter;
+import fs.tdo.layer4.PacketStatistics;
+import fs.tdo.layer4.PacketView;
+import fs.tdo.layer4.PcapReader;
+import fs.tdo.layer4.PcapWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.concurrent.ForkJoinPool;
+import javax.management.ObjectName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class Layer4Test {
+    private static byte[] layer4Input;
+
+    @Test
+    void viewAgreesWithPacketObjects() throws IOException {
+        final byte[] input = layer4Input();
+        final PacketView view = new PacketView(ByteBuffer.wrap(input));
+        int valid = 0;
+        int i = 0;
+        while (i < input.length) {
+            final Packet packet = new Packet(input, i);
+            view.moveTo(i);
+            assertEquals(packet.getLength(), view.length());
+            assertEquals(packet.isValid(), view.isValid(), "packet at " + i);
+            if (view.isValid()) {
+                final byte[] payload = new byte[view.payloadLength()];
+                view.copyPayload(payload, 0);
+                assertArrayEquals(packet.udpPacket.getPayload(), payload);
+                valid++;
+            }
+            i += view.length();
+        }
+        assertEquals(input.length, i);
+        assertTrue(valid > 0);
+    }
+
+    @Test
+    void reassemblesFragmentsInAnyOrder() throws IOException {
+        final byte[] datagram = firstValidPacket();
+        final int dataLength = datagram.length - 20;
+        final ByteArrayOutputStream fragments = new ByteArrayOutputStream();
+        // last fragment first, then the others backwards
+        for (int from = (dataLength - 1) / 16 * 16; from >= 0; from -= 16) {
+            fragments.write(fragment(datagram, from, Math.min(dataLength, from + 16)));
+        }
+        final byte[] expected = stream(datagram);
+        assertTrue(expected.length > 0);
+        assertArrayEquals(expected, stream(fragments.toByteArray()));
+    }
+
+    @Test
+    void parallelValidationAgreesWithStream() throws IOException {
+        final byte[] datagram = firstValidPacket();
+        final ByteArrayOutputStream packets = new ByteArrayOutputStream();
+        packets.write(layer4Input());
+        for (int from = 0; from < datagram.length - 20; from += 24) {
+            packets.write(fragment(datagram, from, Math.min(datagram.length - 20, from + 24)));
+            packets.write(datagram);
+        }
+        final byte[] input = packets.toByteArray();
+        final byte[] expected = stream(input);
+
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            assertArrayEquals(expected, Layer4.solve(input, PacketFilter.ONION, new PacketStatistics(), pool));
+            for (int chunkSize : new int[] {1, 2, 7, 100, 10_000, Integer.MAX_VALUE}) {
+                assertArrayEquals(expected,
+                    Layer4.solve(input, PacketFilter.ONION, new PacketStatistics(), pool, chunkSize),
+                    "chunk size " + chunkSize);
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void countsEveryPacketWithItsDropReason() throws Exception {
+        final byte[] input = layer4Input();
+        final int packets = Layer4.boundaries(input, new PacketStatistics()).length;
+        final PacketStatistics statistics = new PacketStatistics();
+        statistics.register("test");
+        final ObjectName name = new ObjectName("fs.tdo:type=PacketStatistics,name=\"test\"");
+        final ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            for (int chunkSize : new int[] {0, 1, 50}) {
+                statistics.reset();
+                final byte[] result = chunkSize == 0 ? Layer4.solve(input, PacketFilter.ONION, statistics, pool)
+                    : Layer4.solve(input, PacketFilter.ONION, statistics, pool, chunkSize);
+                assertEquals(packets, statistics.getAcceptedPackets() + statistics.getDroppedPackets());
+                assertEquals(result.length, statistics.getAcceptedBytes());
+                assertEquals(input.length, statistics.getDroppedBytes()
+                    + statistics.getAcceptedBytes() + statistics.getAcceptedPackets() * 28);
+                assertTrue(statistics.drops(DropReason.FILTERED) > 0);
+                assertTrue(statistics.drops(DropReason.BAD_IP_CHECKSUM) > 0);
+                assertTrue(statistics.drops(DropReason.BAD_UDP_CHECKSUM) > 0);
+                assertTrue(statistics.getThroughput() > 0);
+                assertEquals(statistics.getAcceptedPackets(),
+                    ManagementFactory.getPlatformMBeanServer().getAttribute(name, "AcceptedPackets"));
+            }
+        } finally {
+            pool.shutdown();
+            ManagementFactory.getPlatformMBeanServer().unregisterMBean(name);
+        }
+    }
+
+    @Test
+    void capturesGiveTheSamePayload(@TempDir final Path directory) throws IOException {
+        final byte[] input = layer4Input();
+        final Path capture = directory.resolve("layer4.pcap");
+        final PacketView view = new PacketView(ByteBuffer.wrap(input));
+        int packets = 0;
+        try (PcapWriter writer = PcapWriter.create(capture)) {
+            for (int i = 0; i < input.length; i += view.length()) {
+                writer.write(view.moveTo(i), packets++);
+            }
+        }
+        final Path accepted = directory.resolve("accepted.pcap");
+        final Path rejected = directory.resolve("rejected.pcap");
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PcapReader reader = PcapReader.open(capture);
+             PcapWriter acceptedWriter = PcapWriter.create(accepted);
+             PcapWriter rejectedWriter = PcapWriter.create(rejected)) {
+            Layer4.stream(reader, out, PacketFilter.ONION, new PacketStatistics(), acceptedWriter, rejectedWriter);
+        }
+        assertArrayEquals(stream(input), out.toByteArray());
+        assertEquals(packets, count(accepted) + count(rejected));
+        assertTrue(count(rejected) > 0);
+    }
+
+    @Test
+    void dropsIncompleteDatagramsWhenFull() throws IOException {
+        final byte[] first = firstValidPacket();
+        final byte[] second = first.clone();
+        second[5] ^= 1; // another identification
+        final FragmentReassembler reassembler = new FragmentReassembler(0, FragmentReassembler.DEFAULT_TIMEOUT);
+        final int dataLength = first.length - 20;
+
+        assertNull(reassembler.offer(view(fragment(first, 0, 16)), 0));
+        assertNull(reassembler.offer(view(fragment(second, 0, 16)), 1));
+        assertEquals(1, reassembler.dropped());
+        assertNull(reassembler.offer(view(fragment(first, 16, dataLength)), 2));
+        assertEquals(2, reassembler.dropped());
+
+        final PacketView datagram = reassembler.offer(view(fragment(first, 0, 16)), 3);
+        assertTrue(datagram.isValid());
+        assertFalse(datagram.isFragment());
+        final byte[] payload = new byte[datagram.payloadLength()];
+        datagram.copyPayload(payload, 0);
+        assertArrayEquals(stream(first), payload);
+    }
+
+    @Test
+    void dropsDatagramsWhoseFragmentsDisagree() throws IOException {
+        final byte[] first = firstValidPacket();
+        final int dataLength = first.length - 20;
+        // the same header, for data of other lengths
+        final byte[] long1008 = Arrays.copyOf(first, 20 + 1008);
+        final byte[] short24 = Arrays.copyOf(first, 20 + 24);
+        final byte[] short32 = Arrays.copyOf(first, 20 + 32);
+        final FragmentReassembler reassembler = new FragmentReassembler();
+
+        // a block far behind the end the last fragment gives, and bytes 16 to 24 never sent
+        assertNull(reassembler.offer(view(fragment(long1008, 0, 16)), 0));
+        assertNull(reassembler.offer(view(fragment(long1008, 1000, 1008)), 1));
+        assertNull(reassembler.offer(view(fragment(short24, 24, 24)), 2));
+        assertEquals(1, reassembler.dropped());
+
+        // two last fragments with different lengths
+        assertNull(reassembler.offer(view(fragment(short24, 16, 24)), 3));
+        assertNull(reassembler.offer(view(fragment(short32, 24, 32)), 4));
+        assertEquals(2, reassembler.dropped());
+
+        // overlapping fragments that agree are fine
+        assertNull(reassembler.offer(view(fragment(first, 8, 24)), 5));
+        assertNull(reassembler.offer(view(fragment(first, 16, dataLength)), 6));
+        final PacketView datagram = reassembler.offer(view(fragment(first, 0, 16)), 7);
+        assertTrue(datagram.isValid());
+        final byte[] payload = new byte[datagram.payloadLength()];
+        datagram.copyPayload(payload, 0);
+        assertArrayEquals(stream(first), payload);
+        assertEquals(2, reassembler.dropped());
+    }
+
+    @Test
+    void dropsALastPacketCutShortAsTruncated() throws IOException {
+        final byte[] valid = firstValidPacket();
+        final byte[] expected = stream(valid);
+        for (int cut : new int[] {2, 10, valid.length - 1}) {
+            final byte[] input = Arrays.copyOf(valid, valid.length + cut);
+            System.arraycopy(valid, 0, input, valid.length, cut);
+            assertArrayEquals(expected, stream(input), "cut at " + cut);
+            for (int chunkSize : new int[] {0, 1}) {
+                final PacketStatistics statistics = new PacketStatistics();
+                final byte[] result = chunkSize == 0
+                    ? Layer4.solve(input, PacketFilter.ONION, statistics, ForkJoinPool.commonPool())
+                    : Layer4.solve(input, PacketFilter.ONION, statistics, ForkJoinPool.commonPool(), chunkSize);
+                assertArrayEquals(expected, result, "cut at " + cut);
+                assertEquals(1, statistics.drops(DropReason.TRUNCATED));
+                assertEquals(cut, statistics.getDroppedBytes());
+            }
+        }
+    }
+
+    @Test
+    void dropsTheLastRecordOfACaptureCutShortAsTruncated(@TempDir final Path directory) throws IOException {
+        final byte[] valid = firstValidPacket();
+        final Path capture = directory.resolve("cut.pcap");
+        try (PcapWriter writer = PcapWriter.create(capture)) {
+            writer.write(ByteBuffer.wrap(valid), valid.length, 1);
+            writer.write(ByteBuffer.wrap(valid), valid.length, 2);
+        }
+        final byte[] file = Files.readAllBytes(capture);
+        Files.write(capture, Arrays.copyOf(file, file.length - 5));
+        final Path rejected = directory.resolve("rejected.pcap");
+        final PacketStatistics statistics = new PacketStatistics();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (PcapReader reader = PcapReader.open(capture); PcapWriter rejectedWriter = PcapWriter.create(rejected)) {
+            Layer4.stream(reader, out, PacketFilter.ONION, statistics, null, rejectedWriter);
+        }
+        assertArrayEquals(stream(valid), out.toByteArray());
+        assertEquals(1, statistics.drops(DropReason.TRUNCATED));
+        assertEquals(valid.length - 5, statistics.getDroppedBytes());
+        try (PcapReader reader = PcapReader.open(rejected)) {
+            assertTrue(reader.next());
+            assertEquals(valid.length - 5, reader.capturedLength());
+            assertEquals(valid.length, reader.originalPacketLength());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    void dropsDatagramsAfterTimeout() throws IOException {
+        final byte[] datagram = firstValidPacket();
+        final FragmentReassembler reassembler = new FragmentReassembler(FragmentReassembler.DEFAULT_MEMORY_LIMIT, 10);
+        assertNull(reassembler.offer(view(fragment(datagram, 0, 16)), 0));
+        assertNull(reassembler.offer(view(fragment(datagram, 16, datagram.length - 20)), 11));
+        assertEquals(1, reassembler.dropped());
+    }
+
+    @Test
+    void countsCorruptedPacketsAsCorruptedWhateverTheirAddress() throws IOException {
+        final byte[] packet = firstValidPacket();
+        // destination 10.1.1.201, without fixing the checksums
+        packet[19]++;
+        assertEquals(DropReason.BAD_IP_CHECKSUM, view(packet).check(PacketFilter.ONION));
+        packet[11]--;
+        assertEquals(DropReason.BAD_UDP_CHECKSUM, view(packet).check(PacketFilter.ONION));
+    }
+
+    @Test
+    void dropsPacketsWhoseUdpLengthDoesNotFit() throws IOException {
+        final byte[] valid = firstValidPacket();
+        for (int udpLength : new int[] {5, valid.length - 20 + 1, 0xffff}) {
+            final byte[] packet = valid.clone();
+            packet[24] = (byte) (udpLength >>> 8);
+            packet[25] = (byte) udpLength;
+            // without a checksum, only the length check can reject it
+            packet[26] = 0;
+            packet[27] = 0;
+            assertEquals(DropReason.BAD_UDP_LENGTH, view(packet).check(PacketFilter.ONION), "UDP length " + udpLength);
+            assertFalse(view(packet).validUdpChecksum());
+
+            // last, where reading past the packet would leave the buffer
+            final ByteArrayOutputStream packets = new ByteArrayOutputStream();
+            packets.write(valid);
+            packets.write(packet);
+            final byte[] input = packets.toByteArray();
+            final byte[] expected = stream(valid);
+            assertArrayEquals(expected, stream(input));
+            assertArrayEquals(expected, Layer4.solve(input, PacketFilter.ONION, new PacketStatistics(),
+                ForkJoinPool.commonPool(), 1));
+        }
+    }
+
+    @Test
+    void dropsReassembledDatagramsLongerThanAnIpv4Packet() throws IOException {
+        final byte[] datagram = Arrays.copyOf(firstValidPacket(), 20 + 65528);
+        final FragmentReassembler reassembler = new FragmentReassembler();
+        for (int from = 0; from < 65528; from += 8192) {
+            assertNull(reassembler.offer(view(fragment(datagram, from, Math.min(65528, from + 8192))), from / 8192));
+        }
+        assertEquals(1, reassembler.dropped());
+    }
+
+    private static int count(final Path capture) throws IOException {
+        int count = 0;
+        try (PcapReader reader = PcapReader.open(capture)) {
+            while (reader.next()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private static byte[] stream(final byte[] packets) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Layer4.stream(new ByteArrayInputStream(packets), out);
+        return out.toByteArray();
+    }
+
+    private static PacketView view(final byte[] packet) {
+        return new PacketView(ByteBuffer.wrap(packet)).moveTo(0);
+    }
+
+    private static byte[] firstValidPacket() throws IOException {
+        final byte[] input = layer4Input();
+        final PacketView view = new PacketView(ByteBuffer.wrap(input));
+        for (int i = 0; ; i += view.length()) {
+            if (view.moveTo(i).isValid() && view.ihl() == 5) {
+                return Arrays.copyOfRange(input, i, i + view.length());
+            }
+        }
+    }
+
+    /**
+     * The fragment of a datagram with a 20-byte header carrying {@code [from, to)} of its data.
+     */
+    private static byte[] fragment(final byte[] datagram, final int from, final int to) {
+        final byte[] fragment = new byte[20 + to - from];
+        System.arraycopy(datagram, 0, fragment, 0, 20);
+        System.arraycopy(datagram, 20 + from, fragment, 20, to - from);
+        final int flags = to < datagram.length - 20 ? 0x2000 : 0;
+        final int flagsAndOffset = flags | from / 8;
+        fragment[2] = (byte) (fragment.length >>> 8);
+        fragment[3] = (byte) fragment.length;
+        fragment[6] = (byte) (flagsAndOffset >>> 8);
+        fragment[7] = (byte) flagsAndOffset;
+        fragment[10] = 0;
+        fragment[11] = 0;
+        int sum = 0;
+        for (int i = 0; i < 20; i += 2) {
+            sum += (fragment[i] & 0xff) << 8 | fragment[i + 1] & 0xff;
+        }
+        while (sum > 0xffff) {
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        fragment[10] = (byte) (~sum >>> 8);
+        fragment[11] = (byte) ~sum;
+        return fragment;
+    }
+
+    /**
+     * The decoded payload of layer 4: the raw IPv4 packets.
+     */
+    static synchronized byte[] layer4Input() throws IOException {
+        if (layer4Input == null) {
+            try (InputStream inputStream = Objects.requireNonNull(
+                Layer4Test.class.getClassLoader().getResourceAsStream("layer0.txt"))) {
+                layer4Input = new Layer4(new Layer3(new Layer2(new Layer1(new Layer0(
+                    inputStream.readAllBytes()).solve()).solve()).solve()).solve()).payload;
+            }
+        }
+        return layer4Input;
+    }
+}
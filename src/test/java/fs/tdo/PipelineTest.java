@@ -0,0 +1,68 @@
+package fs.tdo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.Objects;
+import org.junit.jupiter.api.Test;
+
+public class PipelineTest {
+
+    @Test
+    void onionMatchesSequentialLayers() throws IOException {
+        final byte[] layer0 = readLayer0();
+        final byte[] expected = new Layer6(new Layer5(new Layer4(new Layer3(new Layer2(new Layer1(
+            new Layer0(layer0).solve()).solve()).solve()).solve()).solve()).solve()).solve();
+
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        Pipeline.onion().run(new ByteArrayInputStream(layer0), out);
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    void smallChunksAndQueues() throws IOException {
+        final byte[] input = new byte[100_000];
+        for (int i = 0; i < input.length; i++) {
+            input[i] = (byte) i;
+        }
+        final Stage increment = (in, out) -> {
+            for (int b = in.read(); b >= 0; b = in.read()) {
+                out.write(b + 1);
+            }
+        };
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        new Pipeline(List.of(increment, increment, increment), 7, 1).run(new ByteArrayInputStream(input), out);
+        final byte[] result = out.toByteArray();
+        assertEquals(input.length, result.length);
+        for (int i = 0; i < input.length; i++) {
+            assertEquals((byte) (i + 3), result[i]);
+        }
+    }
+
+    @Test
+    void failureStopsAllStages() {
+        final Stage copy = (in, out) -> in.transferTo(out);
+        final Stage fail = (in, out) -> {
+            throw new IllegalStateException("broken");
+        };
+        final Pipeline pipeline = new Pipeline(List.of(copy, fail, copy), 16, 1);
+        final IllegalStateException e = assertThrows(
+            IllegalStateException.class,
+            () -> pipeline.run(new ByteArrayInputStream(new byte[1 << 20]), new ByteArrayOutputStream())
+        );
+        assertEquals("broken", e.getMessage());
+    }
+
+    private static byte[] readLayer0() throws IOException {
+        try (InputStream inputStream = Objects.requireNonNull(
+            PipelineTest.class.getClassLoader().getResourceAsStream("layer0.txt"))) {
+            return inputStream.readAllBytes();
+        }
+    }
+}
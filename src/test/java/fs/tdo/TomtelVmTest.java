@@ -3,6 +3,8 @@ package fs.tdo;
 import fs.tdo.layer5.TomtelVm;
 import org.junit.jupiter.api.Test;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
@@ -32,4 +34,20 @@ public class TomtelVmTest {
         String result = new String(new TomtelVm(bb.array()).run(), StandardCharsets.US_ASCII);
         assert result.equals("Hello, world!");
     }
+
+    @Test
+    void reExecutesCodeThatTheProgramOverwrote() {
+        byte[] program = {
+            0x48, 'A',                      // 0: MVI a <- 'A'
+            0x02,                           // 2: OUT a
+            (byte) 0xA8, 0, 0, 0, 0,        // 3: MVI32 ptr <- 0
+            0x58, 1,                        // 8: MVI c <- 1
+            0x78, 'B',                      // 10: MVI (ptr+c) <- 'B', the imm8 at address 1
+            0x22, 24, 0, 0, 0,              // 12: JNZ 24
+            0x70, 1,                        // 17: MVI f <- 1
+            0x22, 0, 0, 0, 0,               // 19: JNZ 0
+            0x01                            // 24: HALT
+        };
+        assertEquals("AB", new String(new TomtelVm(program).run(), StandardCharsets.US_ASCII));
+    }
 }
@@ -0,0 +1,33 @@
+package fs.tdo;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import org.junit.jupiter.api.Test;
+
+public class XorKeyRecoveryTest {
+
+    @Test
+    void recoversKeysOfDifferentLengths() throws IOException {
+        final byte[] plain;
+        try (InputStream inputStream = Objects.requireNonNull(
+            getClass().getClassLoader().getResourceAsStream("layer0.txt"))) {
+            plain = Arrays.copyOf(inputStream.readAllBytes(), 100_000);
+        }
+        final Random random = new Random(7);
+        for (int keyLength : new int[] {5, 13, 32, 47}) {
+            final byte[] key = new byte[keyLength];
+            random.nextBytes(key);
+            final byte[] cipher = plain.clone();
+            for (int i = 0; i < cipher.length; i++) {
+                cipher[i] ^= key[i % keyLength];
+            }
+            assertArrayEquals(key, XorKeyRecovery.recoverKey(cipher, cipher.length, ForkJoinPool.commonPool()));
+        }
+    }
+}
@@ -0,0 +1,75 @@
+package fs.tdo.layer4;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+public class InternetChecksumTest {
+
+    @Test
+    void piecesOfAnyLengthGiveTheSameSum() {
+        final byte[] data = new byte[1000];
+        new Random(7).nextBytes(data);
+        final Random random = new Random(11);
+        for (int length = 0; length < 100; length++) {
+            final int from = random.nextInt(data.length - length);
+            final int expected = reference(data, from, length);
+            assertEquals(expected, new InternetChecksum().update(data, from, length).value(), "length " + length);
+
+            final InternetChecksum pieces = new InternetChecksum();
+            for (int i = from; i < from + length; ) {
+                final int piece = Math.min(from + length - i, random.nextInt(11));
+                pieces.update(data, i, piece);
+                i += piece;
+            }
+            assertEquals(expected, pieces.value(), "pieces of length " + length);
+
+            final ByteBuffer direct = ByteBuffer.allocateDirect(length).put(data, from, length).flip();
+            assertEquals(expected, new InternetChecksum().update(direct).value(), "direct length " + length);
+            assertEquals(expected, InternetChecksum.fold(InternetChecksum.sum(direct, 0, length)));
+        }
+    }
+
+    @Test
+    void fieldsAndPartialSumsAfterOddData() {
+        final byte[] data = {1, 2, 3, 0x12, 0x34, 0x56, 0x78, (byte) 0x9a, (byte) 0xbc, 0, 17, 0, 5};
+        final int expected = reference(data, 0, data.length);
+        assertEquals(expected, new InternetChecksum().update(data, 0, 3).updateInt(0x12345678)
+            .updateShort(0x9abc).updateShort(17).updateShort(5).value());
+        assertEquals(expected, new InternetChecksum().update(data, 0, 3)
+            .updateSum(0x1234 + 0x5678 + 0x9abc + 17 + 5).value());
+    }
+
+    @Test
+    void pseudoHeaderWithoutBuildingIt() {
+        final ByteBuffer pseudoHeader = ByteBuffer.allocate(12)
+            .putInt(PacketView.SOURCE_IP).putInt(PacketView.DEST_IP).putShort((short) 17).putShort((short) 1234);
+        assertEquals(reference(pseudoHeader.array(), 0, 12), InternetChecksum.fold(
+            InternetChecksum.pseudoHeaderSum(PacketView.SOURCE_IP, PacketView.DEST_IP, 17, 1234)));
+    }
+
+    @Test
+    void adjustedChecksumEqualsRecomputed() {
+        final byte[] header = new byte[20];
+        new Random(3).nextBytes(header);
+        header[10] = 0;
+        header[11] = 0;
+        final int checksum = new InternetChecksum().update(header, 0, 20).checksum();
+        final int oldWord = (header[2] & 0xff) << 8 | header[3] & 0xff;
+        header[2] = 0x05;
+        header[3] = (byte) 0xdc;
+        assertEquals(new InternetChecksum().update(header, 0, 20).checksum(),
+            InternetChecksum.adjust(checksum, oldWord, 0x05dc));
+    }
+
+    private static int reference(final byte[] data, final int from, final int length) {
+        int sum = 0;
+        for (int i = 0; i < length; i++) {
+            sum += (data[from + i] & 0xff) << (i % 2 == 0 ? 8 : 0);
+            sum = (sum & 0xffff) + (sum >>> 16);
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,91 @@
+package fs.tdo.layer4;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+public class PacketFilterTest {
+    /* 10.1.1.10:1234 -> 10.1.1.200:42069 over UDP, 40 bytes */
+    private static final PacketView ONION = packet(17, 0x0A01010A, 1234, 0x0A0101C8, 42069);
+    /* 192.168.7.1:53 -> 10.1.1.200:5000 over TCP, 40 bytes */
+    private static final PacketView OTHER = packet(6, 0xC0A80701, 53, 0x0A0101C8, 5000);
+
+    @Test
+    void onionFilter() {
+        assertTrue(PacketFilter.ONION.matches(ONION));
+        assertFalse(PacketFilter.ONION.matches(OTHER));
+    }
+
+    @Test
+    void primitives() {
+        assertMatches("src host 10.1.1.10", true, false);
+        assertMatches("dst host 10.1.1.200", true, true);
+        assertMatches("host 192.168.7.1", false, true);
+        assertMatches("net 10.0.0.0/8", true, true);
+        assertMatches("src net 192.168.0.0/16", false, true);
+        assertMatches("port 53", false, true);
+        assertMatches("udp port 53", false, false);
+        assertMatches("dst portrange 5000-42069", true, true);
+        assertMatches("src portrange 1-1000", false, true);
+        assertMatches("udp", true, false);
+        assertMatches("tcp", false, true);
+        assertMatches("ip proto 6", false, true);
+        assertMatches("icmp", false, false);
+        assertMatches("ip", true, true);
+        assertMatches("less 40", true, true);
+        assertMatches("greater 41", false, false);
+    }
+
+    @Test
+    void operators() {
+        assertMatches("not udp", false, true);
+        assertMatches("!tcp", true, false);
+        assertMatches("udp and src host 10.1.1.10", true, false);
+        assertMatches("udp && tcp", false, false);
+        assertMatches("udp or tcp", true, true);
+        assertMatches("udp||tcp", true, true);
+        // and/or are left associative with equal precedence: (tcp or udp) and port 53
+        assertMatches("tcp or udp and port 53", false, true);
+        assertMatches("tcp or (udp and port 1234)", true, true);
+        assertMatches("not (udp or tcp)", false, false);
+        assertMatches("SRC HOST 10.1.1.10", true, false);
+    }
+
+    @Test
+    void syntaxErrors() {
+        for (String expression : new String[] {"", "host", "host 10.1.1", "host 10.1.1.256", "port 70000",
+            "udp host 10.1.1.10", "net 10.1.1.1/8", "(udp", "udp)", "udp and", "portrange 5", "frobnicate"}) {
+            assertThrows(IllegalArgumentException.class, () -> PacketFilter.compile(expression), expression);
+        }
+    }
+
+    @Test
+    void filtersForUdpRejectWhatNoUdpPacketMatches() {
+        for (String expression : new String[] {"tcp", "icmp", "ip proto 6", "not udp", "udp and tcp",
+            "tcp port 53", "not ip", "!(udp or host 10.1.1.10)"}) {
+            assertThrows(IllegalArgumentException.class,
+                () -> PacketFilter.compile(expression, PacketView.PROTOCOL_UDP), expression);
+        }
+        for (String expression : new String[] {"udp", "ip", "port 53", "tcp or udp", "ip proto 17", "not tcp",
+            "icmp or host 10.1.1.10", "not (tcp and host 10.1.1.10)"}) {
+            PacketFilter.compile(expression, PacketView.PROTOCOL_UDP);
+        }
+    }
+
+    private static void assertMatches(final String expression, final boolean onion, final boolean other) {
+        final PacketFilter filter = PacketFilter.compile(expression);
+        assertTrue(filter.matches(ONION) == onion, expression + " on the onion packet");
+        assertTrue(filter.matches(OTHER) == other, expression + " on the other packet");
+    }
+
+    private static PacketView packet(final int protocol, final int source, final int sourcePort, final int dest,
+        final int destPort) {
+        final ByteBuffer packet = ByteBuffer.allocate(40);
+        packet.put((byte) 0x45).put((byte) 0).putShort((short) 40).putInt(0).put((byte) 64).put((byte) protocol)
+            .putShort((short) 0).putInt(source).putInt(dest).putShort((short) sourcePort).putShort((short) destPort);
+        return new PacketView(packet).moveTo(0);
+    }
+}
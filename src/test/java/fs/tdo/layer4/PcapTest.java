@@ -0,0 +1,200 @@
+package fs.tdo.layer4;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+public class PcapTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void writtenPacketsReadBackThroughSmallWindows() throws IOException {
+        final Path file = directory.resolve("packets.pcap");
+        final byte[][] packets = new byte[50][];
+        try (PcapWriter writer = PcapWriter.create(file)) {
+            for (int i = 0; i < packets.length; i++) {
+                packets[i] = packet(i * 7, i);
+                writer.write(ByteBuffer.wrap(packets[i]), packets[i].length, 1_600_000_000_123_456_789L + i);
+            }
+        }
+        try (PcapReader reader = new PcapReader(FileChannel.open(file, StandardOpenOption.READ), 100)) {
+            for (int i = 0; i < packets.length; i++) {
+                assertTrue(reader.next());
+                assertTrue(reader.isComplete());
+                assertEquals(1_600_000_000_123_456_789L + i, reader.timestamp());
+                assertArrayEquals(packets[i], bytes(reader.packet()));
+                assertEquals(packets[i].length, reader.view().totalLength());
+                assertTrue(reader.view().validIpChecksum());
+            }
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    void writerCopiesViews() throws IOException {
+        final byte[] packet = packet(10, 1);
+        final ByteBuffer twoPackets = ByteBuffer.allocate(packet.length * 2).put(packet).put(packet);
+        final PacketView view = new PacketView(twoPackets).moveTo(packet.length);
+        final Path file = directory.resolve("view.pcap");
+        try (PcapWriter writer = PcapWriter.create(file)) {
+            writer.write(view, 0);
+        }
+        try (PcapReader reader = PcapReader.open(file)) {
+            assertTrue(reader.next());
+            assertArrayEquals(packet, bytes(reader.packet()));
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    void pcapngWithEthernetAndVlanTags() throws IOException {
+        final byte[] first = packet(4, 1);
+        final byte[] second = packet(9, 2);
+        final ByteBuffer file = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        // section header
+        file.putInt(0x0a0d0d0a).putInt(28).putInt(0x1a2b3c4d).putShort((short) 1).putShort((short) 0)
+            .putLong(-1).putInt(28);
+        // Ethernet interface with nanosecond timestamps
+        file.putInt(1).putInt(28).putShort((short) 1).putShort((short) 0).putInt(65535)
+            .putShort((short) 9).putShort((short) 1).putInt(9).putInt(28);
+        enhancedPacket(file, ethernet(first, 0x8100, 0x0800), 5_000_000_007L);
+        enhancedPacket(file, ethernet(new byte[28], 0x0806), 6);
+        enhancedPacket(file, ethernet(second, 0x0800), 8);
+        final Path path = directory.resolve("packets.pcapng");
+        Files.write(path, Arrays.copyOf(file.array(), file.position()));
+
+        try (PcapReader reader = PcapReader.open(path)) {
+            assertTrue(reader.next());
+            assertEquals(5_000_000_007L, reader.timestamp());
+            // the frame is padded to the Ethernet minimum, the padding stays part of the captured bytes
+            assertArrayEquals(first, Arrays.copyOf(bytes(reader.packet()), first.length));
+            assertTrue(reader.next());
+            assertEquals(8, reader.timestamp());
+            assertEquals(second.length, reader.view().totalLength());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    void truncatedRecordsAreIncomplete() throws IOException {
+        final byte[] packet = packet(40, 3);
+        final ByteBuffer file = ByteBuffer.allocate(24 + 16 + 30);
+        file.putInt(PcapReader.PCAP_MAGIC).putShort((short) 2).putShort((short) 4).putLong(0).putInt(30)
+            .putInt(PcapReader.LINKTYPE_RAW);
+        file.putInt(1).putInt(0).putInt(30).putInt(packet.length).put(packet, 0, 30);
+        final Path path = directory.resolve("truncated.pcap");
+        Files.write(path, file.array());
+
+        try (PcapReader reader = PcapReader.open(path)) {
+            assertTrue(reader.next());
+            assertFalse(reader.isComplete());
+            assertEquals(1_000_000_000L, reader.timestamp());
+            assertEquals(packet.length, reader.originalLength());
+            assertEquals(30, reader.capturedLength());
+            assertFalse(reader.next());
+        }
+    }
+
+    @Test
+    void recordsCutShortByTheEndOfTheFileAreIncomplete() throws IOException {
+        final byte[] packet = packet(40, 4);
+        final Path path = directory.resolve("cut.pcap");
+        try (PcapWriter writer = PcapWriter.create(path)) {
+            writer.write(ByteBuffer.wrap(packet), packet.length, 1);
+            writer.write(ByteBuffer.wrap(packet), packet.length, 2);
+        }
+        final byte[] file = Files.readAllBytes(path);
+        Files.write(path, Arrays.copyOf(file, file.length - 25));
+        try (PcapReader reader = PcapReader.open(path)) {
+            assertTrue(reader.next());
+            assertTrue(reader.isComplete());
+            assertTrue(reader.next());
+            assertFalse(reader.isComplete());
+            assertEquals(packet.length - 25, reader.capturedLength());
+            assertEquals(packet.length, reader.originalPacketLength());
+            assertFalse(reader.next());
+        }
+        // a record header cut short carries no packet
+        Files.write(path, Arrays.copyOf(file, 24 + 16 + packet.length + 10));
+        try (PcapReader reader = PcapReader.open(path)) {
+            assertTrue(reader.next());
+            assertFalse(reader.next());
+        }
+
+        final ByteBuffer pcapng = ByteBuffer.allocate(1024).order(ByteOrder.LITTLE_ENDIAN);
+        pcapng.putInt(0x0a0d0d0a).putInt(28).putInt(0x1a2b3c4d).putShort((short) 1).putShort((short) 0)
+            .putLong(-1).putInt(28);
+        pcapng.putInt(1).putInt(20).putShort((short) 1).putShort((short) 0).putInt(65535).putInt(20);
+        final byte[] frame = ethernet(packet, 0x0800);
+        enhancedPacket(pcapng, frame, 3);
+        Files.write(path, Arrays.copyOf(pcapng.array(), pcapng.position() - 30));
+        try (PcapReader reader = PcapReader.open(path)) {
+            assertTrue(reader.next());
+            assertFalse(reader.isComplete());
+            assertEquals(frame.length, reader.originalLength());
+            assertEquals(packet.length, reader.originalPacketLength());
+            // the trailing block length and the padding take 6 of the 30 bytes cut
+            assertEquals(packet.length - 24, reader.capturedLength());
+            assertFalse(reader.next());
+        }
+    }
+
+    private static void enhancedPacket(final ByteBuffer file, final byte[] frame, final long timestamp) {
+        final int padded = frame.length + 3 & ~3;
+        file.putInt(6).putInt(32 + padded).putInt(0).putInt((int) (timestamp >>> 32)).putInt((int) timestamp)
+            .putInt(frame.length).putInt(frame.length).put(frame).position(file.position() + padded - frame.length)
+            .putInt(32 + padded);
+    }
+
+    private static byte[] ethernet(final byte[] packet, final int... etherTypes) {
+        final ByteBuffer frame = ByteBuffer.allocate(Math.max(60, 12 + etherTypes.length * 4 - 2 + packet.length));
+        frame.position(12);
+        for (int i = 0; i < etherTypes.length; i++) {
+            frame.putShort((short) etherTypes[i]);
+            if (i < etherTypes.length - 1) {
+                frame.putShort((short) 5);
+            }
+        }
+        frame.put(packet);
+        return frame.array();
+    }
+
+    /**
+     * An IPv4 packet with a valid header checksum and {@code dataLength} bytes of data.
+     */
+    private static byte[] packet(final int dataLength, final int identification) {
+        final ByteBuffer packet = ByteBuffer.allocate(20 + dataLength);
+        packet.put((byte) 0x45).put((byte) 0).putShort((short) packet.capacity()).putShort((short) identification)
+            .putShort((short) 0x4000).put((byte) 64).put((byte) 17).putShort((short) 0)
+            .putInt(PacketView.SOURCE_IP).putInt(PacketView.DEST_IP);
+        for (int i = 0; i < dataLength; i++) {
+            packet.put((byte) (i * 31 + identification));
+        }
+        int sum = 0;
+        for (int i = 0; i < 20; i += 2) {
+            sum += packet.getShort(i) & 0xffff;
+        }
+        sum = (sum & 0xffff) + (sum >>> 16);
+        packet.putShort(10, (short) ~(sum + (sum >>> 16)));
+        return packet.array();
+    }
+
+    private static byte[] bytes(final ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
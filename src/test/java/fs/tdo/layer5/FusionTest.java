@@ -0,0 +1,99 @@
+package fs.tdo.layer5;
+
+import static fs.tdo.layer5.TomtelAssembler.A;
+import static fs.tdo.layer5.TomtelAssembler.B;
+import static fs.tdo.layer5.TomtelAssembler.C;
+import static fs.tdo.layer5.TomtelAssembler.D;
+import static fs.tdo.layer5.TomtelAssembler.MEMORY;
+import static fs.tdo.layer5.TomtelAssembler.PTR;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTimeoutPreemptively;
+
+import java.time.Duration;
+import org.junit.jupiter.api.Test;
+
+public class FusionTest {
+
+    @Test
+    void superinstructionsDoWhatTheirInstructionsDo() {
+        final int rounds = 100;
+        final TomtelAssembler p = new TomtelAssembler();
+        final int data = p.mvi32(PTR, 0);
+        p.mvi(C, 0);
+        final int loop = p.mvi(B, 0x33);
+        p.mv(A, MEMORY);
+        p.xor();
+        p.mv(MEMORY, A);
+        p.mv(A, C);
+        p.mvi(B, 1);
+        p.add();
+        p.mv(C, A);
+        p.mvi(B, rounds);
+        p.cmp();
+        p.jnz(loop);
+        p.mvi(C, 0);
+        p.aptr(7);
+        p.mv(A, MEMORY);
+        p.out();
+        p.halt();
+        p.patch(data, p.here());
+        for (int i = 0; i < rounds; i++) {
+            p.emit(i);
+        }
+
+        final TomtelVm plain = new TomtelVm(p.bytes(), 0, false);
+        final TomtelVm fused = new TomtelVm(p.bytes(), 0, true);
+        assertArrayEquals(plain.run(), fused.run());
+        assertArrayEquals(plain.ram, fused.ram);
+        assertEquals(0, plain.fused());
+        assertEquals(3, fused.fused());
+        assertEquals(rounds * 2 + rounds + 1, fused.eliminatedDispatches());
+    }
+
+    @Test
+    void jumpIntoTheMiddleOfASuperinstruction() {
+        final TomtelAssembler p = new TomtelAssembler();
+        final int data = p.mvi32(PTR, 0);
+        p.mvi(C, 0);
+        p.mvi(B, 0x0F);
+        p.mv(A, MEMORY);
+        final int middle = p.xor();
+        p.mv(MEMORY, A);
+        p.out();
+        final int done = p.jnz(0);
+        p.mvi(6, 1);
+        p.mvi(A, 0x70);
+        p.jnz(middle);
+        p.patch(done, p.halt());
+        p.patch(data, p.emit(0x30));
+
+        final TomtelVm vm = new TomtelVm(p.bytes(), 0, true);
+        assertArrayEquals(new byte[] {0x3F, 0x7F}, vm.run());
+        assertEquals(1, vm.fused());
+    }
+
+    @Test
+    void overwritingTheJumpOfAFusedCompare() {
+        final TomtelAssembler p = new TomtelAssembler();
+        final int pointer = p.mvi32(PTR, 0);
+        p.mvi(C, 0);
+        p.mvi(A, 'A');
+        p.mvi(B, 'B');
+        final int compare = p.cmp();
+        final int jump = p.jnz(0);
+        p.out();
+        p.halt();
+        p.patch(jump, p.here());
+        // JNZ becomes JEZ, so the compare falls through the next time
+        p.mvi(D, 0x21);
+        p.mv(MEMORY, D);
+        p.jnz(compare);
+        p.patch(pointer, jump);
+
+        final TomtelVm vm = new TomtelVm(p.bytes(), 0, true);
+        assertArrayEquals(new byte[] {'A'}, assertTimeoutPreemptively(Duration.ofSeconds(10), () -> {
+            return vm.run();
+        }));
+    }
+}
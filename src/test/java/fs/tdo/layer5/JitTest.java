@@ -0,0 +1,122 @@
+package fs.tdo.layer5;
+
+import static fs.tdo.layer5.TomtelAssembler.A;
+import static fs.tdo.layer5.TomtelAssembler.B;
+import static fs.tdo.layer5.TomtelAssembler.C;
+import static fs.tdo.layer5.TomtelAssembler.D;
+import static fs.tdo.layer5.TomtelAssembler.LA;
+import static fs.tdo.layer5.TomtelAssembler.LB;
+import static fs.tdo.layer5.TomtelAssembler.MEMORY;
+import static fs.tdo.layer5.TomtelAssembler.PC;
+import static fs.tdo.layer5.TomtelAssembler.PTR;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class JitTest {
+
+    @Test
+    void compiledLoopDoesWhatTheInterpreterDoes() {
+        final TomtelAssembler program = decryptingLoop(200, false);
+        final TomtelVm vm = assertSameAsInterpreter(program.bytes());
+        assertTrue(vm.compilations() > 0);
+        assertEquals(0, vm.drops());
+    }
+
+    @Test
+    void onlyInterpretsUnlessAThresholdIsGiven() {
+        final TomtelVm vm = new TomtelVm(decryptingLoop(200, false).bytes());
+        vm.run();
+        assertEquals(0, vm.compilations());
+    }
+
+    @Test
+    void writingIntoCompiledCodeLeavesIt() {
+        final TomtelAssembler program = decryptingLoop(200, true);
+        final TomtelVm vm = assertSameAsInterpreter(program.bytes());
+        assertTrue(vm.drops() > 0);
+    }
+
+    @Test
+    void jumpsThroughPcLeaveTheRegion() {
+        final TomtelAssembler p = new TomtelAssembler();
+        p.mvi(C, 0);
+        final int loop = p.here();
+        // jumps over a byte that is not an instruction
+        final int skip = p.mvi32(PC, 0);
+        p.emit(0xff);
+        p.patch(skip, p.here());
+        p.mv32(LA, PC);
+        p.mv32(LB, LA);
+        p.mv(A, C);
+        p.mvi(B, 1);
+        p.add();
+        p.mv(C, A);
+        p.out();
+        p.mvi(B, 50);
+        p.cmp();
+        p.jnz(loop);
+        // through la to the HALT behind the data
+        final int set = p.mvi32(LA, 0);
+        p.mv32(PC, LA);
+        p.emit(0xff, 0xff);
+        p.patch(set, p.here());
+        p.halt();
+        final TomtelVm vm = assertSameAsInterpreter(p.bytes());
+        assertTrue(vm.compilations() > 0);
+    }
+
+    /**
+     * XORs {@code length} bytes of data with a key and outputs them. With {@code patch} every round also writes the
+     * round number into the key of the XOR, which is part of the loop's code.
+     */
+    static TomtelAssembler decryptingLoop(final int length, final boolean patch) {
+        final TomtelAssembler p = new TomtelAssembler();
+        final int data = p.mvi32(PTR, 0);
+        p.mvi(C, 0);
+        final int loop = p.here();
+        p.mv(A, MEMORY);
+        final int key = p.mvi(B, 0x5A) + 1;
+        p.xor();
+        p.out();
+        p.mv(MEMORY, A);
+        p.mv(A, C);
+        p.mvi(B, 1);
+        p.add();
+        p.mv(C, A);
+        if (patch) {
+            p.mv32(LA, PTR);
+            p.mv(D, C);
+            p.mvi(C, 0);
+            p.mvi32(PTR, key);
+            p.mv(MEMORY, D);
+            p.mv(C, D);
+            p.mv32(PTR, LA);
+        }
+        p.mvi(B, length);
+        p.cmp();
+        p.jnz(loop);
+        p.halt();
+        p.patch(data, p.here());
+        for (int i = 0; i < length; i++) {
+            p.emit(i * 7 + 3);
+        }
+        return p;
+    }
+
+    private static TomtelVm assertSameAsInterpreter(final byte[] program) {
+        final TomtelVm interpreter = new TomtelVm(program.clone(), 0);
+        final byte[] expected = interpreter.run();
+        final TomtelVm vm = new TomtelVm(program.clone(), 1);
+        assertArrayEquals(expected, vm.run());
+        assertArrayEquals(interpreter.ram, vm.ram);
+        assertArrayEquals(registers(interpreter), registers(vm));
+        return vm;
+    }
+
+    private static int[] registers(final TomtelVm vm) {
+        return new int[] {vm.a, vm.b, vm.c, vm.d, vm.e, vm.f, vm.la, vm.lb, vm.lc, vm.ld, vm.ptr, vm.pc};
+    }
+}
@@ -0,0 +1,87 @@
+package fs.tdo.layer5;
+
+import static fs.tdo.layer5.TomtelAssembler.A;
+import static fs.tdo.layer5.TomtelAssembler.B;
+import static fs.tdo.layer5.TomtelAssembler.C;
+import static fs.tdo.layer5.TomtelAssembler.D;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import org.junit.jupiter.api.Test;
+
+public class OutputBufferTest {
+    private static final int ROUNDS = 40;
+
+    @Test
+    void outputArrivesInBatchesWhileTheProgramRuns() throws IOException {
+        final byte[] expected = new byte[ROUNDS * 256];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (byte) i;
+        }
+        for (int jitThreshold : new int[] {0, 1}) {
+            final ByteArrayOutputStream received = new ByteArrayOutputStream();
+            final int[] batches = new int[1];
+            new TomtelVm(counting(), jitThreshold).run((bytes, offset, length) -> {
+                assertTrue(length <= OutputBuffer.DEFAULT_SIZE);
+                received.write(bytes, offset, length);
+                batches[0]++;
+            });
+            assertArrayEquals(expected, received.toByteArray());
+            assertEquals(2, batches[0]);
+        }
+    }
+
+    @Test
+    void streamsAndChannelsReceiveWhatRunReturns() throws IOException {
+        final byte[] expected = new TomtelVm(counting()).run();
+        final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        new TomtelVm(counting()).run(stream);
+        assertArrayEquals(expected, stream.toByteArray());
+        final ByteArrayOutputStream channel = new ByteArrayOutputStream();
+        new TomtelVm(counting()).run(Channels.newChannel(channel));
+        assertArrayEquals(expected, channel.toByteArray());
+    }
+
+    @Test
+    void failingSinkStopsTheProgram() {
+        final IOException failure = new IOException("full");
+        final IOException thrown = assertThrows(IOException.class, () -> new TomtelVm(counting()).run(
+            (bytes, offset, length) -> {
+                throw failure;
+            }));
+        assertSame(failure, thrown);
+    }
+
+    /**
+     * Outputs 0 to 255, {@link #ROUNDS} times.
+     */
+    private static byte[] counting() {
+        final TomtelAssembler p = new TomtelAssembler();
+        p.mvi(D, 0);
+        final int outer = p.mvi(C, 0);
+        final int inner = p.here();
+        p.mv(A, C);
+        p.out();
+        p.mvi(B, 1);
+        p.add();
+        p.mv(C, A);
+        p.mvi(B, 0);
+        p.cmp();
+        p.jnz(inner);
+        p.mv(A, D);
+        p.mvi(B, 1);
+        p.add();
+        p.mv(D, A);
+        p.mvi(B, ROUNDS);
+        p.cmp();
+        p.jnz(outer);
+        p.halt();
+        return p.bytes();
+    }
+}
@@ -0,0 +1,65 @@
+package fs.tdo.layer5;
+
+import static fs.tdo.layer5.TomtelAssembler.A;
+import static fs.tdo.layer5.TomtelAssembler.B;
+import static fs.tdo.layer5.TomtelAssembler.C;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+public class ProfileTest {
+
+    @Test
+    void countsInstructionsAddressesAndJumps() {
+        final int rounds = 10;
+        final TomtelAssembler p = new TomtelAssembler();
+        p.mvi(C, 0);
+        final int loop = p.here();
+        p.mv(A, C);
+        p.mvi(B, 1);
+        p.add();
+        p.mv(C, A);
+        p.out();
+        p.mvi(B, rounds);
+        p.cmp();
+        final int jump = p.here();
+        p.jnz(loop);
+        p.halt();
+
+        final byte[] expected = new TomtelVm(p.bytes()).run();
+        final TomtelVm vm = new TomtelVm(p.bytes());
+        final Profile profile = vm.profile();
+        assertArrayEquals(expected, vm.run());
+
+        assertEquals(1 + rounds * 8 + 1, profile.instructions());
+        assertEquals(rounds, profile.count(Instruction.ADD));
+        assertEquals(rounds, profile.count(Instruction.JNZ));
+        assertEquals(1, profile.count(Instruction.HALT));
+        assertEquals(0, profile.count(Instruction.XOR));
+        assertEquals(rounds, profile.outputBytes());
+        assertEquals(rounds, profile.hits(loop));
+        assertEquals(rounds - 1, profile.taken(jump));
+        assertEquals(1, profile.notTaken(jump));
+        assertEquals(0, profile.notTaken(loop));
+        assertTrue(profile.nanos() > 0);
+
+        final int[] hottest = profile.hottest(3);
+        assertEquals(3, hottest.length);
+        assertEquals(rounds, profile.hits(hottest[2]));
+        // every instruction of the program ran at an address of its own
+        assertEquals(1 + 8 + 1, profile.hottest(100).length);
+
+        final String report = profile.report(10);
+        assertTrue(report.contains("JNZ"));
+        assertTrue(report.contains("taken 9, not taken 1"));
+
+        // only the next run is profiled
+        final long nanos = profile.nanos();
+        vm.pc = 0;
+        assertArrayEquals(expected, vm.run());
+        assertEquals(1 + rounds * 8 + 1, profile.instructions());
+        assertEquals(nanos, profile.nanos());
+    }
+}
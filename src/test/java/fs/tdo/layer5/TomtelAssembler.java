@@ -0,0 +1,96 @@
+package fs.tdo.layer5;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Assembles Tomtel code for tests. The methods return the address of the instruction.
+ */
+final class TomtelAssembler {
+    static final int A = 1;
+    static final int B = 2;
+    static final int C = 3;
+    static final int D = 4;
+    static final int MEMORY = 7;
+    static final int LA = 1;
+    static final int LB = 2;
+    static final int PTR = 5;
+    static final int PC = 6;
+
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    int here() {
+        return bytes.size();
+    }
+
+    int emit(final int... values) {
+        final int at = here();
+        for (int value : values) {
+            bytes.write(value);
+        }
+        return at;
+    }
+
+    int mv(final int dest, final int src) {
+        return emit(0b01000000 | dest << 3 | src);
+    }
+
+    int mvi(final int dest, final int imm8) {
+        return emit(0b01000000 | dest << 3, imm8);
+    }
+
+    int mv32(final int dest, final int src) {
+        return emit(0b10000000 | dest << 3 | src);
+    }
+
+    int mvi32(final int dest, final int imm32) {
+        return emit(0b10000000 | dest << 3, imm32, imm32 >> 8, imm32 >> 16, imm32 >> 24);
+    }
+
+    int aptr(final int imm8) {
+        return emit(0xE1, imm8);
+    }
+
+    int add() {
+        return emit(0xC2);
+    }
+
+    int xor() {
+        return emit(0xC4);
+    }
+
+    int cmp() {
+        return emit(0xC1);
+    }
+
+    int jez(final int target) {
+        return emit(0x21, target, target >> 8, target >> 16, target >> 24);
+    }
+
+    int jnz(final int target) {
+        return emit(0x22, target, target >> 8, target >> 16, target >> 24);
+    }
+
+    int out() {
+        return emit(0x02);
+    }
+
+    int halt() {
+        return emit(0x01);
+    }
+
+    /**
+     * Sets the imm32 of the instruction at {@code at}.
+     */
+    void patch(final int at, final int imm32) {
+        final byte[] code = bytes();
+        for (int i = 0; i < 4; i++) {
+            code[at + 1 + i] = (byte) (imm32 >> 8 * i);
+        }
+        bytes.reset();
+        bytes.write(code, 0, code.length);
+    }
+
+    byte[] bytes() {
+        return bytes.toByteArray();
+    }
+}